@@ -248,11 +248,7 @@ public class Flattener {
       case CALL: {
         final Statement.Call astInner = (Statement.Call)ast;
         this.walkExpression(astInner.function, currentPage);
-        this.emit("TABLE");
-        for (int i=0; i<astInner.args.length; i++) {
-          this.walkField(i, astInner.args.get(i), currentPage);
-        }
-        this.emit("CALL");
+        this.walkCall(astInner.args, currentPage);
         this.emit("DROPTABLE");
         this.emit(";");
         break;
@@ -555,6 +551,25 @@ public class Flattener {
     this.emit("PUT");
   }
   
+  /** Emits assembler that calls the function on the top of the stack,
+   * passing 'args'. If all the arguments are numbered, they are passed on the
+   * stack using "CALL(n)". Otherwise they are passed in a table. */
+  private void walkCall(ASTList<Field> args, Page currentPage) {
+    // Numbered fields precede named fields, so check the last one.
+    if (args.length==0 || !args.get(args.length-1).isNamed()) {
+      for (int i=0; i<args.length; i++) {
+        this.walkExpression(args.get(i).expression, currentPage);
+      }
+      this.emit("CALL("+args.length+")");
+    } else {
+      this.emit("TABLE");
+      for (int i=0; i<args.length; i++) {
+        this.walkField(i, args.get(i), currentPage);
+      }
+      this.emit("CALL");
+    }
+  }
+  
   /** Emits assembler for 'ast'. */
   private void walkObject(Obj ast, Page currentPage) {
     switch (ast.type) {
@@ -674,12 +689,30 @@ public class Flattener {
         break;
       }
       case CALL: {
-        final Postfix.Call astInner = (Postfix.Call)ast;
-        this.emit("TABLE");
-        for (int i=0; i<astInner.args.length; i++) {
-          this.walkField(i, astInner.args.get(i), currentPage);
-        }
-        this.emit("CALL");
+        this.walkCall(((Postfix.Call)ast).args, currentPage);
+        break;
+      }
+      case NTH: {
+        this.walkExpression(((Postfix.Nth)ast).n, currentPage);
+        this.emit("NTH");
+        break;
+      }
+      case SLICE: {
+        // Omitted bounds select from the start or to the end. "SLICE" ignores
+        // positions outside the table, so any large number will do for 'hi'.
+        final ExpressionPair bounds = ((Postfix.Slice)ast).bounds;
+        if (bounds.x==null) this.emit("0");
+        else this.walkExpression(bounds.x, currentPage);
+        if (bounds.y==null) this.emit(""+Integer.MAX_VALUE);
+        else this.walkExpression(bounds.y, currentPage);
+        this.emit("SLICE");
+        break;
+      }
+      case RANGE: {
+        final ExpressionPair bounds = ((Postfix.Range)ast).bounds;
+        this.walkExpression(bounds.x, currentPage);
+        this.walkExpression(bounds.y, currentPage);
+        this.emit("RANGE");
         break;
       }
       default: throw new RuntimeException("Unknown kind");
@@ -11,10 +11,10 @@ public abstract class Postfix extends ASTNode {
 
   /* New API. */
 
-  public static enum TT {SUBSCRIPT, CALL};
+  public static enum TT {SUBSCRIPT, CALL, NTH, SLICE, RANGE};
 
-  /** One of the values SUBSCRIPT or CALL. This is a value which identifies
-   * to which subclass this Postfix belongs. */
+  /** One of the values SUBSCRIPT, CALL, NTH, SLICE or RANGE. This is a value
+   * which identifies to which subclass this Postfix belongs. */
   public final TT type;
 
   public static Postfix fromTree(Tree.Production raw) {
@@ -31,6 +31,27 @@ public abstract class Postfix extends ASTNode {
       if (args==null) return null;
       return new Call(raw.getT(0).t, args);
     }
+    if ("Nth9".equals(raw.name)) {
+      final Tree.NonTerminal round = (Tree.NonTerminal)raw.getT(1).parse();
+      if (round==null) return null;
+      final Expression n = Expression.fromTree(round.get(0));
+      if (n==null) return null;
+      return new Nth(raw.getT(0).t, n);
+    }
+    if ("Slice9".equals(raw.name)) {
+      final ExpressionPair bounds = ExpressionPair.fromTree(raw.getT(1));
+      if (bounds==null) return null;
+      return new Slice(raw.getT(0).t, bounds);
+    }
+    if ("Range9".equals(raw.name)) {
+      final ExpressionPair bounds = ExpressionPair.fromTree(raw.getT(1));
+      if (bounds==null) return null;
+      if (bounds.x==null || bounds.y==null) {
+        bounds.round.addError("You must provide both bounds.");
+        return null;
+      }
+      return new Range(raw.getT(0).t, bounds);
+    }
     throw new RuntimeException("Unknown production: " + raw.name);
   }
 
@@ -95,5 +116,91 @@ public abstract class Postfix extends ASTNode {
       this.args.toSourceCode(prefix, sb);
     }
   }
-}
 
+  /////////////////////////////////////////////////////////////////////////
+
+  /** Represents what the grammar calls a 'Nth9'. */
+  public static class Nth extends Postfix {
+    /** Constructs a Nth given values for its fields. */
+    public Nth(Token keyword, Expression n) {
+      super(TT.NTH);
+      this.keyword = keyword;
+      this.n = n;
+    }
+
+    /* New API. */
+
+    /** The "NTH" keyword. This is provided so that you can call its
+     * 'addError()' method. */
+    public final Token keyword;
+
+    /** The position of the key. */
+    public final Expression n;
+
+    /* Override things in ASTNode. */
+
+    public void toSourceCode(String prefix, StringBuffer sb) {
+      final String newPrefix = prefix + "  ";
+      sb.append(" NTH(").append(newPrefix);
+      this.n.toSourceCode(newPrefix, sb);
+      sb.append(prefix).append(")");
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////
+
+  /** Represents what the grammar calls a 'Slice9'. */
+  public static class Slice extends Postfix {
+    /** Constructs a Slice given values for its fields. */
+    public Slice(Token keyword, ExpressionPair bounds) {
+      super(TT.SLICE);
+      this.keyword = keyword;
+      this.bounds = bounds;
+    }
+
+    /* New API. */
+
+    /** The "SLICE" keyword. This is provided so that you can call its
+     * 'addError()' method. */
+    public final Token keyword;
+
+    /** The first position and one more than the last position. Either can be
+     * omitted. */
+    public final ExpressionPair bounds;
+
+    /* Override things in ASTNode. */
+
+    public void toSourceCode(String prefix, StringBuffer sb) {
+      sb.append(" SLICE");
+      this.bounds.toSourceCode(prefix, sb);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////
+
+  /** Represents what the grammar calls a 'Range9'. */
+  public static class Range extends Postfix {
+    /** Constructs a Range given values for its fields. */
+    public Range(Token keyword, ExpressionPair bounds) {
+      super(TT.RANGE);
+      this.keyword = keyword;
+      this.bounds = bounds;
+    }
+
+    /* New API. */
+
+    /** The "RANGE" keyword. This is provided so that you can call its
+     * 'addError()' method. */
+    public final Token keyword;
+
+    /** The lower bound and the upper bound of the keys. Both are present. */
+    public final ExpressionPair bounds;
+
+    /* Override things in ASTNode. */
+
+    public void toSourceCode(String prefix, StringBuffer sb) {
+      sb.append(" RANGE");
+      this.bounds.toSourceCode(prefix, sb);
+    }
+  }
+}
@@ -13,8 +13,8 @@ public class Prefix extends ASTNode {
   /* New API. */
   
   /** The Token that represents the keyword, one of "-", "FLOOR", "ROUND",
-   * "CEIL", "ABS", "SGN", "SQRT", "LEN", "STR", "VAL", "TRIM", "UPPER", "LOWER"
-   * and "NOT". */
+   * "CEIL", "ABS", "SGN", "SQRT", "LEN", "STR", "VAL", "TRIM", "UPPER",
+   * "LOWER", "HITS" and "NOT". */
   public final Token keyword;
   
   /** Constructs a Prefix from 'raw' if possible. Otherwise, annotates 'raw'
@@ -10,10 +10,22 @@ import java.util.*;
 /** Parses a Crazon assembler file and represents the results. */
 public class Assembler {
   /** Constructs an Assembler and parses a Crazon assembler file from 'in'.
+   * The program is optimised if 'OPTIMISE' is 'true'.
    * @throws IOException if 'in' does.
    * @throws SyntaxException when a syntax error is detected.
    */
   public Assembler(Reader in) throws IOException, SyntaxException {
+    this(in, OPTIMISE);
+  }
+
+  /** Constructs an Assembler and parses a Crazon assembler file from 'in'.
+   * @param optimise 'true' to pass the program through an Optimiser, or
+   * 'false' to leave it as assembled.
+   * @throws IOException if 'in' does.
+   * @throws SyntaxException when a syntax error is detected.
+   */
+  public Assembler(Reader in, boolean optimise)
+  throws IOException, SyntaxException {
     // Initialise reader state.
     this.in = in;
     this.lineNum = 1;
@@ -25,9 +37,10 @@ public class Assembler {
     this.instructions = new Instruction[16];
     this.instructionsUsed = 0;
     this.instructionsFilled = 0;
+    Value.Func main;
     try {
       // Parse the main program.
-      this.main = this.parseFunctionBody(0, 0, "<main>");
+      main = this.parseFunctionBody(0, 0, "<main>");
       this.append(END);
       // Parse the function definitions.
       while (this.word!=null) {
@@ -40,6 +53,23 @@ public class Assembler {
     } catch (SyntaxException e) {
       throw new SyntaxException(e.getMessage() + " at line " + this.lineNum);
     }
+    // Build the literal tables now that all their pairs have been added.
+    for (int i=0; i<this.instructionsUsed; i++) {
+      if (this.instructions[i] instanceof LiteralTable)
+        ((LiteralTable)this.instructions[i]).finish();
+    }
+    if (optimise) {
+      final Optimiser optimiser = new Optimiser(
+        this.instructions, this.instructionsUsed,
+        main,
+        this.globalValues
+      );
+      this.instructions = optimiser.getInstructions();
+      this.instructionsUsed = this.instructions.length;
+      this.instructionsFilled = this.instructions.length;
+      main = optimiser.main;
+    }
+    this.main = main;
   }
 
   /* New API. */
@@ -84,6 +114,10 @@ public class Assembler {
   /** The main program as a Value.Func. */
   public final Value.Func main;
 
+  /** 'true' if the Assembler should optimise programs by default. This is
+   * the case unless the system property "crazon.optimise" is "false". */
+  public static final boolean OPTIMISE = optimiseByDefault();
+
   /* Private. */
 
   /** The Reader passed to the constructor. */
@@ -224,6 +258,104 @@ public class Assembler {
     this.allocate().fill(instruction);
   }
 
+  /** Returns the Instruction 'n' places before the end of 'instructions', or
+   * 'null' if it is before 'runStart'. */
+  private Instruction previous(int n, int runStart) {
+    final int index = this.instructionsUsed - n;
+    return index>=runStart ? this.instructions[index] : null;
+  }
+
+  /** Removes the last Instruction from 'instructions'. */
+  private void unappend() {
+    this.instructions[--this.instructionsUsed] = null;
+    this.instructionsFilled--;
+  }
+
+  /** Appends 'instruction', first combining it with the Instructions before it
+   * into a superinstruction if they form one of the sequences that the
+   * compiler commonly generates. A superinstruction does the work of several
+   * Instructions with one dispatch and without passing the intermediate Values
+   * through the stack. Only Instructions at or after 'runStart' are combined,
+   * so that no jump target is lost. Stack accounting is done by the caller on
+   * the original Instructions, and remains valid because a superinstruction
+   * pops and pushes the same net number of Values as the sequence it replaces.
+   */
+  private void appendFused(Instruction instruction, int runStart) {
+    final Instruction prev1 = this.previous(1, runStart);
+    final Instruction prev2 = this.previous(2, runStart);
+    if (instruction instanceof Get && prev1 instanceof Constant) {
+      // "LLOAD(b) <key> GET", possibly preceded by "LSTORE(a) ;". The
+      // LStoreLLoad is split again, whatever 'a' and 'b' are, so that the
+      // LStore can begin a fast entry point (see 'makeFunc()').
+      LLoad load = null;
+      LStore store = null;
+      if (prev2 instanceof LLoad) {
+        load = (LLoad)prev2;
+      } else if (prev2 instanceof LStoreLLoad) {
+        load = ((LStoreLLoad)prev2).load;
+        store = ((LStoreLLoad)prev2).store;
+      }
+      if (load!=null) {
+        this.unappend(); this.unappend();
+        if (store!=null) this.append(store);
+        this.append(new LLoadGetConst(load, (Constant)prev1));
+        return;
+      }
+      // "LOAD(name) <key> GET".
+      if (prev2 instanceof Load) {
+        this.unappend(); this.unappend();
+        this.append(new LoadGetConst((Load)prev2, (Constant)prev1));
+        return;
+      }
+      // "<key> GET".
+      this.unappend();
+      this.append(new GetConst((Constant)prev1));
+      return;
+    } else if (instruction instanceof Contains && prev1 instanceof Constant) {
+      // "<key> CONTAINS".
+      this.unappend();
+      this.append(new ContainsConst((Constant)prev1));
+      return;
+    } else if (instruction instanceof Add && prev1 instanceof Constant) {
+      // "<constant> +".
+      this.unappend();
+      this.append(new AddConst((Constant)prev1));
+      return;
+    } else if (
+      instruction instanceof LStore && prev1 instanceof LLoadGetConst
+    ) {
+      // "LLOAD(name) <key> GET LSTORE(name)".
+      this.unappend();
+      this.append(
+        new LLoadGetConstLStore((LLoadGetConst)prev1, (LStore)instruction)
+      );
+      return;
+    } else if (
+      instruction instanceof Put &&
+      prev1 instanceof Constant && prev2 instanceof Constant
+    ) {
+      // "TABLE <key> <value> PUT", possibly preceded by more constant pairs.
+      final Instruction prev3 = this.previous(3, runStart);
+      final Constant key = (Constant)prev2, value = (Constant)prev1;
+      if (prev3 instanceof Tab && key.v.type<=5) {
+        this.unappend(); this.unappend(); this.unappend();
+        this.append(new LiteralTable(key, value));
+        return;
+      }
+      if (prev3 instanceof LiteralTable && ((LiteralTable)prev3).canAdd(key)) {
+        this.unappend(); this.unappend();
+        ((LiteralTable)prev3).add(key, value);
+        return;
+      }
+    } else if (instruction instanceof LLoad && prev1 instanceof LStore) {
+      // "LSTORE(a) ; LLOAD(b)", for any local variables 'a' and 'b'.
+      this.unappend();
+      this.append(new LStoreLLoad((LStore)prev1, (LLoad)instruction));
+      return;
+    }
+    this.append(instruction);
+  }
+
   /** Parses the portion of the input corresponding to a single function body,
    * and returns it as a Value.Func.
    * @param entrySP the number of items that will be on the arithmetic stack on
@@ -246,21 +378,97 @@ public class Assembler {
     if (this.instructionsUsed!=this.instructionsFilled)
       throw new RuntimeException("Used != Filled");
     final int endPC = this.instructionsUsed;
+    return makeFunc(
+      this.instructions,
+      startPC, endPC,
+      localMappings.size(),
+      entrySP,
+      originalName
+    );
+  }
+
+  /** Constructs a Value.Func for a function body, working out its stack
+   * requirements and its fast entry point (see 'Value.Func.arity'). Also used
+   * by the Optimiser when it has rewritten a function body.
+   * @param instructions the array containing the function body.
+   * @param startPC the index of the first Instruction of the body.
+   * @param endPC the index just after the last Instruction of the body.
+   * @param numLocals the number of local variables used by the body.
+   * @param entrySP the number of items that will be on the arithmetic stack on
+   * entry to the function body.
+   * @param originalName the name under which the function was defined.
+   */
+  static Value.Func makeFunc(
+    Instruction[] instructions,
+    int startPC, int endPC,
+    int numLocals,
+    int entrySP,
+    String originalName
+  ) {
     // Work out the stack requirements.
     int stackLen = 0, sp = entrySP;
     for (int i=startPC; i<endPC; i++) {
-      sp -= this.instructions[i].pops;
-      sp += this.instructions[i].pushes;
+      sp -= instructions[i].pops;
+      sp += instructions[i].pushes;
       if (sp>stackLen) stackLen = sp;
     }
+    // Look for a fast entry point. The compiler generates "LSTORE(ARGS) ;
+    // LLOAD(ARGS) 0 GET LSTORE(x) ; ...", which 'appendFused()' has turned
+    // into an LStore and LLoadGetConstLStores.
+    int arity = -1, fastPC = -1;
+    boolean readsArgs = true;
+    if (
+      startPC<endPC &&
+      instructions[startPC] instanceof LStore &&
+      ((LStore)instructions[startPC]).index==0
+    ) {
+      arity = 0;
+      while (
+        startPC+1+arity<endPC &&
+        isUnpack(instructions[startPC+1+arity], arity)
+      ) {
+        arity++;
+      }
+      fastPC = startPC+1+arity;
+      readsArgs = false;
+      for (int i=fastPC; i<endPC; i++) {
+        if (readsLocal0(instructions[i])) readsArgs = true;
+      }
+    }
     return new Value.Func(
-      startPC,
-      localMappings.size(),
+      startPC, endPC,
+      numLocals,
       stackLen,
-      originalName
+      originalName,
+      arity, fastPC, readsArgs
     );
   }
 
+  /** Returns 'true' if 'instruction' is equivalent to "LLOAD(ARGS) &lt;i&gt;
+   * GET LSTORE(x)" where "ARGS" is local variable '0' and "x" is local
+   * variable 'i+1'. */
+  private static boolean isUnpack(Instruction instruction, int i) {
+    if (!(instruction instanceof LLoadGetConstLStore)) return false;
+    final LLoadGetConstLStore unpack = (LLoadGetConstLStore)instruction;
+    return
+      unpack.loadIndex==0 && unpack.storeIndex==i+1 &&
+      unpack.key.type==Value.TYPE_NUM && ((Value.Num)unpack.key).v==i;
+  }
+
+  /** Returns 'true' if 'instruction' might read local variable '0'. */
+  private static boolean readsLocal0(Instruction instruction) {
+    if (instruction instanceof LLoad) {
+      return ((LLoad)instruction).index==0;
+    } else if (instruction instanceof LLoadGetConst) {
+      return ((LLoadGetConst)instruction).index==0;
+    } else if (instruction instanceof LLoadGetConstLStore) {
+      return ((LLoadGetConstLStore)instruction).loadIndex==0;
+    } else if (instruction instanceof LStoreLLoad) {
+      return ((LStoreLLoad)instruction).load.index==0;
+    }
+    return false;
+  }
+
   /** Parses a basic block. Parsing ends at one of the 'STOP_WORDS', at
    * "DEF(name)", or just after "RETURN" or "ERROR" or "BREAK".
    * @param entrySP the number of Values that will be on the arithmetic stack on
@@ -282,6 +490,9 @@ public class Assembler {
     final HashMap localMappings
   ) throws IOException, SyntaxException {
     int sp = entrySP;
+    // The start of the current straight-line run of Instructions, which no
+    // jump enters except at the start. Superinstructions must lie within it.
+    int runStart = this.instructionsUsed;
     while (!STOP_WORDS.contains(this.word) && !this.word.startsWith("DEF(")) {
       final char c = this.word.charAt(0);
       if ("IF".equals(this.word)) {
@@ -300,6 +511,7 @@ public class Assembler {
         final int endPC = this.instructionsUsed;
         ifSlot.fill(new If(elsePC));
         thenSlot.fill(new Goto(endPC));
+        runStart = this.instructionsUsed;
       } else if ("LOOP".equals(this.word)) {
         if (sp!=0) throw new SyntaxException(
           "Stack should be empty before executing LOOP"
@@ -320,6 +532,7 @@ public class Assembler {
         this.expect("ELSE");
         final int breakPC = this.instructionsUsed;
         slot.fill(new Loop(loopPC, elsePC, breakPC));
+        runStart = this.instructionsUsed;
       } else if ("FOR".equals(this.word)) {
         if (sp!=1) throw new SyntaxException(
           "Stack should contain 1 item (the table or string) before executing "+
@@ -337,6 +550,7 @@ public class Assembler {
         this.expect("ELSE");
         final int breakPC = this.instructionsUsed;
         slot.fill(new For(loopPC, elsePC, breakPC));
+        runStart = this.instructionsUsed;
       } else if (";".equals(this.word)) {
         if (sp!=0) throw new SyntaxException(
           "Stack should be empty before executing ;"
@@ -383,7 +597,7 @@ public class Assembler {
           );
         } else if (c>='0' && c<='9') { // Literal number.
           instruction = new Constant(
-            new Value.Num(Double.parseDouble(this.word)) // FIXME: use SSS.
+            Value.Num.valueOf(Double.parseDouble(this.word)) // FIXME: use SSS.
           );
         } else if (OPS.containsKey(this.word)) { // Arithmetic.
           instruction = (Instruction)OPS.get(this.word);
@@ -403,6 +617,15 @@ public class Assembler {
           final String name = this.extractParameter();
           final int index = this.getLocalIndex(name, localMappings);
           instruction = new LStore(index, name);
+        } else if (this.word.startsWith("CALL(")) { // Call with arguments.
+          final String n = this.extractParameter();
+          try {
+            instruction = new CallN(Integer.parseInt(n));
+          } catch (NumberFormatException e) {
+            throw new SyntaxException("Bad number of arguments in "+this.word);
+          }
+          if (((CallN)instruction).n<0)
+            throw new SyntaxException("Bad number of arguments in "+this.word);
         } else if (this.word.startsWith("SET(")) { // Set object attribute.
           instruction = new SetAttr(this.extractParameter());
         } else {
@@ -411,7 +634,7 @@ public class Assembler {
         sp -= instruction.pops;
         if (sp<0) throw new SyntaxException("Stack underflow");
         sp += instruction.pushes;
-        this.append(instruction);
+        this.appendFused(instruction, runStart);
         this.next();
       }
     }
@@ -446,7 +669,8 @@ public class Assembler {
     installOp(new Abs()); installOp(new Sqrt());
     installOp(new Neg()); installOp(new Not());
     installOp(new Round()); installOp(new Floor()); installOp(new Ceil());
-    installOp(new Len());
+    installOp(new Len()); installOp(new Nth());
+    installOp(new Slice()); installOp(new Range());
     installOp(new Mul()); installOp(new Div()); installOp(new Mod());
     installOp(new Add()); installOp(new Sub());
     installOp(new Min()); installOp(new Max());
@@ -459,6 +683,17 @@ public class Assembler {
     installOp(new Spr()); installOp(new org.sc3d.apt.crazon.vm.op.Window());
     installOp(new Drop()); installOp(new DropTable());
     installOp(new Dump()); installOp(new Wait());
+    installOp(new Hits());
+  }
+
+  /** Returns the value of 'OPTIMISE', which is 'true' if the system property
+   * cannot be read (e.g. in an applet). */
+  private static boolean optimiseByDefault() {
+    try {
+      return !"false".equals(System.getProperty("crazon.optimise"));
+    } catch (SecurityException e) {
+      return true;
+    }
   }
 
   /** Extracts "name" from 'this.word' if is of the form "OP(name)".
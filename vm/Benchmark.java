@@ -0,0 +1,227 @@
+package org.sc3d.apt.crazon.vm;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+
+/** Microbenchmarks for the virtual machine. Each benchmark is a short
+ * assembler program in the style of the examples, which is run without a
+ * platform. The time taken and, where the Java virtual machine can report it,
+ * the number of bytes allocated are printed per frame, where a frame is one
+ * iteration of the program's outermost loop.
+ * <p>
+ * Usage: java org.sc3d.apt.crazon.vm.Benchmark [&lt;frames&gt;]
+ */
+public class Benchmark {
+  /** Runs all the benchmarks. */
+  public static void main(String[] args) throws Exception {
+    final int frames = args.length>0 ? Integer.parseInt(args[0]) : 2000;
+    run("numeric", NUMERIC, frames);
+    run("get list", tables(GET, 0), frames);
+    run("get offset", tables(GET, 1), frames);
+    run("put list", tables(PUT, 0), frames);
+    run("put offset", tables(PUT, 1), frames);
+    run("for list", tables(FOR, 0), frames);
+    run("for offset", tables(FOR, 1), frames);
+    run("strings", STRINGS, frames);
+    run("calls", calls(TABLE_CALL), frames);
+    run("calls (n)", calls(STACK_CALL), frames);
+  }
+
+  /* New API. */
+
+  /** A benchmark modelled on the boulder scan and the fireworks of
+   * "examples/maze.crz". Each frame visits every square of a 16x16 map and
+   * evaluates the arithmetic and comparisons that decide whether a boulder can
+   * fall, then moves a spark. Everything is held in local variables. */
+  public static final String NUMERIC =
+    "0 LSTORE(frame) ; 0 LSTORE(count) ;\n"+
+    "5 LSTORE(manX) ; 7 LSTORE(manY) ; 1 LSTORE(dx) ; 0 LSTORE(dy) ;\n"+
+    "3.5 LSTORE(sparkX) ; 0 LSTORE(sparkDX) ;\n"+
+    "LOOP LLOAD(frame) LOAD(_frames) < WHILE ;\n"+
+    "  0 LSTORE(y) ;\n"+
+    "  LOOP LLOAD(y) 16 < WHILE ;\n"+
+    "    0 LSTORE(x) ;\n"+
+    "    LOOP LLOAD(x) 16 < WHILE ;\n"+
+    "      LLOAD(x) 1 - LSTORE(destX) ;\n"+
+    "        LLOAD(destX) LLOAD(manX) LLOAD(dx) - !=\n"+
+    "        LLOAD(destX) LLOAD(manX) != AND\n"+
+    "        LLOAD(y) 1 + LLOAD(manY) !=\n"+
+    "        LLOAD(y) LLOAD(manY) != AND OR\n"+
+    "      IF ; LLOAD(count) 1 + LSTORE(count) ; THEN ; ELSE ;\n"+
+    "      LLOAD(x) 1 + LSTORE(x) ;\n"+
+    "    NEXT ; ELSE ;\n"+
+    "    LLOAD(y) 1 + LSTORE(y) ;\n"+
+    "  NEXT ; ELSE ;\n"+
+    "  LLOAD(sparkDX) 0.01 + LSTORE(sparkDX) ;\n"+
+    "  LLOAD(sparkX) LLOAD(sparkDX) + LSTORE(sparkX) ;\n"+
+    "  LLOAD(frame) 1 + LSTORE(frame) ;\n"+
+    "NEXT ; ELSE ;\n"+
+    "LLOAD(count) STORE(_result) ;\n";
+
+  /** The body of a table benchmark (see 'tables()') which reads every
+   * element of 't' with "GET". */
+  public static final String GET =
+    "  0 LSTORE(i) ;\n"+
+    "  LOOP LLOAD(i) 256 < WHILE ;\n"+
+    "    LLOAD(sum) LLOAD(t) LLOAD(i) LLOAD(base) + GET + LSTORE(sum) ;\n"+
+    "    LLOAD(i) 1 + LSTORE(i) ;\n"+
+    "  NEXT ; ELSE ;\n";
+
+  /** The body of a table benchmark (see 'tables()') which builds a copy of
+   * 't' with "PUT", starting from an empty table. */
+  public static final String PUT =
+    "  TABLE LSTORE(u) ; 0 LSTORE(i) ;\n"+
+    "  LOOP LLOAD(i) 256 < WHILE ;\n"+
+    "    LLOAD(u) LLOAD(i) LLOAD(base) + LLOAD(i) PUT LSTORE(u) ;\n"+
+    "    LLOAD(i) 1 + LSTORE(i) ;\n"+
+    "  NEXT ; ELSE ;\n"+
+    "  LLOAD(sum) LLOAD(u) LEN + LSTORE(sum) ;\n";
+
+  /** The body of a table benchmark (see 'tables()') which reads every
+   * element of 't' with "FOR". */
+  public static final String FOR =
+    "  LLOAD(t) FOR LSTORE(v) DROP ;\n"+
+    "    LLOAD(sum) LLOAD(v) + LSTORE(sum) ;\n"+
+    "  NEXT ; ELSE ;\n";
+
+  /** A benchmark which builds a string of 256 characters one at a time with
+   * "+", as a game might build a line of a text map, and then reads every
+   * character with "FOR". */
+  public static final String STRINGS =
+    "0 LSTORE(frame) ; 0 LSTORE(sum) ;\n"+
+    "LOOP LLOAD(frame) LOAD(_frames) < WHILE ;\n"+
+    "  \"\" LSTORE(s) ; 0 LSTORE(i) ;\n"+
+    "  LOOP LLOAD(i) 256 < WHILE ;\n"+
+    "    LLOAD(s) \"#\" + LSTORE(s) ;\n"+
+    "    LLOAD(i) 1 + LSTORE(i) ;\n"+
+    "  NEXT ; ELSE ;\n"+
+    "  LLOAD(s) FOR LSTORE(c) DROP ;\n"+
+    "    LLOAD(c) \"#\" == IF ; LLOAD(sum) 1 + LSTORE(sum) ; THEN ; ELSE ;\n"+
+    "  NEXT ; ELSE ;\n"+
+    "  LLOAD(frame) 1 + LSTORE(frame) ;\n"+
+    "NEXT ; ELSE ;\n"+
+    "LLOAD(sum) STORE(_result) ;\n";
+
+  /** Returns a benchmark which calls a small function 256 times per frame, as
+   * a game might call a helper for each square of a map. 'call' is the code
+   * that calls the function "LOAD(square)" with argument "LLOAD(i)". */
+  public static String calls(String call) {
+    return
+      "0 LSTORE(frame) ; 0 LSTORE(sum) ;\n"+
+      "LOOP LLOAD(frame) LOAD(_frames) < WHILE ;\n"+
+      "  0 LSTORE(i) ;\n"+
+      "  LOOP LLOAD(i) 256 < WHILE ;\n"+
+      "    LLOAD(sum) LOAD(square) "+call+" + LSTORE(sum) ;\n"+
+      "    LLOAD(i) 1 + LSTORE(i) ;\n"+
+      "  NEXT ; ELSE ;\n"+
+      "  LLOAD(frame) 1 + LSTORE(frame) ;\n"+
+      "NEXT ; ELSE ;\n"+
+      "LLOAD(sum) STORE(_result) ;\n"+
+      "DEF(square)\n"+
+      "LSTORE(ARGS) ; LLOAD(ARGS) 0 GET LSTORE(x) ;\n"+
+      "LLOAD(x) LLOAD(x) * RETURN\n";
+  }
+
+  /** The calling code for 'calls()' that passes the arguments in a table. */
+  public static final String TABLE_CALL = "TABLE 0 LLOAD(i) PUT CALL";
+
+  /** The calling code for 'calls()' that passes the arguments on the stack.
+   */
+  public static final String STACK_CALL = "LLOAD(i) CALL(1)";
+
+  /** Returns a benchmark which constructs a table 't' of 256 elements, whose
+   * keys are the integers from 'base' to 'base+255', and then executes 'body'
+   * once per frame. If 'base' is '0', the keys are the Indexes from '0' to
+   * '255', and the Table uses its array representation; otherwise it is a
+   * treap. */
+  public static String tables(String body, int base) {
+    return
+      "0 LSTORE(frame) ; 0 LSTORE(sum) ; "+base+" LSTORE(base) ;\n"+
+      "TABLE LSTORE(t) ; 0 LSTORE(i) ;\n"+
+      "LOOP LLOAD(i) 256 < WHILE ;\n"+
+      "  LLOAD(t) LLOAD(i) LLOAD(base) + LLOAD(i) PUT LSTORE(t) ;\n"+
+      "  LLOAD(i) 1 + LSTORE(i) ;\n"+
+      "NEXT ; ELSE ;\n"+
+      "LOOP LLOAD(frame) LOAD(_frames) < WHILE ;\n"+
+      body+
+      "  LLOAD(frame) 1 + LSTORE(frame) ;\n"+
+      "NEXT ; ELSE ;\n"+
+      "LLOAD(sum) STORE(_result) ;\n";
+  }
+
+  /** Assembles 'program', runs it with the global variable "_frames" set to
+   * 'frames', and prints the cost per frame. */
+  public static void run(String name, String program, int frames)
+  throws Exception {
+    final Assembler assembler = new Assembler(new StringReader(program));
+    // Run once to warm up, and again to measure.
+    execute(assembler, frames);
+    final long bytes0 = allocatedBytes();
+    final long time0 = System.currentTimeMillis();
+    execute(assembler, frames);
+    final long time1 = System.currentTimeMillis();
+    final long bytes1 = allocatedBytes();
+    System.out.println(
+      name+": "+((time1-time0)*1000000L/frames)+" ns/frame, "+
+      (bytes0<0 ? "allocation unknown" : ((bytes1-bytes0)/frames)+
+      " bytes/frame")
+    );
+  }
+
+  /* Private. */
+
+  /** Runs the program assembled by 'assembler' to completion. */
+  private static void execute(Assembler assembler, int frames)
+  throws CrazonRuntimeException {
+    final InterpreterState state = new InterpreterState(
+      assembler.getInstructions(),
+      assembler.getGlobalValues(),
+      assembler.getGlobalNames(),
+      null
+    );
+    final Integer framesVar =
+      (Integer)assembler.getGlobalMappings().get("_frames");
+    if (framesVar!=null) {
+      state.globals[framesVar.intValue()] = new Value.Num(frames);
+    }
+    state.pushFrame(
+      assembler.main.startPC,
+      assembler.main.numLocals,
+      assembler.main.stackLen
+    );
+    state.jit = new Jit();
+    try {
+      while (true) {
+        final InterpreterState.Call frame = state.frame;
+        if (frame.code==null || !frame.code.run(state)) {
+          state.instructions[frame.pc++].execute(state);
+        }
+      }
+    } catch (Instruction.EndException e) {}
+  }
+
+  /** Returns the number of bytes allocated so far by the current thread, or
+   * '-1' if the Java virtual machine does not provide that information. The
+   * relevant API is not part of the Java platform, so it is called by
+   * reflection. */
+  private static long allocatedBytes() {
+    try {
+      final Object bean =
+        Class.forName("java.lang.management.ManagementFactory")
+        .getMethod("getThreadMXBean", new Class[0])
+        .invoke(null, new Object[0]);
+      final Object id =
+        Thread.class.getMethod("getId", new Class[0])
+        .invoke(Thread.currentThread(), new Object[0]);
+      final Method method =
+        Class.forName("com.sun.management.ThreadMXBean")
+        .getMethod("getThreadAllocatedBytes", new Class[] {Long.TYPE});
+      return ((Long)method.invoke(bean, new Object[] {id})).longValue();
+    } catch (Throwable e) {
+      return -1;
+    }
+  }
+}
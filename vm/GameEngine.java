@@ -67,8 +67,7 @@ public class GameEngine {
       assembler.getGlobalNames(),
       platform
     );
-    state.frame = new InterpreterState.Call(
-      state.frame,
+    state.pushFrame(
       assembler.main.startPC,
       assembler.main.numLocals,
       assembler.main.stackLen
@@ -101,10 +100,14 @@ public class GameEngine {
     }
     br.close();
     res.close();
+    state.jit = new Jit();
     // Execute instructions.
     try {
       while (!platform.mustQuit) {
-        state.instructions[state.frame.pc++].execute(state);
+        final InterpreterState.Call frame = state.frame;
+        if (frame.code==null || !frame.code.run(state)) {
+          state.instructions[frame.pc++].execute(state);
+        }
       }
     } catch (Instruction.EndException e) {}
   }
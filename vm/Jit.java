@@ -0,0 +1,491 @@
+package org.sc3d.apt.crazon.vm;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+import org.sc3d.apt.crazon.vm.op.*;
+
+import java.lang.reflect.*;
+
+/** The just-in-time compiler, which is the second execution tier of the
+ * virtual machine. It counts the calls to each function, and when a function
+ * has been called 'HOT_CALLS' times it translates the function body into a
+ * Java class, which it loads and instantiates as a CompiledCode.
+ * <p>
+ * The generated class has a 'run()' method which executes the Instructions in
+ * order. Straight-line code falls through from one Instruction to the next,
+ * and a jump is a 'tableswitch' on the program counter, or a branch if it is
+ * forwards. The commonest Instructions ("LLOAD", "LSTORE", constants, "IF",
+ * "GOTO" and the quickened arithmetic and comparisons) are translated into
+ * Java bytecode. Every other Instruction is executed by calling the
+ * 'execute()' method of whatever Instruction is currently at its program
+ * counter in 'state.instructions', as is a quickened Instruction whose
+ * operands turn out not to be numbers. The generated code therefore keeps no
+ * reference to the Instructions, and sees any replacement made by quickening
+ * or de-optimisation (see 'InterpreterState.replaceInstruction()').
+ * <p>
+ * If a function body is too long, or if its class cannot be generated or
+ * loaded (for example because the security manager forbids it), the function
+ * is interpreted instead.
+ * <p>
+ * A Jit remembers the CompiledCode for each function, and must therefore only
+ * be used with one program. It may be shared by copies of an InterpreterState.
+ */
+public class Jit extends AbstractJit {
+  /** Constructs a Jit with no CompiledCode. */
+  public Jit() {
+    this.loader = null;
+    this.counts = null;
+    this.codes = null;
+    this.classCount = 0;
+  }
+
+  /* New API. */
+
+  /** The number of calls after which a function is compiled. */
+  public static final int HOT_CALLS = 500;
+
+  /** The longest function body that will be compiled, in Instructions. The
+   * generated code is at most about 70 bytes per Instruction, and this limit
+   * keeps it short enough for the Java virtual machine to compile it in turn.
+   */
+  public static final int MAX_INSTRUCTIONS = 200;
+
+  /** Translates the body of 'f' into a CompiledCode.
+   * @return the CompiledCode, or 'null' if it could not be compiled.
+   */
+  public CompiledCode compile(Value.Func f, Instruction[] instructions) {
+    final int n = f.endPC - f.startPC;
+    if (n<=0 || n>MAX_INSTRUCTIONS) return null;
+    try {
+      if (this.loader==null) this.loader = new Loader(Jit.class.getClassLoader());
+      final String className = PACKAGE+"Compiled"+(this.classCount++);
+      final byte[] classFile = generate(className, f, instructions);
+      final Class c = this.loader.define(className.replace('/', '.'), classFile);
+      final Constructor con = c.getConstructor(
+        new Class[] {Value.Func.class, Instruction[].class}
+      );
+      return (CompiledCode)con.newInstance(new Object[] {f, instructions});
+    } catch (Throwable e) {
+      // 'SecurityException', 'LinkageError', 'IllegalStateException' from the
+      // ClassFileWriter, and so on. Fall back to the interpreter.
+      return null;
+    }
+  }
+
+  /* Override things in AbstractJit. */
+
+  /** Counts the call, and compiles the body of 'f' on the 'HOT_CALLS'th call.
+   * Returns the CompiledCode if it exists. */
+  public CompiledCode lookup(Value.Func f, InterpreterState state) {
+    if (this.counts==null) {
+      this.counts = new int[state.instructions.length];
+      this.codes = new CompiledCode[state.instructions.length];
+    }
+    final int count = this.counts[f.startPC];
+    if (count<HOT_CALLS) {
+      this.counts[f.startPC] = count+1;
+      return null;
+    }
+    if (count==HOT_CALLS) {
+      this.counts[f.startPC] = count+1; // Never try again.
+      this.codes[f.startPC] = this.compile(f, state.instructions);
+    }
+    return this.codes[f.startPC];
+  }
+
+  /* Private. */
+
+  /** The ClassLoader used to define the generated classes, or 'null' if none
+   * has been needed yet. */
+  private Loader loader;
+
+  /** The number of calls so far of the function starting at each program
+   * counter, or 'null' before the first call. */
+  private int[] counts;
+
+  /** The CompiledCode for the function starting at each program counter, or
+   * 'null' if it has not been compiled. */
+  private CompiledCode[] codes;
+
+  /** The number of classes generated so far, used to make unique names. */
+  private int classCount;
+
+  /** The package of the generated classes, in internal form. */
+  private static final String PACKAGE = "org/sc3d/apt/crazon/vm/jit/";
+
+  private static final String
+    STATE = "org/sc3d/apt/crazon/vm/state/InterpreterState",
+    CALL = "org/sc3d/apt/crazon/vm/state/InterpreterState$Call",
+    PLATFORM = "org/sc3d/apt/crazon/vm/state/AbstractPlatform",
+    COMPILED = "org/sc3d/apt/crazon/vm/state/CompiledCode",
+    FUNC = "org/sc3d/apt/crazon/vm/state/Value$Func",
+    VALUE = "org/sc3d/apt/crazon/vm/state/Value",
+    BOOL = "org/sc3d/apt/crazon/vm/state/Value$Bool",
+    INSTRUCTION = "org/sc3d/apt/crazon/vm/state/Instruction",
+    CONSTANT = "org/sc3d/apt/crazon/vm/op/Constant";
+
+  /** Returns the bytes of a class file defining a subclass of CompiledCode
+   * which executes the body of 'f', as it appears in 'instructions'. */
+  private static byte[] generate(
+    String className,
+    Value.Func f,
+    Instruction[] instructions
+  ) {
+    final int n = f.endPC - f.startPC;
+    final ClassFileWriter cfw = new ClassFileWriter(className, COMPILED);
+    // A field for the Value of each Constant.
+    final int[] constants = new int[n];
+    for (int i=0; i<n; i++) {
+      if (!(instructions[f.startPC+i] instanceof Constant)) continue;
+      cfw.addField(ClassFileWriter.ACC_PRIVATE, "c"+i, "L"+VALUE+";");
+      constants[i] = cfw.fieldRef(className, "c"+i, "L"+VALUE+";");
+    }
+    // The constructor copies the Values of the Constants into the fields.
+    final ClassFileWriter.Code init = cfw.addMethod(
+      ClassFileWriter.ACC_PUBLIC,
+      "<init>", "(L"+FUNC+";[L"+INSTRUCTION+";)V"
+    );
+    init.maxStack = 3; init.maxLocals = 3;
+    init.op(ClassFileWriter.ALOAD_0);
+    init.op(ClassFileWriter.ALOAD_1);
+    init.op2(
+      ClassFileWriter.INVOKESPECIAL,
+      cfw.methodRef(COMPILED, "<init>", "(L"+FUNC+";)V")
+    );
+    for (int i=0; i<n; i++) {
+      if (constants[i]==0) continue;
+      init.op(ClassFileWriter.ALOAD_0);
+      init.op1(ClassFileWriter.ALOAD, 2);
+      init.pushInt(f.startPC+i);
+      init.op(ClassFileWriter.AALOAD);
+      init.op2(ClassFileWriter.CHECKCAST, cfw.classRef(CONSTANT));
+      init.op2(
+        ClassFileWriter.GETFIELD,
+        cfw.fieldRef(CONSTANT, "v", "L"+VALUE+";")
+      );
+      init.op2(ClassFileWriter.PUTFIELD, constants[i]);
+    }
+    init.op(ClassFileWriter.RETURN);
+    // The 'run()' method. Local 2 is the stack frame, local 3 the platform,
+    // local 4 a Value and locals 5 and 6 a double.
+    final Generator g = new Generator(cfw, f);
+    final ClassFileWriter.Code run = g.run;
+    run.op(ClassFileWriter.ALOAD_1);
+    run.op2(ClassFileWriter.GETFIELD, g.frameField);
+    run.op1(ClassFileWriter.ASTORE, 2);
+    run.op(ClassFileWriter.ALOAD_1);
+    run.op2(
+      ClassFileWriter.GETFIELD,
+      cfw.fieldRef(STATE, "platform", "L"+PLATFORM+";")
+    );
+    run.op1(ClassFileWriter.ASTORE, 3);
+    final ClassFileWriter.Label dispatch = run.newLabel();
+    final ClassFileWriter.Label interpret = run.newLabel();
+    // Return to the main loop if the game must quit.
+    run.mark(g.loop);
+    run.op1(ClassFileWriter.ALOAD, 3);
+    run.branch(ClassFileWriter.IFNULL, dispatch);
+    run.op1(ClassFileWriter.ALOAD, 3);
+    run.op2(
+      ClassFileWriter.GETFIELD,
+      cfw.fieldRef(PLATFORM, "mustQuit", "Z")
+    );
+    run.branch(ClassFileWriter.IFNE, g.exit);
+    // Jump to the Instruction at the program counter.
+    run.mark(dispatch);
+    run.op1(ClassFileWriter.ALOAD, 2);
+    run.op2(ClassFileWriter.GETFIELD, g.pcField);
+    run.tableSwitch(f.startPC, interpret, g.targets);
+    for (int i=0; i<n; i++) {
+      final int pc = f.startPC+i;
+      final Instruction instruction = instructions[pc];
+      run.mark(g.targets[i]);
+      // frame.pc = pc+1;
+      run.op1(ClassFileWriter.ALOAD, 2);
+      run.pushInt(pc+1);
+      run.op2(ClassFileWriter.PUTFIELD, g.pcField);
+      if (instruction instanceof Constant) {
+        // state.push(this.c<i>);
+        run.op(ClassFileWriter.ALOAD_1);
+        run.op(ClassFileWriter.ALOAD_0);
+        run.op2(ClassFileWriter.GETFIELD, constants[i]);
+        run.op2(
+          ClassFileWriter.INVOKEVIRTUAL,
+          cfw.methodRef(STATE, "push", "(L"+VALUE+";)V")
+        );
+      } else if (instruction instanceof LLoad) {
+        // state.pushLocal(index);
+        run.op(ClassFileWriter.ALOAD_1);
+        run.pushInt(((LLoad)instruction).index);
+        run.op2(
+          ClassFileWriter.INVOKEVIRTUAL,
+          cfw.methodRef(STATE, "pushLocal", "(I)V")
+        );
+      } else if (instruction instanceof LStore) {
+        // state.popLocal(index);
+        run.op(ClassFileWriter.ALOAD_1);
+        run.pushInt(((LStore)instruction).index);
+        run.op2(
+          ClassFileWriter.INVOKEVIRTUAL,
+          cfw.methodRef(STATE, "popLocal", "(I)V")
+        );
+      } else if (instruction instanceof Goto) {
+        g.jump(pc, ((Goto)instruction).targetPC);
+      } else if (instruction instanceof If) {
+        g.ifFalse(pc, ((If)instruction).targetPC);
+      } else if (g.numNum(pc, instruction)) {
+        // Done.
+      } else {
+        g.execute(pc);
+      }
+    }
+    run.branch(ClassFileWriter.GOTO, g.loop);
+    run.mark(g.exit);
+    run.pushInt(1);
+    run.op(ClassFileWriter.IRETURN);
+    run.mark(interpret);
+    run.pushInt(0);
+    run.op(ClassFileWriter.IRETURN);
+    return cfw.toByteArray();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Emits the parts of the 'run()' method of a generated class that are
+   * needed more than once. */
+  private static final class Generator {
+    /** Constructs a Generator, and adds the 'run()' method to 'cfw'. */
+    public Generator(ClassFileWriter cfw, Value.Func f) {
+      this.cfw = cfw;
+      this.startPC = f.startPC; this.endPC = f.endPC;
+      this.run = cfw.addMethod(
+        ClassFileWriter.ACC_PUBLIC, "run", "(L"+STATE+";)Z"
+      );
+      this.run.maxStack = 6; this.run.maxLocals = 7;
+      this.frameField = cfw.fieldRef(STATE, "frame", "L"+CALL+";");
+      this.pcField = cfw.fieldRef(CALL, "pc", "I");
+      this.loop = this.run.newLabel();
+      this.exit = this.run.newLabel();
+      this.targets = new ClassFileWriter.Label[this.endPC-this.startPC];
+      for (int i=0; i<this.targets.length; i++) {
+        this.targets[i] = this.run.newLabel();
+      }
+    }
+
+    public final ClassFileWriter cfw;
+    public final int startPC, endPC;
+    public final ClassFileWriter.Code run;
+    public final int frameField, pcField;
+
+    /** The top of the loop, which checks whether the game must quit and then
+     * dispatches on 'frame.pc'. */
+    public final ClassFileWriter.Label loop;
+
+    /** Returns 'true'. */
+    public final ClassFileWriter.Label exit;
+
+    /** The code for each Instruction. */
+    public final ClassFileWriter.Label[] targets;
+
+    /** Emits code to continue at 'targetPC', from the Instruction at 'pc'.
+     * A forward jump within the function body is a branch. Any other jump
+     * goes through 'loop', so that a loop cannot prevent the game from
+     * quitting. */
+    public void jump(int pc, int targetPC) {
+      if (targetPC>pc && targetPC<this.endPC) {
+        this.run.branch(ClassFileWriter.GOTO, this.targets[targetPC-this.startPC]);
+      } else {
+        this.run.op1(ClassFileWriter.ALOAD, 2);
+        this.run.pushInt(targetPC);
+        this.run.op2(ClassFileWriter.PUTFIELD, this.pcField);
+        this.run.branch(ClassFileWriter.GOTO, this.loop);
+      }
+    }
+
+    /** Emits code for "IF". 'TRUE' falls through, 'FALSE' jumps to
+     * 'targetPC', and anything else is left for 'If.execute()' to report. */
+    public void ifFalse(int pc, int targetPC) {
+      final ClassFileWriter.Code run = this.run;
+      final ClassFileWriter.Label isTrue = run.newLabel();
+      final ClassFileWriter.Label slow = run.newLabel();
+      final ClassFileWriter.Label next = run.newLabel();
+      final int sp = this.cfw.fieldRef(CALL, "sp", "I");
+      final int bool = this.cfw.classRef(BOOL);
+      // Value v = frame.stack[frame.sp-1];
+      run.op1(ClassFileWriter.ALOAD, 2);
+      run.op2(
+        ClassFileWriter.GETFIELD,
+        this.cfw.fieldRef(CALL, "stack", "[L"+VALUE+";")
+      );
+      run.op1(ClassFileWriter.ALOAD, 2);
+      run.op2(ClassFileWriter.GETFIELD, sp);
+      run.pushInt(1);
+      run.op(ClassFileWriter.ISUB);
+      run.op(ClassFileWriter.AALOAD);
+      run.op1(ClassFileWriter.ASTORE, 4);
+      // if (v==TRUE) goto isTrue; if (v!=FALSE) goto slow;
+      run.op1(ClassFileWriter.ALOAD, 4);
+      run.op2(
+        ClassFileWriter.GETSTATIC,
+        this.cfw.fieldRef(BOOL, "TRUE", "L"+BOOL+";")
+      );
+      run.branch(ClassFileWriter.IF_ACMPEQ, isTrue);
+      run.op1(ClassFileWriter.ALOAD, 4);
+      run.op2(
+        ClassFileWriter.GETSTATIC,
+        this.cfw.fieldRef(BOOL, "FALSE", "L"+BOOL+";")
+      );
+      run.branch(ClassFileWriter.IF_ACMPNE, slow);
+      this.popValue(sp);
+      this.jump(pc, targetPC);
+      run.mark(isTrue);
+      this.popValue(sp);
+      run.branch(ClassFileWriter.GOTO, next);
+      run.mark(slow);
+      this.execute(pc);
+      run.mark(next);
+    }
+
+    /** If 'instruction' is one of the quickened arithmetic or comparison
+     * Instructions, emits code for it and returns 'true'. Otherwise emits
+     * nothing and returns 'false'. The emitted code checks that both operands
+     * are numbers, and if not leaves the Instruction to de-optimise itself.
+     */
+    public boolean numNum(int pc, Instruction instruction) {
+      // The arithmetic opcode, or the comparison and the branch that skips
+      // pushing 'TRUE'.
+      int arith = -1, cmp = -1, skip = -1;
+      if (instruction instanceof AddNumNum) {
+        arith = ClassFileWriter.DADD;
+      } else if (instruction instanceof SubNumNum) {
+        arith = ClassFileWriter.DSUB;
+      } else if (instruction instanceof MulNumNum) {
+        arith = ClassFileWriter.DMUL;
+      } else if (instruction instanceof LTNumNum) {
+        cmp = ClassFileWriter.DCMPG; skip = ClassFileWriter.IFGE;
+      } else if (instruction instanceof LENumNum) {
+        cmp = ClassFileWriter.DCMPG; skip = ClassFileWriter.IFGT;
+      } else if (instruction instanceof GTNumNum) {
+        cmp = ClassFileWriter.DCMPL; skip = ClassFileWriter.IFLE;
+      } else if (instruction instanceof GENumNum) {
+        cmp = ClassFileWriter.DCMPL; skip = ClassFileWriter.IFLT;
+      } else if (instruction instanceof EQNumNum) {
+        cmp = ClassFileWriter.DCMPL; skip = ClassFileWriter.IFNE;
+      } else if (instruction instanceof NENumNum) {
+        cmp = ClassFileWriter.DCMPL; skip = ClassFileWriter.IFEQ;
+      } else {
+        return false;
+      }
+      final ClassFileWriter.Code run = this.run;
+      final ClassFileWriter.Label slow = run.newLabel();
+      final ClassFileWriter.Label next = run.newLabel();
+      final int isNum = this.cfw.methodRef(STATE, "isNum", "(I)Z");
+      final int popNum = this.cfw.methodRef(STATE, "popNum", "()D");
+      // if (!state.isNum(0) || !state.isNum(1)) goto slow;
+      run.op(ClassFileWriter.ALOAD_1);
+      run.pushInt(0);
+      run.op2(ClassFileWriter.INVOKEVIRTUAL, isNum);
+      run.branch(ClassFileWriter.IFEQ, slow);
+      run.op(ClassFileWriter.ALOAD_1);
+      run.pushInt(1);
+      run.op2(ClassFileWriter.INVOKEVIRTUAL, isNum);
+      run.branch(ClassFileWriter.IFEQ, slow);
+      // double y = state.popNum(); then push 'state' and 'x'.
+      run.op(ClassFileWriter.ALOAD_1);
+      run.op2(ClassFileWriter.INVOKEVIRTUAL, popNum);
+      run.op1(ClassFileWriter.DSTORE, 5);
+      run.op(ClassFileWriter.ALOAD_1);
+      run.op(ClassFileWriter.ALOAD_1);
+      run.op2(ClassFileWriter.INVOKEVIRTUAL, popNum);
+      run.op1(ClassFileWriter.DLOAD, 5);
+      if (arith!=-1) {
+        // state.pushNum(x <op> y);
+        run.op(arith);
+        run.op2(
+          ClassFileWriter.INVOKEVIRTUAL,
+          this.cfw.methodRef(STATE, "pushNum", "(D)V")
+        );
+      } else {
+        // state.push(x <op> y ? TRUE : FALSE);
+        final ClassFileWriter.Label isFalse = run.newLabel();
+        final ClassFileWriter.Label push = run.newLabel();
+        run.op(cmp);
+        run.branch(skip, isFalse);
+        run.op2(
+          ClassFileWriter.GETSTATIC,
+          this.cfw.fieldRef(BOOL, "TRUE", "L"+BOOL+";")
+        );
+        run.branch(ClassFileWriter.GOTO, push);
+        run.mark(isFalse);
+        run.op2(
+          ClassFileWriter.GETSTATIC,
+          this.cfw.fieldRef(BOOL, "FALSE", "L"+BOOL+";")
+        );
+        run.mark(push);
+        run.op2(
+          ClassFileWriter.INVOKEVIRTUAL,
+          this.cfw.methodRef(STATE, "push", "(L"+VALUE+";)V")
+        );
+      }
+      run.branch(ClassFileWriter.GOTO, next);
+      run.mark(slow);
+      this.execute(pc);
+      run.mark(next);
+      return true;
+    }
+
+    /** Emits code to call the 'execute()' method of whatever Instruction is
+     * at 'pc' in 'state.instructions', and then to leave if the stack frame
+     * has changed or to jump if the program counter has changed. */
+    public void execute(int pc) {
+      final ClassFileWriter.Code run = this.run;
+      // state.instructions[pc].execute(state);
+      run.op(ClassFileWriter.ALOAD_1);
+      run.op2(
+        ClassFileWriter.GETFIELD,
+        this.cfw.fieldRef(STATE, "instructions", "[L"+INSTRUCTION+";")
+      );
+      run.pushInt(pc);
+      run.op(ClassFileWriter.AALOAD);
+      run.op(ClassFileWriter.ALOAD_1);
+      run.op2(
+        ClassFileWriter.INVOKEVIRTUAL,
+        this.cfw.methodRef(INSTRUCTION, "execute", "(L"+STATE+";)V")
+      );
+      // if (state.frame!=frame) return true;
+      run.op(ClassFileWriter.ALOAD_1);
+      run.op2(ClassFileWriter.GETFIELD, this.frameField);
+      run.op1(ClassFileWriter.ALOAD, 2);
+      run.branch(ClassFileWriter.IF_ACMPNE, this.exit);
+      // if (frame.pc!=pc+1) goto loop; otherwise fall through.
+      run.op1(ClassFileWriter.ALOAD, 2);
+      run.op2(ClassFileWriter.GETFIELD, this.pcField);
+      run.pushInt(pc+1);
+      run.branch(ClassFileWriter.IF_ICMPNE, this.loop);
+    }
+
+    /** Emits code for 'frame.sp--', which pops a Value in the same way as
+     * 'InterpreterState.pop()'. */
+    private void popValue(int sp) {
+      final ClassFileWriter.Code run = this.run;
+      run.op1(ClassFileWriter.ALOAD, 2);
+      run.op(ClassFileWriter.DUP);
+      run.op2(ClassFileWriter.GETFIELD, sp);
+      run.pushInt(1);
+      run.op(ClassFileWriter.ISUB);
+      run.op2(ClassFileWriter.PUTFIELD, sp);
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** A ClassLoader that can define classes from class files. */
+  private static final class Loader extends ClassLoader {
+    public Loader(ClassLoader parent) { super(parent); }
+
+    /** Defines a class. */
+    public Class define(String name, byte[] classFile) {
+      return this.defineClass(name, classFile, 0, classFile.length);
+    }
+  }
+}
@@ -0,0 +1,815 @@
+package org.sc3d.apt.crazon.vm;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+import org.sc3d.apt.crazon.vm.op.*;
+
+import java.util.*;
+
+/** Rewrites the Instructions constructed by an Assembler so that they run
+ * faster, without changing what they do. The passes work on basic blocks,
+ * i.e. maximal straight-line runs of Instructions which no jump enters except
+ * at the start. They are:<ul>
+ * <li>Constant folding, which evaluates Instructions whose operands are all
+ * constants, such as "2 3 *" and "\"a\" \"b\" +", and replaces them with the
+ * result.
+ * <li>Dead code removal, which removes "IF ... THEN ... ELSE" structures whose
+ * condition is a constant, keeping only the clause that would be executed,
+ * then removes every Instruction that cannot be reached from the start of
+ * the main program, e.g. the "GOTO" after a "RETURN", and the body of any
+ * function that is no longer loaded once its calls have been inlined.
+ * <li>Inlining, which replaces "CALL(n)" by a copy of the body of the function
+ * being called, if the body is small and straight-line and does not call
+ * anything. The arguments are stored in new local variables of the caller.
+ * </ul>
+ * Each pass remaps the jump targets and function boundaries to allow for the
+ * Instructions it inserts and removes.
+ */
+public class Optimiser {
+  /** Constructs an Optimiser and optimises a program.
+   * @param instructions the Instructions of the program. The array is not
+   * modified.
+   * @param length the number of elements of 'instructions' that are used.
+   * @param main the main program.
+   * @param globals the initial values of the global variables, including all
+   * the functions defined by the program. The functions are replaced by their
+   * optimised versions.
+   */
+  public Optimiser(
+    Instruction[] instructions,
+    int length,
+    Value.Func main,
+    Value[] globals
+  ) {
+    this(instructions, length, main, globals, true);
+  }
+
+  /** Constructs an Optimiser and optimises a program, optionally without
+   * inlining. The other parameters are as for the other constructor.
+   * @param inline 'false' to leave every "CALL(n)" as it is.
+   */
+  public Optimiser(
+    Instruction[] instructions,
+    int length,
+    Value.Func main,
+    Value[] globals,
+    boolean inline
+  ) {
+    this.code = new Instruction[length];
+    System.arraycopy(instructions, 0, this.code, 0, length);
+    this.length = length;
+    this.globals = globals;
+    this.functions = new ArrayList();
+    this.functions.add(new Function(main, 0));
+    for (int i=0; i<globals.length; i++) {
+      if (globals[i] instanceof Value.Func) {
+        this.functions.add(new Function((Value.Func)globals[i], 1));
+      }
+    }
+    // Folding can make conditions constant, removing dead code can make
+    // basic blocks longer, and inlining can leave functions that are never
+    // called. Each pass makes the program shorter except inlining, which
+    // removes a "CALL(n)" each time, so this terminates.
+    do {
+      while (this.fold() | this.prune() | this.sweep());
+    } while (inline && this.inline());
+    // Construct the optimised Funcs.
+    Value.Func newMain = null;
+    for (int i=0; i<this.functions.size(); i++) {
+      final Function f = (Function)this.functions.get(i);
+      final Value.Func func = f.toFunc();
+      if (f.original==main) newMain = func;
+      for (int j=0; j<globals.length; j++) {
+        if (globals[j]==f.original) globals[j] = func;
+      }
+    }
+    this.main = newMain;
+  }
+
+  /* New API. */
+
+  /** The optimised main program. */
+  public final Value.Func main;
+
+  /** Returns the optimised Instructions in a fresh array. */
+  public Instruction[] getInstructions() {
+    final Instruction[] ans = new Instruction[this.length];
+    System.arraycopy(this.code, 0, ans, 0, this.length);
+    return ans;
+  }
+
+  /** The maximum number of Instructions in a function body that is inlined,
+   * not counting those that unpack the arguments and the "RETURN". */
+  public static final int INLINE_LIMIT = 8;
+
+  /* Private. */
+
+  /** The Instructions of the program. */
+  private Instruction[] code;
+
+  /** The number of elements of 'code'. */
+  private int length;
+
+  /** The array passed to the constructor. */
+  private final Value[] globals;
+
+  /** The main program and the functions, as Functions. The main program comes
+   * first. */
+  private final ArrayList functions;
+
+  /** Returns an array with one element for each index into 'code', and one
+   * more for the end, which is 'true' at the start of each basic block. */
+  private boolean[] leaders() {
+    final boolean[] ans = new boolean[this.length+1];
+    ans[0] = true;
+    ans[this.length] = true;
+    for (int i=0; i<this.functions.size(); i++) {
+      final Value.Func f = ((Function)this.functions.get(i)).toFunc();
+      ans[f.startPC] = true;
+      ans[f.endPC] = true;
+      if (f.fastPC>=0) ans[f.fastPC] = true;
+    }
+    for (int pc=0; pc<this.length; pc++) {
+      final Instruction instruction = this.code[pc];
+      if (instruction instanceof If) {
+        ans[((If)instruction).targetPC] = true;
+        ans[pc+1] = true;
+      } else if (instruction instanceof Goto) {
+        ans[((Goto)instruction).targetPC] = true;
+        ans[pc+1] = true;
+      } else if (instruction instanceof Instruction.Loop) {
+        final Instruction.Loop loop = (Instruction.Loop)instruction;
+        ans[loop.loopPC] = true;
+        ans[loop.elsePC] = true;
+        ans[loop.breakPC] = true;
+        ans[pc+1] = true;
+      } else if (
+        instruction instanceof While || instruction instanceof Next ||
+        instruction instanceof Break || instruction instanceof Return ||
+        instruction instanceof End
+      ) {
+        ans[pc+1] = true;
+      }
+    }
+    return ans;
+  }
+
+  /** Replaces Instructions, and remaps the jump targets and the function
+   * boundaries accordingly.
+   * @param replacements an array with one element for each index into 'code'.
+   * An element is 'null' to keep the Instruction at that index, or an array
+   * (possibly empty) of Instructions to put in its place. A jump to a removed
+   * Instruction goes to whatever replaces it or follows it.
+   */
+  private void rewrite(Instruction[][] replacements) {
+    int newLength = 0;
+    for (int pc=0; pc<this.length; pc++) {
+      newLength += replacements[pc]==null ? 1 : replacements[pc].length;
+    }
+    final Instruction[] newCode = new Instruction[newLength];
+    final int[] map = new int[this.length+1];
+    int j = 0;
+    for (int pc=0; pc<this.length; pc++) {
+      map[pc] = j;
+      if (replacements[pc]==null) {
+        newCode[j++] = this.code[pc];
+      } else {
+        for (int i=0; i<replacements[pc].length; i++) {
+          newCode[j++] = replacements[pc][i];
+        }
+      }
+    }
+    map[this.length] = j;
+    // Remap the jump targets.
+    for (int i=0; i<newLength; i++) {
+      final Instruction instruction = newCode[i];
+      if (instruction instanceof If) {
+        newCode[i] = new If(map[((If)instruction).targetPC]);
+      } else if (instruction instanceof Goto) {
+        newCode[i] = new Goto(map[((Goto)instruction).targetPC]);
+      } else if (instruction instanceof For) {
+        final For loop = (For)instruction;
+        newCode[i] =
+          new For(map[loop.loopPC], map[loop.elsePC], map[loop.breakPC]);
+      } else if (instruction instanceof Loop) {
+        final Loop loop = (Loop)instruction;
+        newCode[i] =
+          new Loop(map[loop.loopPC], map[loop.elsePC], map[loop.breakPC]);
+      }
+    }
+    // Remap the function boundaries.
+    for (int i=0; i<this.functions.size(); i++) {
+      final Function f = (Function)this.functions.get(i);
+      f.startPC = map[f.startPC];
+      f.endPC = map[f.endPC];
+    }
+    this.code = newCode;
+    this.length = newLength;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /* Constant folding. */
+
+  /** Replaces each pure Instruction whose operands are all pushed by the
+   * immediately preceding constant Instructions with a Constant. Does nothing
+   * if evaluating the Instruction fails, so that the error is reported at run
+   * time as before, or if the result is a table, which a Constant cannot
+   * represent (see 'Constant').
+   * @return 'true' if anything changed.
+   */
+  private boolean fold() {
+    final boolean[] leaders = this.leaders();
+    final Instruction[][] replacements = new Instruction[this.length][];
+    final Instruction[] out = new Instruction[this.length];
+    final InterpreterState scratch = new InterpreterState();
+    boolean changed = false;
+    int start = 0;
+    while (start<this.length) {
+      int end = start+1;
+      while (!leaders[end]) end++;
+      // Copy the basic block to 'out', folding as we go.
+      int used = 0;
+      boolean blockChanged = false;
+      for (int pc=start; pc<end; pc++) {
+        Instruction instruction = this.code[pc];
+        final int k = instruction.pops;
+        if (
+          k>0 && used>=k && instruction.pushes==1 &&
+          PURE.contains(instruction.getClass()) &&
+          areConstants(out, used-k, used, instruction)
+        ) {
+          final Value v = evaluate(out, used-k, used, instruction, scratch);
+          if (v!=null && v.type!=Value.TYPE_TAB) {
+            used -= k;
+            instruction = new Constant(v);
+            blockChanged = true;
+          }
+        }
+        out[used++] = instruction;
+      }
+      if (blockChanged) {
+        replacements[start] = new Instruction[used];
+        System.arraycopy(out, 0, replacements[start], 0, used);
+        for (int pc=start+1; pc<end; pc++) replacements[pc] = NONE;
+        changed = true;
+      }
+      start = end;
+    }
+    if (changed) this.rewrite(replacements);
+    return changed;
+  }
+
+  /** Returns 'true' if the Instructions from 'from' (inclusive) to 'to'
+   * (exclusive) of 'operands' are constants that 'instruction' may be folded
+   * with. "*" is not folded with a string or a table, because the result
+   * could be much larger than the program. Tables may be operands, but see
+   * 'fold()' for tables as results. */
+  private static boolean areConstants(
+    Instruction[] operands, int from, int to,
+    Instruction instruction
+  ) {
+    for (int i=from; i<to; i++) {
+      final Instruction operand = operands[i];
+      if (operand instanceof Constant) {
+        if (
+          instruction instanceof Mul &&
+          ((Constant)operand).v.type!=Value.TYPE_NUM
+        ) {
+          return false;
+        }
+      } else if (operand instanceof Tab || operand instanceof LiteralTable) {
+        if (instruction instanceof Mul) return false;
+      } else {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Executes the constant Instructions from 'from' (inclusive) to 'to'
+   * (exclusive) of 'operands' and then 'instruction', using 'scratch', and
+   * returns the result, or 'null' if 'instruction' fails. */
+  private static Value evaluate(
+    Instruction[] operands, int from, int to,
+    Instruction instruction,
+    InterpreterState scratch
+  ) {
+    scratch.frame = new InterpreterState.Call(null, 0, 0, to-from);
+    try {
+      for (int i=from; i<to; i++) operands[i].execute(scratch);
+      instruction.execute(scratch);
+      return scratch.pop();
+    } catch (CrazonRuntimeException e) {
+      return null;
+    } catch (IllegalArgumentException e) {
+      // The result is infinite or not a number (see 'Value.Num').
+      return null;
+    } catch (Instruction.EndException e) {
+      throw new RuntimeException("Impossible: pure Instructions do not end");
+    }
+  }
+
+  /** The classes of the Instructions that may be folded. Their results depend
+   * only on their operands, and they have no side-effects. */
+  private static final HashSet PURE = new HashSet();
+  static {
+    PURE.add(Add.class); PURE.add(Sub.class);
+    PURE.add(Mul.class); PURE.add(Div.class); PURE.add(Mod.class);
+    PURE.add(Pow.class); PURE.add(Neg.class);
+    PURE.add(Abs.class); PURE.add(Sqrt.class);
+    PURE.add(Round.class); PURE.add(Floor.class); PURE.add(Ceil.class);
+    PURE.add(Min.class); PURE.add(Max.class);
+    PURE.add(EQ.class); PURE.add(NE.class); PURE.add(LG.class);
+    PURE.add(LT.class); PURE.add(GE.class);
+    PURE.add(GT.class); PURE.add(LE.class);
+    PURE.add(Not.class);
+    PURE.add(Xor.class); PURE.add(And.class); PURE.add(Or.class);
+    PURE.add(Put.class); PURE.add(Get.class); PURE.add(Contains.class);
+    PURE.add(Len.class); PURE.add(Nth.class);
+    PURE.add(Slice.class); PURE.add(Range.class);
+    PURE.add(AddConst.class); PURE.add(GetConst.class);
+    PURE.add(ContainsConst.class);
+  }
+
+  /** An empty array of Instructions, used to remove an Instruction. */
+  private static final Instruction[] NONE = new Instruction[0];
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /* Dead code removal. */
+
+  /** Removes each "IF" whose condition is a constant, along with its condition
+   * and the clause that is never executed.
+   * @return 'true' if anything changed.
+   */
+  private boolean prune() {
+    final boolean[] leaders = this.leaders();
+    final boolean[] dead = new boolean[this.length];
+    boolean changed = false;
+    for (int pc=1; pc<this.length; pc++) {
+      if (dead[pc] || leaders[pc] || !(this.code[pc] instanceof If)) continue;
+      final Instruction cond = this.code[pc-1];
+      if (
+        !(cond instanceof Constant) ||
+        ((Constant)cond).v.type!=Value.TYPE_BOOL
+      ) {
+        continue;
+      }
+      // The "THEN" clause ends with a Goto that skips the "ELSE" clause.
+      final int elsePC = ((If)this.code[pc]).targetPC;
+      if (!(this.code[elsePC-1] instanceof Goto)) continue;
+      final int endPC = ((Goto)this.code[elsePC-1]).targetPC;
+      dead[pc-1] = true;
+      dead[pc] = true;
+      if (((Constant)cond).v==Value.Bool.TRUE) {
+        for (int i=elsePC-1; i<endPC; i++) dead[i] = true;
+      } else {
+        for (int i=pc+1; i<elsePC; i++) dead[i] = true;
+      }
+      changed = true;
+    }
+    if (changed) {
+      final Instruction[][] replacements = new Instruction[this.length][];
+      for (int pc=0; pc<this.length; pc++) {
+        if (dead[pc]) replacements[pc] = NONE;
+      }
+      this.rewrite(replacements);
+    }
+    return changed;
+  }
+
+  /** Removes the Instructions that cannot be reached from the start of the
+   * main program, and the functions whose global variables are not loaded by
+   * any Instruction that can be reached. Those global variables become
+   * undefined, which cannot be observed because nothing loads them.
+   * @return 'true' if anything changed.
+   */
+  private boolean sweep() {
+    final boolean[] live = new boolean[this.length+1];
+    final boolean[] used = new boolean[this.functions.size()];
+    boolean grew = this.use(0, used, live);
+    while (grew) {
+      grew = false;
+      for (int pc=0; pc<this.length; pc++) {
+        if (!live[pc]) continue;
+        final Instruction instruction = this.code[pc];
+        // Mark the functions that this Instruction might load.
+        int index = -1;
+        if (instruction instanceof Load) {
+          index = ((Load)instruction).index;
+        } else if (instruction instanceof LoadGetConst) {
+          index = ((LoadGetConst)instruction).index;
+        }
+        if (index>=0 && index<this.globals.length) {
+          for (int i=1; i<used.length; i++) {
+            final Function f = (Function)this.functions.get(i);
+            if (!used[i] && f.original==this.globals[index]) {
+              grew |= this.use(i, used, live);
+            }
+          }
+        }
+        // Mark the Instructions that can be executed next. A "NEXT", "BREAK"
+        // or "WHILE" goes to a target of the enclosing "LOOP" or "FOR", which
+        // is marked with it.
+        if (instruction instanceof If) {
+          grew |= mark(live, pc+1);
+          grew |= mark(live, ((If)instruction).targetPC);
+        } else if (instruction instanceof Goto) {
+          grew |= mark(live, ((Goto)instruction).targetPC);
+        } else if (instruction instanceof Instruction.Loop) {
+          final Instruction.Loop loop = (Instruction.Loop)instruction;
+          grew |= mark(live, pc+1);
+          grew |= mark(live, loop.loopPC);
+          grew |= mark(live, loop.elsePC);
+          grew |= mark(live, loop.breakPC);
+        } else if (
+          !(instruction instanceof Next) && !(instruction instanceof Break) &&
+          !(instruction instanceof Return) && !(instruction instanceof End)
+        ) {
+          grew |= mark(live, pc+1);
+        }
+      }
+    }
+    // Remove the unused functions.
+    boolean changed = false;
+    for (int i=used.length-1; i>0; i--) {
+      if (used[i]) continue;
+      final Function f = (Function)this.functions.remove(i);
+      for (int pc=f.startPC; pc<f.endPC; pc++) live[pc] = false;
+      for (int j=0; j<this.globals.length; j++) {
+        if (this.globals[j]==f.original) this.globals[j] = null;
+      }
+      changed = true;
+    }
+    final Instruction[][] replacements = new Instruction[this.length][];
+    for (int pc=0; pc<this.length; pc++) {
+      if (!live[pc]) {
+        replacements[pc] = NONE;
+        changed = true;
+      }
+    }
+    if (changed) this.rewrite(replacements);
+    return changed;
+  }
+
+  /** Marks element 'i' of 'used', and the entry points of the corresponding
+   * element of 'functions' in 'live'.
+   * @return 'true'.
+   */
+  private boolean use(int i, boolean[] used, boolean[] live) {
+    used[i] = true;
+    final Value.Func f = ((Function)this.functions.get(i)).toFunc();
+    mark(live, f.startPC);
+    if (f.fastPC>=0) mark(live, f.fastPC);
+    return true;
+  }
+
+  /** Sets 'live[pc]'.
+   * @return 'true' if it was not already set.
+   */
+  private static boolean mark(boolean[] live, int pc) {
+    if (live[pc]) return false;
+    live[pc] = true;
+    return true;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /* Inlining. */
+
+  /** Replaces each "CALL(n)" that calls a function that can be inlined (see
+   * 'inlinable()') through a "LOAD(name)" in the same basic block. The
+   * "LOAD(name)" is removed, and the "CALL(n)" is replaced by "LSTORE"s that
+   * pop the arguments into new local variables of the caller, followed by the
+   * body of the function, which leaves its result on the stack. The new local
+   * variables are shared by all the calls inlined into the same caller,
+   * because the bodies do not call anything and so cannot overlap.
+   * @return 'true' if anything changed.
+   */
+  private boolean inline() {
+    final boolean[] leaders = this.leaders();
+    // Find the global variables that might not hold their initial values.
+    final boolean[] stored = new boolean[this.globals.length];
+    for (int pc=0; pc<this.length; pc++) {
+      if (this.code[pc] instanceof Store) {
+        final int index = ((Store)this.code[pc]).index;
+        if (index<stored.length) stored[index] = true;
+      }
+    }
+    final Instruction[][] replacements = new Instruction[this.length][];
+    boolean changed = false;
+    for (int i=0; i<this.functions.size(); i++) {
+      final Function caller = (Function)this.functions.get(i);
+      final int base = caller.numLocals;
+      // For each item on the stack, the index of the Instruction that pushed
+      // it. Items pushed in an earlier basic block are not included.
+      int[] pushedBy = new int[16];
+      int sp = 0;
+      for (int pc=caller.startPC; pc<caller.endPC; pc++) {
+        if (leaders[pc]) sp = 0;
+        final Instruction instruction = this.code[pc];
+        if (instruction instanceof CallN) {
+          final int n = ((CallN)instruction).n;
+          final int loadPC = sp>n ? pushedBy[sp-n-1] : -1;
+          if (loadPC>=0 && this.code[loadPC] instanceof Load) {
+            final int index = ((Load)this.code[loadPC]).index;
+            final Value.Func callee =
+              index<stored.length && !stored[index] ?
+              this.inlinable(this.globals[index]) :
+              null;
+            if (callee!=null && callee.arity==n) {
+              replacements[loadPC] = NONE;
+              replacements[pc] = this.inlineBody(callee, base);
+              caller.numLocals =
+                Math.max(caller.numLocals, base+callee.numLocals);
+              changed = true;
+            }
+          }
+        }
+        sp = Math.max(sp-instruction.pops, 0);
+        if (sp+instruction.pushes>pushedBy.length) {
+          final int[] old = pushedBy;
+          pushedBy = new int[2*(sp+instruction.pushes)];
+          System.arraycopy(old, 0, pushedBy, 0, sp);
+        }
+        for (int j=0; j<instruction.pushes; j++) pushedBy[sp++] = pc;
+      }
+    }
+    if (changed) this.rewrite(replacements);
+    return changed;
+  }
+
+  /** If 'v' is one of the functions of the program and can be inlined,
+   * returns its current Value.Func. Otherwise returns 'null'. A function can
+   * be inlined if it has a fast entry point (see 'Value.Func.arity') and after
+   * it the body:<ul>
+   * <li>does not read the table of arguments,
+   * <li>has at most 'INLINE_LIMIT' Instructions followed by "RETURN",
+   * <li>contains no jumps, loops or calls, and
+   * <li>does not read a local variable before writing it, other than the
+   * arguments. This ensures that it cannot see values left in the new local
+   * variables by another inlined call.
+   * </ul>
+   */
+  private Value.Func inlinable(Value v) {
+    Value.Func f = null;
+    for (int i=0; i<this.functions.size(); i++) {
+      final Function function = (Function)this.functions.get(i);
+      if (function.original==v) f = function.toFunc();
+    }
+    if (f==null || f.arity<0 || f.readsArgs) return null;
+    final int bodyLen = f.endPC-1-f.fastPC;
+    if (bodyLen>INLINE_LIMIT || !(this.code[f.endPC-1] instanceof Return)) {
+      return null;
+    }
+    final boolean[] defined = new boolean[f.numLocals];
+    for (int i=1; i<=f.arity; i++) defined[i] = true;
+    for (int pc=f.fastPC; pc<f.endPC-1; pc++) {
+      final Instruction instruction = this.code[pc];
+      if (
+        !(instruction instanceof Instruction.Op) ||
+        instruction instanceof Call || instruction instanceof CallN ||
+        instruction instanceof Return || instruction instanceof End ||
+        instruction instanceof While || instruction instanceof Next
+      ) {
+        return null;
+      }
+      if (instruction instanceof LLoad) {
+        if (!defined[((LLoad)instruction).index]) return null;
+      } else if (instruction instanceof LStore) {
+        defined[((LStore)instruction).index] = true;
+      } else if (instruction instanceof LLoadGetConst) {
+        if (!defined[((LLoadGetConst)instruction).index]) return null;
+      } else if (instruction instanceof LLoadGetConstLStore) {
+        final LLoadGetConstLStore i = (LLoadGetConstLStore)instruction;
+        if (!defined[i.loadIndex]) return null;
+        defined[i.storeIndex] = true;
+      } else if (instruction instanceof LStoreLLoad) {
+        final LStoreLLoad i = (LStoreLLoad)instruction;
+        defined[i.store.index] = true;
+        if (!defined[i.load.index]) return null;
+      }
+    }
+    return f;
+  }
+
+  /** Returns the Instructions that replace a "CALL(n)" of 'f', which must be
+   * inlinable. Local variable 'i' of 'f' becomes local variable 'base+i' of
+   * the caller. */
+  private Instruction[] inlineBody(Value.Func f, int base) {
+    final int n = f.arity;
+    final int bodyLen = f.endPC-1-f.fastPC;
+    final Instruction[] ans = new Instruction[n+bodyLen];
+    // Pop the arguments, last first.
+    for (int i=0; i<n; i++) ans[i] = lStore(f, n-i, base);
+    for (int i=0; i<bodyLen; i++) {
+      final Instruction instruction = this.code[f.fastPC+i];
+      if (instruction instanceof LLoad) {
+        ans[n+i] = lLoad(f, ((LLoad)instruction).index, base);
+      } else if (instruction instanceof LStore) {
+        ans[n+i] = lStore(f, ((LStore)instruction).index, base);
+      } else if (instruction instanceof LLoadGetConst) {
+        final LLoadGetConst get = (LLoadGetConst)instruction;
+        ans[n+i] = new LLoadGetConst(
+          lLoad(f, get.index, base),
+          new Constant(get.key)
+        );
+      } else if (instruction instanceof LLoadGetConstLStore) {
+        final LLoadGetConstLStore get = (LLoadGetConstLStore)instruction;
+        ans[n+i] = new LLoadGetConstLStore(
+          new LLoadGetConst(
+            lLoad(f, get.loadIndex, base),
+            new Constant(get.key)
+          ),
+          lStore(f, get.storeIndex, base)
+        );
+      } else if (instruction instanceof LStoreLLoad) {
+        final LStoreLLoad storeLoad = (LStoreLLoad)instruction;
+        ans[n+i] = new LStoreLLoad(
+          lStore(f, storeLoad.store.index, base),
+          lLoad(f, storeLoad.load.index, base)
+        );
+      } else {
+        ans[n+i] = instruction;
+      }
+    }
+    return ans;
+  }
+
+  /** Returns an LLoad of the caller's copy of local variable 'i' of 'f'. */
+  private static LLoad lLoad(Value.Func f, int i, int base) {
+    return new LLoad(base+i, f.originalName+"#"+i);
+  }
+
+  /** Returns an LStore of the caller's copy of local variable 'i' of 'f'. */
+  private static LStore lStore(Value.Func f, int i, int base) {
+    return new LStore(base+i, f.originalName+"#"+i);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** The main program or a function, whose Instructions may move. */
+  private class Function {
+    /** Constructs a Function.
+     * @param original the Value.Func constructed by the Assembler.
+     * @param entrySP the number of items on the stack on entry to the body.
+     */
+    public Function(Value.Func original, int entrySP) {
+      this.original = original;
+      this.entrySP = entrySP;
+      this.startPC = original.startPC;
+      this.endPC = original.endPC;
+      this.numLocals = original.numLocals;
+    }
+
+    /** The Value.Func constructed by the Assembler. */
+    public final Value.Func original;
+
+    /** The number of items on the stack on entry to the body. */
+    public final int entrySP;
+
+    /** The index into 'code' of the start of the body. */
+    public int startPC;
+
+    /** The index into 'code' just after the end of the body. */
+    public int endPC;
+
+    /** The number of local variables used by the body. */
+    public int numLocals;
+
+    /** Returns a Value.Func for the body as it is now. */
+    public Value.Func toFunc() {
+      return Assembler.makeFunc(
+        Optimiser.this.code,
+        this.startPC, this.endPC,
+        this.numLocals,
+        this.entrySP,
+        this.original.originalName
+      );
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /* Test code. */
+
+  /** Runs 'program' unoptimised, optimised without inlining, and optimised,
+   * and prints the value of the global variable "_result" or the error in
+   * each case. */
+  public static void test(String name, String program) throws Exception {
+    final Assembler a = new Assembler(new java.io.StringReader(program), false);
+    final Instruction[] code = a.getInstructions();
+    final String expected = run(a, code, a.main, a.getGlobalValues());
+    System.out.print(name+": "+expected+" ("+code.length+" Instructions)");
+    boolean ok = true;
+    for (int i=0; i<2; i++) {
+      final Value[] globals = a.getGlobalValues();
+      final Optimiser o =
+        new Optimiser(code, code.length, a.main, globals, i==1);
+      final Instruction[] optimised = o.getInstructions();
+      final String actual = run(a, optimised, o.main, globals);
+      System.out.print(
+        ", "+(i==1 ? "inlined" : "not inlined")+": "+optimised.length
+      );
+      if (!actual.equals(expected)) {
+        System.out.print(" gave "+actual);
+        ok = false;
+      }
+      for (int pc=0; pc<optimised.length; pc++) {
+        if (
+          optimised[pc] instanceof Constant &&
+          ((Constant)optimised[pc]).v.type==Value.TYPE_TAB
+        ) {
+          System.out.print(" made table Constant at "+pc);
+          ok = false;
+        }
+      }
+    }
+    System.out.println(ok ? " OK" : " FAILED");
+  }
+
+  /** Runs 'code' from 'main' with 'globals', and returns the long form of the
+   * global variable "_result", or the message of the CrazonRuntimeException.
+   */
+  private static String run(
+    Assembler a,
+    Instruction[] code,
+    Value.Func main,
+    Value[] globals
+  ) {
+    final InterpreterState state =
+      new InterpreterState(code, globals, a.getGlobalNames(), null);
+    state.pushFrame(main.startPC, main.numLocals, main.stackLen);
+    try {
+      while (true) state.instructions[state.frame.pc++].execute(state);
+    } catch (Instruction.EndException e) {
+      final Integer index = (Integer)a.getGlobalMappings().get("_result");
+      return state.globals[index.intValue()].toLongString();
+    } catch (CrazonRuntimeException e) {
+      return "ERROR: "+e.getMessage();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    final String defs =
+      "DEF(sq)\n"+
+      "LSTORE(ARGS) ; LLOAD(ARGS) 0 GET LSTORE(x) ;\n"+
+      "LLOAD(x) LLOAD(x) * RETURN\n"+
+      "DEF(sub)\n"+
+      "LSTORE(ARGS) ; LLOAD(ARGS) 0 GET LSTORE(x) ;\n"+
+      "LLOAD(ARGS) 1 GET LSTORE(y) ;\n"+
+      "LLOAD(x) LLOAD(y) - RETURN\n"+
+      "DEF(sign)\n"+
+      "LSTORE(ARGS) ; LLOAD(ARGS) 0 GET LSTORE(x) ;\n"+
+      "LLOAD(x) 0 < IF ; 0 1 - RETURN THEN ; ELSE ;\n"+
+      "LLOAD(x) 0 > IF ; 1 RETURN THEN ; ELSE ; 0 RETURN\n"+
+      "DEF(unused)\n"+
+      "LSTORE(ARGS) ; LLOAD(ARGS) RETURN\n";
+    // Calls inside an "IF" inside a "LOOP" inside a "FOR", with a "BREAK" and
+    // a constant condition.
+    test(
+      "nested",
+      "0 LSTORE(s) ;\n"+
+      "5 FOR LSTORE(v) LSTORE(k) ;\n"+
+      "  0 LSTORE(j) ;\n"+
+      "  LOOP LLOAD(j) 3 < WHILE ;\n"+
+      "    LLOAD(j) 1 == IF ;\n"+
+      "      LLOAD(s) LOAD(sq) LLOAD(v) CALL(1) + LSTORE(s) ;\n"+
+      "    THEN ;\n"+
+      "      LLOAD(v) 3 == IF ; BREAK THEN ; ELSE ;\n"+
+      "      LLOAD(s) LOAD(sub) LLOAD(v) LLOAD(j) CALL(2) + LSTORE(s) ;\n"+
+      "    ELSE ;\n"+
+      "    2 1 > IF ; LLOAD(j) 1 + LSTORE(j) ; THEN ; ELSE ;\n"+
+      "  NEXT ; LLOAD(s) 1000 + LSTORE(s) ; ELSE ;\n"+
+      "NEXT ; LLOAD(s) 0.5 + LSTORE(s) ; ELSE ;\n"+
+      "LLOAD(s) STORE(_result) ;\n"+defs
+    );
+    // A function that cannot be inlined, with code after its "RETURN"s.
+    test(
+      "returns",
+      "TABLE LSTORE(t) ;\n"+
+      "0 2 - LSTORE(i) ;\n"+
+      "LOOP LLOAD(i) 3 < WHILE ;\n"+
+      "  LLOAD(t) LLOAD(i) LOAD(sign) LLOAD(i) CALL(1) PUT LSTORE(t) ;\n"+
+      "  LLOAD(i) 1 + LSTORE(i) ;\n"+
+      "NEXT ; ELSE ;\n"+
+      "LLOAD(t) STORE(_result) ;\n"+defs
+    );
+    // Tables as operands, and as results, which are not folded.
+    test(
+      "tables",
+      "TABLE 0 \"a\" PUT 1 \"b\" PUT TABLE 1 \"c\" PUT 2 \"d\" PUT +\n"+
+      "LSTORE(t) ;\n"+
+      "TABLE 0 1 PUT 5 1 PUT 7 1 PUT TABLE 5 2 PUT - LEN LSTORE(n) ;\n"+
+      "LLOAD(t) 0 TABLE 1 2 PUT PUT LLOAD(n) TABLE 3 4 PUT 3 GET PUT\n"+
+      "STORE(_result) ;\n"+defs
+    );
+    // An error inside an inlined body.
+    test(
+      "error",
+      "LOAD(sq) 3 CALL(1) STORE(_result) ;\n"+
+      "LOAD(sub) LOAD(_result) \"a\" CALL(2) STORE(_result) ;\n"+defs
+    );
+  }
+}
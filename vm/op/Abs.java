@@ -13,7 +13,7 @@ public final class Abs extends Instruction.Op {
     final Value x = state.pop();
     try {
       final double xNum = ((Value.Num)x).v;
-      state.push(new Value.Num(Math.abs(xNum)));
+      state.push(Value.Num.valueOf(Math.abs(xNum)));
     } catch (ClassCastException e) {
       throw new CrazonRuntimeException(
         "Cannot apply ABS to "+x+"; a number is required",
@@ -5,7 +5,18 @@ import org.sc3d.apt.crazon.vm.state.*;
 
 /** Implements the "+" operation. Adds numbers, concatenates strings, or overlays tables. */
 public final class Add extends Instruction.Op {
-  public Add() { super("+", 2, 1); }
+  public Add() { this(true); }
+
+  /** @param mayQuicken 'false' to construct an Add that never replaces
+   * itself with an AddNumNum. */
+  public Add(boolean mayQuicken) {
+    super("+", 2, 1);
+    this.mayQuicken = mayQuicken;
+  }
+
+  /** 'true' if this Instruction replaces itself with an AddNumNum the first
+   * time it sees two numbers. */
+  public final boolean mayQuicken;
 
   /** Pops two values and pushes a result. The calculation depends on the types of the values popped:<ul>
    * <li>If both operands are numbers, the result is their sum.
@@ -16,29 +27,39 @@ public final class Add extends Instruction.Op {
   throws CrazonRuntimeException {
     final Value y = state.pop();
     final Value x = state.pop();
+    if (this.mayQuicken &&
+        x.type==Value.TYPE_NUM && y.type==Value.TYPE_NUM &&
+        state.canReplace(this)) {
+      state.replaceInstruction(this, new AddNumNum());
+    }
+    state.push(add(x, y, state));
+  }
+
+  /* New API. */
+
+  /** Returns 'x' plus 'y', as described for 'execute()'. This method is shared
+   * by the Instructions that fuse "+" with its operands.
+   * @param state used only to construct exceptions.
+   * @throws CrazonRuntimeException if 'x' and 'y' cannot be added.
+   */
+  public static Value add(Value x, Value y, InterpreterState state)
+  throws CrazonRuntimeException {
     switch (x.type + (y.type<<3)) {
       case Value.TYPE_NUM + (Value.TYPE_NUM<<3): {
         final double xNum = ((Value.Num)x).v;
         final double yNum = ((Value.Num)y).v;
         final double ans = xNum + yNum;
-        state.push(new Value.Num(ans));
-        return;
+        return Value.Num.valueOf(ans);
       }
       case Value.TYPE_STR + (Value.TYPE_STR<<3): {
-        final String xStr = ((Value.Str)x).v;
-        final String yStr = ((Value.Str)y).v;
-        final String ans = xStr + yStr;
-        state.push(new Value.Str(ans));
-        return;
+        final Value.Str xStr = (Value.Str)x;
+        final Value.Str yStr = (Value.Str)y;
+        return xStr.concat(yStr);
       }
       case Value.TYPE_TAB + (Value.TYPE_TAB<<3): {
-        Table xTab = ((Value.Tab)x).v;
+        final Table xTab = ((Value.Tab)x).v;
         final Table yTab = ((Value.Tab)y).v;
-        for (Table.Iterator it = Table.iterator(yTab); it!=null; it=it.next()) {
-          xTab = Table.put(xTab, it.key, it.value);
-        }
-        state.push(new Value.Tab(xTab));
-        return;
+        return new Value.Tab(Table.union(xTab, yTab));
       }
       default: throw new CrazonRuntimeException(
         "Cannot add "+x+" to "+y,
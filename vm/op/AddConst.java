@@ -0,0 +1,28 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** A superinstruction equivalent to "&lt;constant&gt; +". Constructed by the
+ * Assembler. */
+public final class AddConst extends Instruction.Op {
+  /** @param y the constant to add. */
+  public AddConst(Constant y) {
+    super(y.name+" +", 1, 1);
+    this.y = y.v;
+  }
+
+  /** The constant to add. */
+  public final Value y;
+
+  /** Pops a value, adds 'y' to it as for "+", and pushes the result. The sum
+   * of two numbers is pushed unboxed. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    if (this.y.type==Value.TYPE_NUM && state.isNum(0)) {
+      state.pushNum(state.popNum() + ((Value.Num)this.y).v);
+    } else {
+      state.push(Add.add(state.pop(), this.y, state));
+    }
+  }
+}
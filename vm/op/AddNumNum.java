@@ -0,0 +1,32 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** The quickened form of "+", which Add installs in place of itself after
+ * adding two numbers. It adds boxed or unboxed numbers without boxing the
+ * result. The first time either operand is not a number it puts back an Add
+ * that will not quicken again, and adds the operands as that would. */
+public final class AddNumNum extends Instruction.Op {
+  public AddNumNum() { super("+", 2, 1); }
+
+  /** Pops two numbers, which may be unboxed, and pushes their sum. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    if (!state.isNum(0) || !state.isNum(1)) {
+      if (state.canReplace(this)) {
+        state.replaceInstruction(this, new Add(false));
+      }
+      GENERIC.execute(state);
+      return;
+    }
+    final double y = state.popNum();
+    final double x = state.popNum();
+    state.pushNum(x + y);
+  }
+
+  /* Private. */
+
+  /** An Add that never quickens, which handles strings and tables. */
+  private static final Add GENERIC = new Add(false);
+}
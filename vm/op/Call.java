@@ -7,9 +7,11 @@ import org.sc3d.apt.crazon.vm.state.*;
 public final class Call extends Instruction.Op {
   public Call() { super("CALL", 2, 1); }
   
-  /** Pops a function and a table (the function being bottom-most). Constructs
+  /** Pops a function and a table (the function being bottom-most). Pushes
    * a new stack frame for the function, and pushes the table (the arguments).
-   * This leaves the InterpreterState ready to execute the function body. */
+   * This leaves the InterpreterState ready to execute the function body. If
+   * there is a just-in-time compiler, asks it for CompiledCode for the
+   * function body and attaches it to the new stack frame. */
   public final void execute(InterpreterState state)
   throws CrazonRuntimeException {
     final Value args = state.pop();
@@ -17,10 +19,9 @@ public final class Call extends Instruction.Op {
     try {
       final Value.Tab argsTab = (Value.Tab)args;
       final Value.Func fFunc = (Value.Func)f;
-      state.frame = new InterpreterState.Call(
-        state.frame,
-        fFunc.startPC, fFunc.numLocals, fFunc.stackLen
-      );
+      final InterpreterState.Call frame =
+        state.pushFrame(fFunc.startPC, fFunc.numLocals, fFunc.stackLen);
+      if (state.jit!=null) frame.code = state.jit.lookup(fFunc, state);
       state.push(argsTab);
     } catch (ClassCastException e) {
       throw new CrazonRuntimeException(
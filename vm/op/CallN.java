@@ -0,0 +1,78 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** Implements the "CALL(n)" operation, which calls a function with 'n'
+ * numbered arguments. It is equivalent to "TABLE 0 &lt;arg0&gt; PUT 1
+ * &lt;arg1&gt; PUT ... CALL" with the arguments evaluated before the "TABLE".
+ * If the function has a fast entry point for exactly 'n' arguments (see
+ * 'Value.Func.arity') the arguments become its local variables where they lie
+ * on the stack, and no table is constructed unless the function body reads it.
+ */
+public final class CallN extends Instruction.Op {
+  /** Constructs a CallN.
+   * @param n the number of arguments.
+   */
+  public CallN(int n) {
+    super("CALL("+n+")", n+1, 1);
+    this.n = n;
+  }
+
+  /* New API. */
+
+  /** The number of arguments. */
+  public final int n;
+
+  /** Pops 'n' arguments and a function (the function being bottom-most).
+   * Pushes a new stack frame for the function. If the function has a fast
+   * entry point for 'n' arguments, the arguments become its local variables
+   * and execution will start at 'fastPC'. Otherwise, constructs the table of
+   * arguments and proceeds as "CALL". */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    final InterpreterState.Call caller = state.frame;
+    final int base = caller.sp - this.n - 1;
+    final Value f = caller.stack[base];
+    if (f instanceof Value.Func && ((Value.Func)f).arity==this.n) {
+      final Value.Func fFunc = (Value.Func)f;
+      final InterpreterState.Call frame = state.pushFrame(
+        fFunc.fastPC,
+        fFunc.numLocals,
+        fFunc.stackLen,
+        this.n
+      );
+      if (fFunc.readsArgs) {
+        frame.stack[frame.lp] = makeArgs(frame.stack, frame.nums, frame.lp+1);
+      }
+      if (state.jit!=null) frame.code = state.jit.lookup(fFunc, state);
+    } else {
+      final Value.Tab args = makeArgs(caller.stack, caller.nums, base+1);
+      for (int i=base+1; i<caller.sp; i++) caller.stack[i] = null;
+      caller.sp = base+1;
+      state.push(args);
+      CALL.execute(state);
+    }
+  }
+
+  /* Private. */
+
+  /** An instance of Call. */
+  private static final Call CALL = new Call();
+
+  /** Returns a table mapping 'i' to the 'i'th of the 'n' Values starting at
+   * index 'start' of 'stack' and 'nums' (see 'InterpreterState.Call.stack').
+   */
+  private Value.Tab makeArgs(Value[] stack, double[] nums, int start) {
+    if (this.n==0) return Tab.TABLE;
+    final Table.Builder builder = new Table.Builder(this.n);
+    for (int i=0; i<this.n; i++) {
+      final Value v = stack[start+i];
+      builder.add(
+        Value.Num.valueOf(i),
+        v!=null ? v : Value.Num.valueOf(nums[start+i])
+      );
+    }
+    return new Value.Tab(builder.build());
+  }
+}
@@ -13,7 +13,7 @@ public final class Ceil extends Instruction.Op {
     final Value x = state.pop();
     try {
       final double xNum = ((Value.Num)x).v;
-      state.push(new Value.Num(-Math.floor(-xNum)));
+      state.push(Value.Num.valueOf(-Math.floor(-xNum)));
     } catch (ClassCastException e) {
       throw new CrazonRuntimeException(
         "Cannot apply CEIL to "+x+"; a number is required",
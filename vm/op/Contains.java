@@ -21,11 +21,29 @@ public final class Contains extends Instruction.Op {
   throws CrazonRuntimeException {
     final Value k = state.pop();
     final Value t = state.pop();
+    final boolean v = contains(t, k, -1, state);
+    state.push(v ? Value.Bool.TRUE : Value.Bool.FALSE);
+  }
+
+  /* New API. */
+
+  /** Returns 'true' if 't' contains 'k', as described for 'execute()'.
+   * @param attribute the attribute number of 'k' (see 'Shape.attribute()') if
+   * it is known, otherwise '-1'.
+   * @param state used only to construct exceptions.
+   * @throws CrazonRuntimeException if 't' cannot be subscripted.
+   */
+  public static boolean contains(
+    Value t,
+    Value k,
+    int attribute,
+    InterpreterState state
+  ) throws CrazonRuntimeException {
     boolean v;
     try {
       switch (t.type) {
         case Value.TYPE_STR: {
-          final String tStr = ((Value.Str)t).v;
+          final Value.Str tStr = (Value.Str)t;
           final double kNum = ((Value.Num)k).v;
           final int index = (int)kNum;
           v = kNum==index && index>=0 && index<tStr.length();
@@ -38,8 +56,12 @@ public final class Contains extends Instruction.Op {
         }
         case Value.TYPE_OBJ: {
           final Value.Obj tObj = (Value.Obj)t;
-          final String kStr = ((Value.Str)k).v;
-          v = tObj.get(kStr) != null;
+          if (attribute>=0) {
+            v = tObj.shape.slotOf(attribute) >= 0;
+          } else {
+            final String kStr = ((Value.Str)k).toJavaString();
+            v = tObj.get(kStr) != null;
+          }
           break;
         }
         default: throw new CrazonRuntimeException(
@@ -50,7 +72,7 @@ public final class Contains extends Instruction.Op {
     } catch (ClassCastException e) {
       v = false;
     }
-    state.push(v ? Value.Bool.TRUE : Value.Bool.FALSE);
+    return v;
   }
   
   /* Test code. */
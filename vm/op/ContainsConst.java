@@ -0,0 +1,30 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** A superinstruction equivalent to "&lt;key&gt; CONTAINS". Constructed by
+ * the Assembler. */
+public final class ContainsConst extends Instruction.Op {
+  /** @param key the constant subscript. */
+  public ContainsConst(Constant key) {
+    super(key.name+" CONTAINS", 1, 1);
+    this.key = key.v;
+    this.attribute = Get.attributeOf(key.v);
+  }
+
+  /** The constant subscript. */
+  public final Value key;
+
+  /** The attribute number of 'key', or '-1' if it is not a string. */
+  public final int attribute;
+
+  /** Pops a value, tests whether it contains 'key' as for "CONTAINS", and
+   * leaves the result on the stack. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    final boolean v =
+      Contains.contains(state.pop(), this.key, this.attribute, state);
+    state.push(v ? Value.Bool.TRUE : Value.Bool.FALSE);
+  }
+}
@@ -28,38 +28,36 @@ public final class Div extends Instruction.Op {
         final double xNum = ((Value.Num)x).v;
         final double yNum = ((Value.Num)y).v;
         final double ans = xNum / yNum;
-        state.push(new Value.Num(ans));
+        state.push(Value.Num.valueOf(ans));
         return;
       }
       case Value.TYPE_NUM + (Value.TYPE_STR<<3): {
         final int xNum = ((Value.Num)x).intValue();
-        final String yStr = ((Value.Str)y).v;
+        final Value.Str yStr = (Value.Str)y;
         if (xNum<0 || xNum>yStr.length()) throw new CrazonRuntimeException(
           "Cannot keep "+x+" characters from "+y+": index out of range",
           state
         );
-        final String ans = yStr.substring(0, xNum);
-        state.push(new Value.Str(ans));
+        state.push(yStr.substring(0, xNum));
         return;
       }
       case Value.TYPE_STR + (Value.TYPE_NUM<<3): {
-        final String xStr = ((Value.Str)x).v;
+        final Value.Str xStr = (Value.Str)x;
         final int yNum = ((Value.Num)y).intValue();
         if (yNum<0 || yNum>xStr.length()) throw new CrazonRuntimeException(
           "Cannot keep "+y+" characters from "+x+": index out of range",
           state
         );
-        final String ans = xStr.substring(xStr.length()-yNum);
-        state.push(new Value.Str(ans));
+        state.push(xStr.substring(xStr.length()-yNum, xStr.length()));
         return;
       }
       case Value.TYPE_TAB + (Value.TYPE_TAB<<3): {
         final Table xTab = ((Value.Tab)x).v;
         final Table yTab = ((Value.Tab)y).v;
         Table ans = null;
-        for (Table.Iterator it = Table.iterator(xTab); it!=null; it=it.next()) {
-          if (Table.get(yTab, it.key)!=null)
-            ans = Table.put(ans, it.key, it.value);
+        for (Table.Cursor c = new Table.Cursor(xTab); c.next(); ) {
+          if (Table.get(yTab, c.key)!=null)
+            ans = Table.put(ans, c.key, c.value);
         }
         state.push(new Value.Tab(ans));
         return;
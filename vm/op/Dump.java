@@ -12,7 +12,7 @@ public final class Dump extends Instruction.Op {
   public final void execute(InterpreterState state) {
     final Value v = state.pop();
     if (v.type==Value.TYPE_STR)
-      state.platform.print(((Value.Str)v).v);
+      state.platform.print(((Value.Str)v).toJavaString());
     else
       state.platform.print(v.toLongString());
   }
@@ -5,12 +5,28 @@ import org.sc3d.apt.crazon.vm.state.*;
 
 /** Implements the "==" operation in terms of 'equals()'. */
 public final class EQ extends Instruction.Op {
-  public EQ() { super("==", 2, 1); }
+  public EQ() { this(true); }
+
+  /** @param mayQuicken 'false' to construct an EQ that never replaces
+   * itself with an EQNumNum. */
+  public EQ(boolean mayQuicken) {
+    super("==", 2, 1);
+    this.mayQuicken = mayQuicken;
+  }
+
+  /** 'true' if this Instruction replaces itself with an EQNumNum the
+   * first time it sees two numbers. */
+  public final boolean mayQuicken;
 
   /** Pops two values and pushes a boolean result. */
   public final void execute(InterpreterState state) {
     final Value y = state.pop();
     final Value x = state.pop();
+    if (this.mayQuicken &&
+        x.type==Value.TYPE_NUM && y.type==Value.TYPE_NUM &&
+        state.canReplace(this)) {
+      state.replaceInstruction(this, new EQNumNum());
+    }
     final boolean ans = x.equals(y);
     state.push(ans ? Value.Bool.TRUE : Value.Bool.FALSE);
   }
@@ -0,0 +1,33 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** The numeric fast path of "==", installed by EQ, which compares two
+ * numbers by value rather than through 'equals()'. If the operands are not
+ * both numbers it restores an EQ that does not quicken, since other types
+ * must be compared with 'equals()'. */
+public final class EQNumNum extends Instruction.Op {
+  public EQNumNum() { super("==", 2, 1); }
+
+  /** Pops two numbers, which may be unboxed, and pushes 'TRUE' if they
+   * are equal. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    if (!state.isNum(0) || !state.isNum(1)) {
+      if (state.canReplace(this)) {
+        state.replaceInstruction(this, new EQ(false));
+      }
+      GENERIC.execute(state);
+      return;
+    }
+    final double y = state.popNum();
+    final double x = state.popNum();
+    state.push(x == y ? Value.Bool.TRUE : Value.Bool.FALSE);
+  }
+
+  /* Private. */
+
+  /** Compares operands that are not both numbers using 'equals()'. */
+  private static final EQ GENERIC = new EQ(false);
+}
@@ -16,7 +16,7 @@ public final class Floor extends Instruction.Op {
     final Value x = state.pop();
     try {
       final double xNum = ((Value.Num)x).v;
-      state.push(new Value.Num(Math.floor(xNum)));
+      state.push(Value.Num.valueOf(Math.floor(xNum)));
     } catch (ClassCastException e) {
       throw new CrazonRuntimeException(
         "Cannot apply FLOOR to "+x+"; a number is required",
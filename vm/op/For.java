@@ -21,78 +21,53 @@ public class For extends Instruction.Loop {
 
   public final void executeNext(InterpreterState state) {
     final State loopState = (State)state.frame.loop;
-    if (loopState.it==null) {
+    if (!loopState.cursor.next(state)) {
       // Exit the loop.
       state.frame.loop = loopState.enclosing;
       state.frame.pc = this.elsePC;
     } else {
       // Execute the body of the loop.
-      state.push((Value)loopState.it.key);
-      state.push((Value)loopState.it.value);
-      loopState.it = loopState.it.next();
       state.frame.pc = this.loopPC;
     }
   }
 
   /* Override things in Instruction. */
 
-  /** Pops a Value, constructs a Table, gets its Iterator, puts a For.State on
-   * the loop stack, and calls 'executeNext()'. The calculation of the
-   * Table depends on the type of the Value popped:<ul>
-   * <li>If it is an integer 'n', the Table maps all integers from '0' to 'n-1'
-   * to themselves.
-   * <li>If it is a string, the Table maps indices into the string to the
+  /** Pops a Value, constructs a Cursor, puts a For.State on the loop stack,
+   * and calls 'executeNext()'. The key-value pairs visited by the Cursor
+   * depend on the type of the Value popped:<ul>
+   * <li>If it is an integer 'n', the Cursor maps all integers from '0' to
+   * 'n-1' to themselves.
+   * <li>If it is a string, the Cursor maps indices into the string to the
    * corresponding characters (strings of length 1).
-   * <li>If it is a Table, it is used unchanged.
-   * </ul> */
+   * <li>If it is a Table, the Cursor visits its pairs in order.
+   * </ul>
+   * No Table is constructed for an integer or a string. */
   public final void execute(InterpreterState state)
   throws CrazonRuntimeException {
     final Value t = state.pop();
+    final Cursor cursor;
     switch (t.type) {
     case Value.TYPE_NUM: {
       final double d = ((Value.Num)t).v;
       final int n = (int)d;
       if (n != d)
         throw new CrazonRuntimeException(d+" is not an integer", state);
-      Table range = null;
-      for (int i=0; i<n; i++) {
-        final Value.Num v = new Value.Num(i);
-        range = Table.put(range, v, v);
-      }
-      state.frame.loop = new State(
-        state.frame.loop,
-        this,
-        Table.iterator(range)
-      );
+      cursor = new RangeCursor(0, n);
       break;
     }
     case Value.TYPE_STR: {
-      final String s = ((Value.Str)t).v;
-      final int length = s.length();
-      Table range = null;
-      for (int i=0; i<length; i++) {
-        final Value.Num k = new Value.Num(i);
-        final Value.Str v = new Value.Str(s.substring(i, i+1));
-        range = Table.put(range, k, v);
-      }
-      state.frame.loop = new State(
-        state.frame.loop,
-        this,
-        Table.iterator(range)
-      );
+      cursor = new StringCursor((Value.Str)t, 0);
       break;
     }
     case Value.TYPE_TAB: {
-      state.frame.loop = new State(
-        state.frame.loop,
-        this,
-        Table.iterator(((Value.Tab)t).v)
-      );
+      cursor = new TableCursor(new Table.Cursor(((Value.Tab)t).v));
       break;
     }
     default:
       throw new CrazonRuntimeException("Can't iterate through "+t, state);
     }
+    state.frame.loop = new State(state.frame.loop, this, cursor);
     this.executeNext(state);
   }
 
@@ -106,21 +81,19 @@ public class For extends Instruction.Loop {
     /** Constructs a State.
      * @param enclosing the state of the enclosing loop, or 'null' if none.
      * @param instruction the instruction at the beginning of the loop.
-     * @param it the Table.Iterator through which to loop.
-     * @param useKeys 'true' to iterate through the keys of the table, or
-     * 'false' to iterate through its values.
+     * @param cursor the Cursor through which to loop.
      */
     public State(
       InterpreterState.Loop enclosing,
       Instruction.Loop instruction,
-      Table.Iterator it
+      Cursor cursor
     ) {
       super(enclosing, instruction);
-      this.it = it;
+      this.cursor = cursor;
     }
 
-    /** The Table.Iterator through which to loop. */
-    public Table.Iterator it;
+    /** The Cursor through which to loop. */
+    public final Cursor cursor;
     
     /* Implement things in DeepCopyable. */
     
@@ -130,8 +103,106 @@ public class For extends Instruction.Loop {
       return new State(
         (InterpreterState.Loop)enclosing,
         this.instruction,
-        this.it
+        this.cursor.deepCopy()
       );
     }
   }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** A position in a sequence of key-value pairs, used by a For.State. */
+  public static abstract class Cursor {
+    /** If there are no more pairs, returns 'false'. Otherwise, pushes the key
+     * and then the value of the next pair, moves past it, and returns 'true'.
+     */
+    public abstract boolean next(InterpreterState state);
+
+    /** Returns a Cursor at the same position as this one, which moves
+     * independently of it. */
+    public abstract Cursor deepCopy();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** A Cursor through the pairs of a Table. */
+  public static final class TableCursor extends Cursor {
+    /** Constructs a TableCursor.
+     * @param c a Table.Cursor positioned before the next pair.
+     */
+    public TableCursor(Table.Cursor c) { this.c = c; }
+
+    /** A Table.Cursor positioned before the next pair. It is reused for every
+     * step of the loop. */
+    public final Table.Cursor c;
+
+    public boolean next(InterpreterState state) {
+      final Table.Cursor c = this.c;
+      if (!c.next()) return false;
+      state.push((Value)c.key);
+      state.push((Value)c.value);
+      return true;
+    }
+
+    /** Table.Cursors are mutable, so the copy captures the position of 'c'
+     * in a new one. */
+    public Cursor deepCopy() {
+      return new TableCursor(new Table.Cursor(this.c));
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** A Cursor that maps the integers from 'i' to 'n-1' to themselves. The
+   * numbers are pushed unboxed. */
+  public static final class RangeCursor extends Cursor {
+    /** Constructs a RangeCursor.
+     * @param i the first integer.
+     * @param n one more than the last integer.
+     */
+    public RangeCursor(int i, int n) { this.i = i; this.n = n; }
+
+    /** The next integer. */
+    public int i;
+
+    /** One more than the last integer. */
+    public final int n;
+
+    public boolean next(InterpreterState state) {
+      if (this.i>=this.n) return false;
+      state.pushNum(this.i);
+      state.pushNum(this.i);
+      this.i++;
+      return true;
+    }
+
+    public Cursor deepCopy() { return new RangeCursor(this.i, this.n); }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** A Cursor that maps the indices from 'i' to 's.length()-1' to the
+   * corresponding characters of 's' (strings of length 1). */
+  public static final class StringCursor extends Cursor {
+    /** Constructs a StringCursor.
+     * @param s the string.
+     * @param i the first index.
+     */
+    public StringCursor(Value.Str s, int i) { this.s = s; this.i = i; }
+
+    /** The string. */
+    public final Value.Str s;
+
+    /** The next index. */
+    public int i;
+
+    public boolean next(InterpreterState state) {
+      if (this.i>=this.s.length()) return false;
+      state.pushNum(this.i);
+      state.push(this.s.substring(this.i, this.i+1));
+      this.i++;
+      return true;
+    }
+
+    public Cursor deepCopy() { return new StringCursor(this.s, this.i); }
+  }
 }
@@ -5,13 +5,29 @@ import org.sc3d.apt.crazon.vm.state.*;
 
 /** Implements the ">" operation in terms of 'compareTo()'. */
 public final class GE extends Instruction.Op {
-  public GE() { super(">=", 2, 1); }
+  public GE() { this(true); }
+
+  /** @param mayQuicken 'false' to construct a GE that never replaces
+   * itself with a GENumNum. */
+  public GE(boolean mayQuicken) {
+    super(">=", 2, 1);
+    this.mayQuicken = mayQuicken;
+  }
+
+  /** 'true' if this Instruction replaces itself with a GENumNum the first
+   * time it sees two numbers. */
+  public final boolean mayQuicken;
 
   /** Pops two values and pushes a boolean result. */
   public final void execute(InterpreterState state)
   throws CrazonRuntimeException {
     final Value y = state.pop();
     final Value x = state.pop();
+    if (this.mayQuicken &&
+        x.type==Value.TYPE_NUM && y.type==Value.TYPE_NUM &&
+        state.canReplace(this)) {
+      state.replaceInstruction(this, new GENumNum());
+    }
     try {
       final boolean ans = x.compareTo(y) >= 0;
       state.push(ans ? Value.Bool.TRUE : Value.Bool.FALSE);
@@ -0,0 +1,32 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** The number-only version of "&gt;=" that GE installs in place of itself.
+ * Like LTNumNum, it reverts permanently to a GE that does not quicken if it
+ * sees an operand that is not a number. */
+public final class GENumNum extends Instruction.Op {
+  public GENumNum() { super(">=", 2, 1); }
+
+  /** Pops two numbers, which may be unboxed, and pushes 'TRUE' if the
+   * bottom-most is greater than or equal to the top-most. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    if (!state.isNum(0) || !state.isNum(1)) {
+      if (state.canReplace(this)) {
+        state.replaceInstruction(this, new GE(false));
+      }
+      GENERIC.execute(state);
+      return;
+    }
+    final double y = state.popNum();
+    final double x = state.popNum();
+    state.push(x >= y ? Value.Bool.TRUE : Value.Bool.FALSE);
+  }
+
+  /* Private. */
+
+  /** A GE that never quickens, to which this defers for non-numbers. */
+  private static final GE GENERIC = new GE(false);
+}
@@ -0,0 +1,32 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** The specialisation of GT for numeric operands. When the operands are not
+ * both numbers, it hands its slot back to a GT that does not quicken, and
+ * computes the result as that would. */
+public final class GTNumNum extends Instruction.Op {
+  public GTNumNum() { super(">", 2, 1); }
+
+  /** Pops two numbers, which may be unboxed, and pushes 'TRUE' if the
+   * bottom-most is greater than the top-most. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    if (!state.isNum(0) || !state.isNum(1)) {
+      if (state.canReplace(this)) {
+        state.replaceInstruction(this, new GT(false));
+      }
+      GENERIC.execute(state);
+      return;
+    }
+    final double y = state.popNum();
+    final double x = state.popNum();
+    state.push(x > y ? Value.Bool.TRUE : Value.Bool.FALSE);
+  }
+
+  /* Private. */
+
+  /** The generic comparison, used when the operands are not numbers. */
+  private static final GT GENERIC = new GT(false);
+}
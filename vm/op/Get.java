@@ -16,18 +16,47 @@ public final class Get extends Instruction.Op {
   throws CrazonRuntimeException {
     final Value k = state.pop();
     final Value t = state.pop();
+    state.push(get(t, k, state));
+  }
+
+  /* New API. */
+
+  /** Returns the element of 't' whose key is 'k', as described for
+   * 'execute()'. This method is shared by the Instructions that fuse "GET"
+   * with its operands.
+   * @param state used only to construct exceptions.
+   * @throws CrazonRuntimeException if 't' cannot be subscripted by 'k', or if
+   * the element is not defined.
+   */
+  public static Value get(Value t, Value k, InterpreterState state)
+  throws CrazonRuntimeException {
+    return get(t, k, -1, state);
+  }
+
+  /** Equivalent to 'get(t, k, state)'.
+   * @param attribute the attribute number of 'k' (see 'Shape.attribute()') if
+   * it is known, otherwise '-1'.
+   */
+  public static Value get(
+    Value t,
+    Value k,
+    int attribute,
+    InterpreterState state
+  ) throws CrazonRuntimeException {
     Value v;
     try {
       switch (t.type) {
         case Value.TYPE_STR: {
-          final String tStr = ((Value.Str)t).v;
+          final Value.Str tStr = (Value.Str)t;
           final double kNum = ((Value.Num)k).v;
           if (kNum!=(int)kNum) throw new CrazonRuntimeException(
             "String subscript must be an integer, not "+k,
             state
           );
           final int index = (int)kNum;
-          v = new Value.Str(tStr.substring(index, index+1));
+          v = index>=0 && index<tStr.length() ?
+            tStr.substring(index, index+1) :
+            null;
           break;
         }
         case Value.TYPE_TAB: {
@@ -37,8 +66,12 @@ public final class Get extends Instruction.Op {
         }
         case Value.TYPE_OBJ: {
           final Value.Obj tObj = (Value.Obj)t;
-          final String kStr = ((Value.Str)k).v;
-          v = tObj.get(kStr);
+          if (attribute>=0) {
+            v = tObj.get(attribute);
+          } else {
+            final String kStr = ((Value.Str)k).toJavaString();
+            v = tObj.get(kStr);
+          }
           break;
         }
         default: throw new CrazonRuntimeException(
@@ -56,6 +89,33 @@ public final class Get extends Instruction.Op {
       t+"["+k+"] is not defined",
       state
     );
-    state.push(v);
+    return v;
+  }
+
+  /** Equivalent to 'state.push(get(t, k, attribute, state))', except that
+   * numerical attributes of objects are pushed unboxed. */
+  public static void push(
+    Value t,
+    Value k,
+    int attribute,
+    InterpreterState state
+  ) throws CrazonRuntimeException {
+    if (attribute>=0 && t.type==Value.TYPE_OBJ) {
+      final Value.Obj tObj = (Value.Obj)t;
+      final int slot = tObj.shape.slotOf(attribute);
+      if (slot>=0 && tObj.shape.types[slot]==Value.TYPE_NUM) {
+        state.pushNum(tObj.getNumSlot(slot));
+        return;
+      }
+    }
+    state.push(get(t, k, attribute, state));
+  }
+
+  /** Returns the attribute number (see 'Shape.attribute()') of 'key' if it is
+   * a string, otherwise '-1'. This is used by Instructions with a constant
+   * subscript, in order to look up the attribute number just once. */
+  public static int attributeOf(Value key) {
+    if (key.type!=Value.TYPE_STR) return -1;
+    return Shape.attribute(((Value.Str)key).toJavaString());
   }
 }
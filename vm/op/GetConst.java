@@ -0,0 +1,28 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** A superinstruction equivalent to "&lt;key&gt; GET". Constructed by the
+ * Assembler. */
+public final class GetConst extends Instruction.Op {
+  /** @param key the constant subscript. */
+  public GetConst(Constant key) {
+    super(key.name+" GET", 1, 1);
+    this.key = key.v;
+    this.attribute = Get.attributeOf(key.v);
+  }
+
+  /** The constant subscript. */
+  public final Value key;
+
+  /** The attribute number of 'key', or '-1' if it is not a string. */
+  public final int attribute;
+
+  /** Pops a value, subscripts it by 'key' as for "GET", and leaves the result
+   * on the stack. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    Get.push(state.pop(), this.key, this.attribute, state);
+  }
+}
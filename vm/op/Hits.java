@@ -0,0 +1,103 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** Implements the "HITS" operation, which finds the visible sprites that
+ * overlap a rectangle. The search uses the RenderList's SpriteGrid, so it costs
+ * time proportional to the number of sprites near the rectangle, not to the
+ * total number of sprites. */
+public final class Hits extends Instruction.Op {
+  public Hits() { super("HITS", 1, 1); }
+
+  /** Pops one value, which must be an object or a table with number-valued
+   * attributes or fields "X", "Y", "W" and "H" describing a rectangle. Pushes
+   * a list of the visible sprites, other than the value itself, which overlap
+   * the rectangle, in plotting order. A list is a table with keys from '0' to
+   * 'n-1'. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    final Value r = state.pop();
+    final double x = coordinate(r, "X", state);
+    final double y = coordinate(r, "Y", state);
+    final double w = coordinate(r, "W", state);
+    final double h = coordinate(r, "H", state);
+    final Sprite[] sprites = state.renderList==null ? new Sprite[0] :
+      state.renderList.overlapping(
+        x, y, w, h,
+        r instanceof Sprite ? (Sprite)r : null
+      );
+    Table ans = null;
+    for (int i=0; i<sprites.length; i++) {
+      ans = Table.put(ans, Value.Num.valueOf(i), sprites[i]);
+    }
+    state.push(new Value.Tab(ans));
+  }
+
+  /* Private. */
+
+  /** Returns the number-valued attribute or field called 'name' of 'r'.
+   * @throws CrazonRuntimeException if 'r' has no such attribute or field.
+   */
+  private static double coordinate(
+    Value r,
+    String name,
+    InterpreterState state
+  ) throws CrazonRuntimeException {
+    Object v = null;
+    if (r instanceof Value.Obj) {
+      v = ((Value.Obj)r).get(name);
+    } else if (r instanceof Value.Tab) {
+      v = Table.get(((Value.Tab)r).v, new Value.Str(name));
+    }
+    if (!(v instanceof Value.Num)) throw new CrazonRuntimeException(
+      "Cannot apply HITS to "+r+"; it must have a number "+name,
+      state
+    );
+    return ((Value.Num)v).v;
+  }
+
+  /* Test code. */
+
+  public static void test(InterpreterState state, Value r)
+  throws CrazonRuntimeException {
+    state.frame = new InterpreterState.Call(state.frame, 0, 0, 2);
+    state.push(r);
+    new Hits().execute(state);
+    System.out.println("HITS "+r+" = "+state.pop());
+  }
+
+  public static void main(String[] args) throws CrazonException {
+    final AbstractPlatform platform = new AbstractPlatform(320, 240) {
+      public Value.Tab getKeys() { return new Value.Tab(null); }
+      public Value.Pic newPicture(String varName, java.io.InputStream in) {
+        return null;
+      }
+      public void render(
+        org.sc3d.apt.crazon.vm.state.Window window,
+        Sprite[] sprites
+      ) {}
+      public void print(String text) { System.out.print(text); }
+      public DeepCopyable deepCopy() { return this; }
+    };
+    final InterpreterState state =
+      new InterpreterState(null, null, null, platform);
+    final Value.Pic pic = new Value.Pic("pic", 10, 10) {};
+    final Sprite[] sprites = new Sprite[4];
+    for (int i=0; i<sprites.length; i++) {
+      sprites[i] = new Sprite(pic);
+      sprites[i].set("X", new Value.Num(8*i));
+      sprites[i].set("IsVisible", Value.Bool.TRUE);
+      state.renderList.update(sprites[i]);
+    }
+    test(state, sprites[0]);
+    test(state, sprites[1]);
+    Table t = null;
+    t = Table.put(t, new Value.Str("X"), new Value.Num(15));
+    t = Table.put(t, new Value.Str("Y"), new Value.Num(5));
+    t = Table.put(t, new Value.Str("W"), new Value.Num(1));
+    t = Table.put(t, new Value.Str("H"), new Value.Num(1));
+    test(state, new Value.Tab(t));
+    test(state, state.window);
+  }
+}
@@ -0,0 +1,32 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** Compares two numbers with "&lt;=". LE installs this in place of itself;
+ * any other operands de-optimise it, and its slot reverts to an LE whose
+ * 'mayQuicken' is 'false'. */
+public final class LENumNum extends Instruction.Op {
+  public LENumNum() { super("<=", 2, 1); }
+
+  /** Pops two numbers, which may be unboxed, and pushes 'TRUE' if the
+   * bottom-most is less than or equal to the top-most. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    if (!state.isNum(0) || !state.isNum(1)) {
+      if (state.canReplace(this)) {
+        state.replaceInstruction(this, new LE(false));
+      }
+      GENERIC.execute(state);
+      return;
+    }
+    final double y = state.popNum();
+    final double x = state.popNum();
+    state.push(x <= y ? Value.Bool.TRUE : Value.Bool.FALSE);
+  }
+
+  /* Private. */
+
+  /** An LE that never quickens, used for operands other than numbers. */
+  private static final LE GENERIC = new LE(false);
+}
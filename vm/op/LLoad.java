@@ -19,6 +19,6 @@ public final class LLoad extends Instruction.Op {
    */
   public final void execute(InterpreterState state)
   throws CrazonRuntimeException {
-    state.push(state.getLocal(this.index));
+    state.pushLocal(this.index);
   }
 }
@@ -0,0 +1,34 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** A superinstruction equivalent to "LLOAD(name) &lt;key&gt; GET", which is
+ * how the compiler reads an attribute of a local object or an element of a
+ * local table. Constructed by the Assembler. */
+public final class LLoadGetConst extends Instruction.Op {
+  /** @param load the "LLOAD(name)" instruction.
+   * @param key the constant subscript. */
+  public LLoadGetConst(LLoad load, Constant key) {
+    super(load.name+" "+key.name+" GET", 0, 1);
+    this.index = load.index;
+    this.key = key.v;
+    this.attribute = Get.attributeOf(key.v);
+  }
+
+  /** Index of the local variable to load. */
+  public final int index;
+
+  /** The constant subscript. */
+  public final Value key;
+
+  /** The attribute number of 'key', or '-1' if it is not a string. */
+  public final int attribute;
+
+  /** Reads the local variable with index 'index', subscripts it by 'key' as
+   * for "GET", and leaves the result on the stack. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    Get.push(state.getLocal(this.index), this.key, this.attribute, state);
+  }
+}
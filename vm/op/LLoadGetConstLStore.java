@@ -0,0 +1,42 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** A superinstruction equivalent to "LLOAD(name) &lt;key&gt; GET
+ * LSTORE(name)", which is how the compiler unpacks the arguments of a
+ * function. Constructed by the Assembler. */
+public final class LLoadGetConstLStore extends Instruction.Op {
+  /** @param get the "LLOAD(name) &lt;key&gt; GET" instruction.
+   * @param store the "LSTORE(name)" instruction. */
+  public LLoadGetConstLStore(LLoadGetConst get, LStore store) {
+    super(get.name+" "+store.name, 0, 0);
+    this.loadIndex = get.index;
+    this.key = get.key;
+    this.attribute = get.attribute;
+    this.storeIndex = store.index;
+  }
+
+  /** Index of the local variable to load. */
+  public final int loadIndex;
+
+  /** The constant subscript. */
+  public final Value key;
+
+  /** The attribute number of 'key', or '-1' if it is not a string. */
+  public final int attribute;
+
+  /** Index of the local variable to store. */
+  public final int storeIndex;
+
+  /** Reads the local variable with index 'loadIndex', subscripts it by 'key'
+   * as for "GET", and writes the result to the local variable with index
+   * 'storeIndex'. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    state.putLocal(
+      this.storeIndex,
+      Get.get(state.getLocal(this.loadIndex), this.key, this.attribute, state)
+    );
+  }
+}
@@ -18,6 +18,6 @@ public final class LStore extends Instruction.Op {
    * variable with index 'index'.
    */
   public final void execute(InterpreterState state) {
-    state.putLocal(this.index, state.pop());
+    state.popLocal(this.index);
   }
 }
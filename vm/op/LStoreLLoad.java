@@ -0,0 +1,33 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** A superinstruction equivalent to "LSTORE(a) ; LLOAD(b)", which occurs at
+ * the boundary between consecutive statements. The two local variables may
+ * be the same or different. Constructed by the Assembler. */
+public final class LStoreLLoad extends Instruction.Op {
+  /** @param store the "LSTORE(a)" instruction.
+   * @param load the "LLOAD(b)" instruction, which need not refer to the same
+   * local variable as 'store'. */
+  public LStoreLLoad(LStore store, LLoad load) {
+    super(store.name+" "+load.name, 1, 1);
+    this.store = store;
+    this.load = load;
+  }
+
+  /** The "LSTORE(a)" instruction that this Instruction replaces. */
+  public final LStore store;
+
+  /** The "LLOAD(b)" instruction that this Instruction replaces. */
+  public final LLoad load;
+
+  /** Pops a Value and writes it to the local variable with index
+   * 'store.index', then reads the local variable with index 'load.index' and
+   * leaves it on the stack. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    state.popLocal(this.store.index);
+    state.pushLocal(this.load.index);
+  }
+}
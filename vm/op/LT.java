@@ -5,13 +5,29 @@ import org.sc3d.apt.crazon.vm.state.*;
 
 /** Implements the "&lt;" operation in terms of 'compareTo()'. */
 public final class LT extends Instruction.Op {
-  public LT() { super("<", 2, 1); }
+  public LT() { this(true); }
+
+  /** @param mayQuicken 'false' to construct an LT that never replaces
+   * itself with an LTNumNum. */
+  public LT(boolean mayQuicken) {
+    super("<", 2, 1);
+    this.mayQuicken = mayQuicken;
+  }
+
+  /** 'true' if this Instruction replaces itself with an LTNumNum the first
+   * time it sees two numbers. */
+  public final boolean mayQuicken;
 
   /** Pops two values and pushes a boolean result. */
   public final void execute(InterpreterState state)
   throws CrazonRuntimeException {
     final Value y = state.pop();
     final Value x = state.pop();
+    if (this.mayQuicken &&
+        x.type==Value.TYPE_NUM && y.type==Value.TYPE_NUM &&
+        state.canReplace(this)) {
+      state.replaceInstruction(this, new LTNumNum());
+    }
     try {
       final boolean ans = x.compareTo(y) < 0;
       state.push(ans ? Value.Bool.TRUE : Value.Bool.FALSE);
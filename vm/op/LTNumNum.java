@@ -0,0 +1,33 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** The quickened form of "&lt;" for two numbers, which compares them using
+ * Java's '&lt;' rather than 'compareTo()'. If either operand is not a
+ * number, it falls back on an LT that will not quicken again, which also
+ * takes its place. */
+public final class LTNumNum extends Instruction.Op {
+  public LTNumNum() { super("<", 2, 1); }
+
+  /** Pops two numbers, which may be unboxed, and pushes 'TRUE' if the
+   * bottom-most is less than the top-most. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    if (!state.isNum(0) || !state.isNum(1)) {
+      if (state.canReplace(this)) {
+        state.replaceInstruction(this, new LT(false));
+      }
+      GENERIC.execute(state);
+      return;
+    }
+    final double y = state.popNum();
+    final double x = state.popNum();
+    state.push(x < y ? Value.Bool.TRUE : Value.Bool.FALSE);
+  }
+
+  /* Private. */
+
+  /** Compares operands that are not both numbers. */
+  private static final LT GENERIC = new LT(false);
+}
@@ -20,13 +20,13 @@ public final class Len extends Instruction.Op {
     final Value x = state.pop();
     switch (x.type) {
       case Value.TYPE_STR: {
-        final String xStr = ((Value.Str)x).v;
-        state.push(new Value.Num(xStr.length()));
+        final Value.Str xStr = (Value.Str)x;
+        state.push(Value.Num.valueOf(xStr.length()));
         return;
       }
       case Value.TYPE_TAB: {
         final Table xTab = ((Value.Tab)x).v;
-        state.push(new Value.Num(Table.size(xTab)));
+        state.push(Value.Num.valueOf(Table.size(xTab)));
         return;
       }
       default: throw new CrazonRuntimeException(
@@ -0,0 +1,64 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** A superinstruction equivalent to "TABLE &lt;key&gt; &lt;value&gt; PUT
+ * &lt;key&gt; &lt;value&gt; PUT ..." where the keys and values are constants
+ * and the keys are in ascending order. Constructed by the Assembler, which
+ * adds one pair for each "PUT" it absorbs and then calls 'finish()', which
+ * builds the Table once, using a Table.Builder, before the program runs. */
+public final class LiteralTable extends Instruction.Op {
+  /** Constructs a LiteralTable containing one pair.
+   * @param key the key, which must be a valid key for a table.
+   * @param value the value.
+   */
+  public LiteralTable(Constant key, Constant value) {
+    super("TABLE "+key.name+" "+value.name+" PUT ...", 0, 1);
+    this.builder = new Table.Builder();
+    this.builder.add(key.v, value.v);
+  }
+
+  /* New API. */
+
+  /** Returns 'true' if 'key' can be added by 'add()'. */
+  public boolean canAdd(Constant key) {
+    return
+      this.builder!=null &&
+      key.v.type<=5 &&
+      key.v.compareTo(this.builder.lastKey())>0;
+  }
+
+  /** Adds a pair, which must come after all the others. For use by the
+   * Assembler only, before the program runs.
+   * @throws IllegalStateException if '!canAdd(key)'.
+   */
+  public void add(Constant key, Constant value) {
+    if (!this.canAdd(key)) throw new IllegalStateException("Can't add "+key);
+    this.builder.add(key.v, value.v);
+  }
+
+  /** Builds the Table from the pairs added so far. After this, no more pairs
+   * can be added. For use by the Assembler only, before the program runs.
+   * Calling this more than once has no further effect. */
+  public void finish() {
+    if (this.builder==null) return;
+    this.table = new Value.Tab(this.builder.build());
+    this.builder = null;
+  }
+
+  /** Pushes the Table. */
+  public final void execute(InterpreterState state) {
+    state.push(this.table);
+  }
+
+  /* Private. */
+
+  /** Accumulates the pairs until 'finish()' is called, then 'null'. */
+  private Table.Builder builder;
+
+  /** The Value pushed by 'execute()', or 'null' until 'finish()' is called.
+   * It is assigned before the Assembler returns the Instructions, so no
+   * locking is needed to read it. */
+  private Value.Tab table;
+}
@@ -0,0 +1,33 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** A superinstruction equivalent to "LOAD(name) &lt;key&gt; GET". Constructed
+ * by the Assembler. */
+public final class LoadGetConst extends Instruction.Op {
+  /** @param load the "LOAD(name)" instruction.
+   * @param key the constant subscript. */
+  public LoadGetConst(Load load, Constant key) {
+    super(load.name+" "+key.name+" GET", 0, 1);
+    this.index = load.index;
+    this.key = key.v;
+    this.attribute = Get.attributeOf(key.v);
+  }
+
+  /** Index of the global variable to load. */
+  public final int index;
+
+  /** The constant subscript. */
+  public final Value key;
+
+  /** The attribute number of 'key', or '-1' if it is not a string. */
+  public final int attribute;
+
+  /** Reads the global variable with index 'index', subscripts it by 'key' as
+   * for "GET", and leaves the result on the stack. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    Get.push(state.getGlobal(this.index), this.key, this.attribute, state);
+  }
+}
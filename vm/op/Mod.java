@@ -16,7 +16,7 @@ public final class Mod extends Instruction.Op {
       final double yNum = ((Value.Num)y).v;
       final double xNum = ((Value.Num)x).v;
       final double ans = xNum - yNum*Math.floor(xNum/yNum);
-      state.push(new Value.Num(ans));
+      state.push(Value.Num.valueOf(ans));
     } catch (ClassCastException e) {
       throw new CrazonRuntimeException(
         "Cannot apply % to "+x+" and "+y+"; two numbers are required",
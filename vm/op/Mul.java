@@ -5,7 +5,18 @@ import org.sc3d.apt.crazon.vm.state.*;
 
 /** Implements the "*" operation. Multiplies numbers, replicates strings. */
 public final class Mul extends Instruction.Op {
-  public Mul() { super("*", 2, 1); }
+  public Mul() { this(true); }
+
+  /** @param mayQuicken 'false' to construct a Mul that never replaces
+   * itself with a MulNumNum. */
+  public Mul(boolean mayQuicken) {
+    super("*", 2, 1);
+    this.mayQuicken = mayQuicken;
+  }
+
+  /** 'true' if this Instruction replaces itself with a MulNumNum the first
+   * time it sees two numbers. */
+  public final boolean mayQuicken;
 
   /** Pops two values and pushes a result. The calculation depends on the types of the values popped:<ul>
    * <li>If both operands are numbers, the result is their product.
@@ -15,36 +26,37 @@ public final class Mul extends Instruction.Op {
   throws CrazonRuntimeException  {
     final Value y = state.pop();
     final Value x = state.pop();
+    if (this.mayQuicken &&
+        x.type==Value.TYPE_NUM && y.type==Value.TYPE_NUM &&
+        state.canReplace(this)) {
+      state.replaceInstruction(this, new MulNumNum());
+    }
     switch (x.type + (y.type<<3)) {
       case Value.TYPE_NUM + (Value.TYPE_NUM<<3): {
         final double xNum = ((Value.Num)x).v;
         final double yNum = ((Value.Num)y).v;
         final double ans = xNum * yNum;
-        state.push(new Value.Num(ans));
+        state.push(Value.Num.valueOf(ans));
         return;
       }
       case Value.TYPE_NUM + (Value.TYPE_STR<<3): {
         final int xNum = ((Value.Num)x).intValue();
-        final String yStr = ((Value.Str)y).v;
+        final Value.Str yStr = (Value.Str)y;
         if (xNum<0) throw new CrazonRuntimeException(
           "Cannot concatenate "+x+" copies of "+y,
           state
         );
-        final StringBuffer ans = new StringBuffer();
-        for (int i=0; i<xNum; i++) ans.append(yStr);
-        state.push(new Value.Str(ans.toString()));
+        state.push(repeat(yStr, xNum));
         return;
       }
       case Value.TYPE_STR + (Value.TYPE_NUM<<3): {
-        final String xStr = ((Value.Str)x).v;
+        final Value.Str xStr = (Value.Str)x;
         final int yNum = ((Value.Num)y).intValue();
         if (yNum<0) throw new CrazonRuntimeException(
           "Cannot concatenate "+y+" copies of "+x,
           state
         );
-        final StringBuffer ans = new StringBuffer();
-        for (int i=0; i<yNum; i++) ans.append(xStr);
-        state.push(new Value.Str(ans.toString()));
+        state.push(repeat(xStr, yNum));
         return;
       }
       default: throw new CrazonRuntimeException(
@@ -54,6 +66,16 @@ public final class Mul extends Instruction.Op {
     }
   }
 
+  /* Private. */
+
+  /** Returns the concatenation of 'n' copies of 's'. */
+  private static Value.Str repeat(Value.Str s, int n) {
+    final int len = s.length();
+    final char[] ans = new char[n*len];
+    for (int i=0; i<n; i++) s.getChars(ans, i*len);
+    return new Value.Str(ans);
+  }
+
   /* Test code. */
 
   public static void test(Value x, Value y) throws CrazonRuntimeException {
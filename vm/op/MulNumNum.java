@@ -0,0 +1,31 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** The form of "*" specialised for two numbers, which Mul installs. If a
+ * string is ever replicated here, it gives way permanently to a Mul that
+ * does not quicken. */
+public final class MulNumNum extends Instruction.Op {
+  public MulNumNum() { super("*", 2, 1); }
+
+  /** Pops two numbers, which may be unboxed, and pushes their product. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    if (!state.isNum(0) || !state.isNum(1)) {
+      if (state.canReplace(this)) {
+        state.replaceInstruction(this, new Mul(false));
+      }
+      GENERIC.execute(state);
+      return;
+    }
+    final double y = state.popNum();
+    final double x = state.popNum();
+    state.pushNum(x * y);
+  }
+
+  /* Private. */
+
+  /** A Mul that does not quicken, for operands other than two numbers. */
+  private static final Mul GENERIC = new Mul(false);
+}
@@ -5,12 +5,28 @@ import org.sc3d.apt.crazon.vm.state.*;
 
 /** Implements the "!=" operation in terms of 'equals()'. */
 public final class NE extends Instruction.Op {
-  public NE() { super("!=", 2, 1); }
+  public NE() { this(true); }
+
+  /** @param mayQuicken 'false' to construct an NE that never replaces
+   * itself with an NENumNum. */
+  public NE(boolean mayQuicken) {
+    super("!=", 2, 1);
+    this.mayQuicken = mayQuicken;
+  }
+
+  /** 'true' if this Instruction replaces itself with an NENumNum the
+   * first time it sees two numbers. */
+  public final boolean mayQuicken;
 
   /** Pops two values and pushes a boolean result. */
   public final void execute(InterpreterState state) {
     final Value y = state.pop();
     final Value x = state.pop();
+    if (this.mayQuicken &&
+        x.type==Value.TYPE_NUM && y.type==Value.TYPE_NUM &&
+        state.canReplace(this)) {
+      state.replaceInstruction(this, new NENumNum());
+    }
     final boolean ans = !x.equals(y);
     state.push(ans ? Value.Bool.TRUE : Value.Bool.FALSE);
   }
@@ -0,0 +1,31 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** The quickened form of "!=", installed by NE. It reverts to an NE that
+ * will not quicken again the first time either operand is not a number. */
+public final class NENumNum extends Instruction.Op {
+  public NENumNum() { super("!=", 2, 1); }
+
+  /** Pops two numbers, which may be unboxed, and pushes 'TRUE' if they
+   * are not equal. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    if (!state.isNum(0) || !state.isNum(1)) {
+      if (state.canReplace(this)) {
+        state.replaceInstruction(this, new NE(false));
+      }
+      GENERIC.execute(state);
+      return;
+    }
+    final double y = state.popNum();
+    final double x = state.popNum();
+    state.push(x != y ? Value.Bool.TRUE : Value.Bool.FALSE);
+  }
+
+  /* Private. */
+
+  /** An NE that never quickens, for operands of other types. */
+  private static final NE GENERIC = new NE(false);
+}
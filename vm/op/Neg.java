@@ -20,26 +20,26 @@ public final class Neg extends Instruction.Op {
     switch (x.type) {
       case Value.TYPE_NUM: {
         final double xNum = ((Value.Num)x).v;
-        state.push(new Value.Num(-xNum));
+        state.push(Value.Num.valueOf(-xNum));
         return;
       }
       case Value.TYPE_STR: {
-        final String xStr = ((Value.Str)x).v;
-        state.push(new Value.Str(reverse(xStr)));
+        final Value.Str xStr = (Value.Str)x;
+        state.push(reverse(xStr));
         return;
       }
       default: throw new CrazonRuntimeException("Cannot negate "+x, state);
     }
   }
 
-  private static String reverse(String s) {
+  private static Value.Str reverse(Value.Str s) {
     int len = s.length();
-    StringBuffer dest = new StringBuffer(len);
+    char[] dest = new char[len];
 
     for (int i = len-1; i >= 0; --i) {
-      dest.append(s.charAt(i));
+      dest[len-1-i] = s.charAt(i);
     }
-    return dest.toString();
+    return new Value.Str(dest);
   }
     
   /* Test code. */
@@ -0,0 +1,55 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** Implements the "NTH" operation, which finds the key at a given position in
+ * the sorted order of a table's keys. */
+public final class Nth extends Instruction.Op {
+  public Nth() { super("NTH", 2, 1); }
+
+  /** Pops an integer 'n' and a table, and pushes the key of the table that
+   * comes 'n'th in sorted order, counting from '0'. This takes time
+   * proportional to the logarithm of the size of the table. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    final Value n = state.pop();
+    final Value t = state.pop();
+    if (t.type!=Value.TYPE_TAB || n.type!=Value.TYPE_NUM) {
+      throw new CrazonRuntimeException(
+        "Cannot apply NTH to "+t+" and "+n,
+        state
+      );
+    }
+    final double d = ((Value.Num)n).v;
+    final Table tTab = ((Value.Tab)t).v;
+    if (d!=(int)d || d<0 || d>=Table.size(tTab)) {
+      throw new CrazonRuntimeException(
+        "Cannot take key "+n+" of "+t+": index out of range",
+        state
+      );
+    }
+    state.push((Value)Table.iterator(tTab, (int)d).key);
+  }
+
+  /* Test code. */
+
+  public static void test(Value t, Value n) throws CrazonRuntimeException {
+    final InterpreterState state = new InterpreterState();
+    state.frame = new InterpreterState.Call(state.frame, 0, 0, 2);
+    state.push(t);
+    state.push(n);
+    new Nth().execute(state);
+    System.out.println(t.toLongString()+" NTH "+n+" = "+state.pop());
+  }
+
+  public static void main(String[] args) throws CrazonRuntimeException {
+    Table t = null;
+    for (int i=0; i<10; i++) {
+      t = Table.put(t, new Value.Str("k"+i), new Value.Num(i));
+    }
+    test(new Value.Tab(t), new Value.Num(0));
+    test(new Value.Tab(t), new Value.Num(7));
+    test(new Value.Tab(t), new Value.Num(9));
+  }
+}
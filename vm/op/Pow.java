@@ -19,7 +19,7 @@ public final class Pow extends Instruction.Op {
       final double yNum = ((Value.Num)y).v;
       final double xNum = ((Value.Num)x).v;
       final double ans = Math.pow(xNum, yNum);
-      state.push(new Value.Num(ans));
+      state.push(Value.Num.valueOf(ans));
     } catch (ClassCastException e) {
       throw new CrazonRuntimeException(
         "Cannot apply ** to "+x+" and "+y+"; two numbers are required",
@@ -0,0 +1,62 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** Implements the "RANGE" operation, which selects the pairs of a table whose
+ * keys lie between two bounds. */
+public final class Range extends Instruction.Op {
+  public Range() { super("RANGE", 3, 1); }
+
+  /** Pops two values 'hi' and 'lo' and a table, and pushes a table containing
+   * the pairs of the table whose keys are at least 'lo' and less than 'hi'.
+   * The bounds can be any values that can be keys of a table. This takes time
+   * proportional to the logarithm of the size of the table. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    final Value hi = state.pop();
+    final Value lo = state.pop();
+    final Value t = state.pop();
+    if (t.type!=Value.TYPE_TAB || lo.type>5 || hi.type>5) {
+      throw new CrazonRuntimeException(
+        "Cannot apply RANGE to "+t+", "+lo+" and "+hi,
+        state
+      );
+    }
+    try {
+      state.push(new Value.Tab(Table.range(((Value.Tab)t).v, lo, hi)));
+    } catch (ClassCastException e) {
+      throw new CrazonRuntimeException(
+        "Cannot apply RANGE to "+t+", "+lo+" and "+hi+": "+e.getMessage(),
+        state
+      );
+    }
+  }
+
+  /* Test code. */
+
+  public static void test(Value t, Value lo, Value hi)
+  throws CrazonRuntimeException {
+    final InterpreterState state = new InterpreterState();
+    state.frame = new InterpreterState.Call(state.frame, 0, 0, 3);
+    state.push(t);
+    state.push(lo);
+    state.push(hi);
+    new Range().execute(state);
+    System.out.println(
+      t.toLongString()+" RANGE("+lo+", "+hi+") = "+state.pop().toLongString()
+    );
+  }
+
+  public static void main(String[] args) throws CrazonRuntimeException {
+    Table t = null;
+    for (int i=0; i<10; i++) {
+      t = Table.put(t, new Value.Num(10*i), new Value.Str("v"+i));
+    }
+    t = Table.put(t, new Value.Str("name"), new Value.Str("scores"));
+    test(new Value.Tab(t), new Value.Num(25), new Value.Num(60));
+    test(new Value.Tab(t), Value.Bool.FALSE, new Value.Num(20));
+    test(new Value.Tab(t), new Value.Num(85), new Value.Str("z"));
+    test(new Value.Tab(t), new Value.Num(60), new Value.Num(25));
+  }
+}
@@ -7,10 +7,14 @@ import org.sc3d.apt.crazon.vm.state.*;
 public final class Return extends Instruction.Op {
   public Return() { super("RETURN", 1, 0); }
   
-  /** Pops a return value. Destroys a call frame. Pushes the return value. */
+  /** Pops a return value. Destroys a call frame. Pushes the return value. A
+   * number is passed back unboxed if it was unboxed. */
   public final void execute(InterpreterState state) {
-    final Value result = state.pop();
-    state.frame = state.frame.caller;
-    state.push(result);
+    final InterpreterState.Call callee = state.frame;
+    final int i = callee.sp - 1;
+    final Value result = callee.stack[i];
+    final double num = callee.nums[i];
+    state.popFrame();
+    if (result==null) state.pushNum(num); else state.push(result);
   }
 }
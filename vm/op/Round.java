@@ -14,7 +14,7 @@ public final class Round extends Instruction.Op {
     final Value x = state.pop();
     try {
       final double xNum = ((Value.Num)x).v;
-      state.push(new Value.Num(Math.round(xNum)));
+      state.push(Value.Num.valueOf(Math.round(xNum)));
     } catch (ClassCastException e) {
       throw new CrazonRuntimeException(
         "Cannot apply ROUND to "+x+"; a number is required",
@@ -8,22 +8,40 @@ public final class SetAttr extends Instruction.Op {
   public SetAttr(String name) {
     super("SET("+name+")", 2, 0);
     this.name = name;
+    this.attribute = Shape.attribute(name);
+    this.affectsRenderList =
+      "IsVisible".equals(name) || "Depth".equals(name) ||
+      "X".equals(name) || "Y".equals(name) ||
+      "W".equals(name) || "H".equals(name);
   }
   
   /** The name of the attribute whose value to set. */
   public final String name;
 
+  /** The attribute number of 'name'. */
+  public final int attribute;
+
+  /** 'true' if setting this attribute of a Sprite can change the RenderList.
+   */
+  public final boolean affectsRenderList;
+
   /** Pops a value, and an object. Sets the attribute of the specified object
-   * with name 'name' to the specified value. If the object is an instance of
-   * 'Sprite', adds it to the Set of potentially visible sprites. */
+   * with name 'name' to the specified value. If the object is a Sprite and the
+   * attribute affects its visibility, plotting order or position, updates the
+   * RenderList. */
   public final void execute(InterpreterState state)
   throws CrazonRuntimeException {
-    final Value v = state.pop();
+    final boolean isNum = state.isNum(0);
+    final double vNum = isNum ? state.popNum() : 0.0;
+    final Value v = isNum ? null : state.pop();
     final Value o = state.pop();
     try {
       final Value.Obj oObj = (Value.Obj)o;
-      oObj.set(this.name, v);
-      if (oObj instanceof Sprite) state.visibleSprites.add(o);
+      if (isNum) oObj.setNum(this.attribute, vNum);
+      else oObj.set(this.attribute, v);
+      if (this.affectsRenderList && oObj instanceof Sprite) {
+        state.renderList.update((Sprite)oObj);
+      }
     } catch (ClassCastException e) {
       throw new CrazonRuntimeException(
         "Cannot apply SET to "+o+"; an object is required",
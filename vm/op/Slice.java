@@ -0,0 +1,68 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** Implements the "SLICE" operation, which selects the pairs of a table by
+ * their positions in the sorted order of its keys. */
+public final class Slice extends Instruction.Op {
+  public Slice() { super("SLICE", 3, 1); }
+
+  /** Pops two integers 'hi' and 'lo' and a table, and pushes a table
+   * containing the pairs of the table whose positions in sorted order are at
+   * least 'lo' and less than 'hi', counting from '0'. The keys are unchanged.
+   * Positions outside the table are ignored. This takes time proportional to
+   * the logarithm of the size of the table. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    final Value hi = state.pop();
+    final Value lo = state.pop();
+    final Value t = state.pop();
+    if (
+      t.type!=Value.TYPE_TAB ||
+      lo.type!=Value.TYPE_NUM || hi.type!=Value.TYPE_NUM
+    ) throw new CrazonRuntimeException(
+      "Cannot apply SLICE to "+t+", "+lo+" and "+hi,
+      state
+    );
+    final double loNum = ((Value.Num)lo).v, hiNum = ((Value.Num)hi).v;
+    if (loNum!=Math.floor(loNum) || hiNum!=Math.floor(hiNum)) {
+      throw new CrazonRuntimeException(
+        "Cannot apply SLICE to "+t+", "+lo+" and "+hi+": not integers",
+        state
+      );
+    }
+    // Clamp the bounds before converting them to ints.
+    final Table tTab = ((Value.Tab)t).v;
+    final int size = Table.size(tTab);
+    final int loInt = (int)Math.max(0, Math.min(loNum, size));
+    final int hiInt = (int)Math.max(0, Math.min(hiNum, size));
+    state.push(new Value.Tab(Table.slice(tTab, loInt, hiInt)));
+  }
+
+  /* Test code. */
+
+  public static void test(Value t, Value lo, Value hi)
+  throws CrazonRuntimeException {
+    final InterpreterState state = new InterpreterState();
+    state.frame = new InterpreterState.Call(state.frame, 0, 0, 3);
+    state.push(t);
+    state.push(lo);
+    state.push(hi);
+    new Slice().execute(state);
+    System.out.println(
+      t.toLongString()+" SLICE("+lo+", "+hi+") = "+state.pop().toLongString()
+    );
+  }
+
+  public static void main(String[] args) throws CrazonRuntimeException {
+    Table t = null;
+    for (int i=0; i<10; i++) {
+      t = Table.put(t, new Value.Str("k"+i), new Value.Num(i));
+    }
+    test(new Value.Tab(t), new Value.Num(2), new Value.Num(5));
+    test(new Value.Tab(t), new Value.Num(-3), new Value.Num(1));
+    test(new Value.Tab(t), new Value.Num(8), new Value.Num(100));
+    test(new Value.Tab(t), new Value.Num(5), new Value.Num(5));
+  }
+}
@@ -15,7 +15,6 @@ public final class Spr extends Instruction.Op {
     try {
       final Sprite ans = new Sprite((Value.Pic)pic);
       state.push(ans);
-      state.visibleSprites.add(ans);
     } catch (ClassCastException e) {
       throw new CrazonRuntimeException(
         "Cannot apply SPRITE to "+pic+"; a picture is required",
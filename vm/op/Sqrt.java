@@ -19,7 +19,7 @@ public final class Sqrt extends Instruction.Op {
             "Cannot square root negative number "+x,
             state
           );
-        state.push(new Value.Num(Math.sqrt(xNum)));
+        state.push(Value.Num.valueOf(Math.sqrt(xNum)));
         return;
       }
       default: throw new CrazonRuntimeException(
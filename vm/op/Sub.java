@@ -5,7 +5,18 @@ import org.sc3d.apt.crazon.vm.state.*;
 
 /** Implements the "-" operation. Subtracts numbers, shortens strings. */
 public final class Sub extends Instruction.Op {
-  public Sub() { super("-", 2, 1); }
+  public Sub() { this(true); }
+
+  /** @param mayQuicken 'false' to construct a Sub that never replaces
+   * itself with a SubNumNum. */
+  public Sub(boolean mayQuicken) {
+    super("-", 2, 1);
+    this.mayQuicken = mayQuicken;
+  }
+
+  /** 'true' if this Instruction replaces itself with a SubNumNum the first
+   * time it sees two numbers. */
+  public final boolean mayQuicken;
 
   /** Pops two values and pushes a result. The calculation depends on the types of the values popped:<ul>
    * <li>If both operands are numbers, the result is the bottom-most minus the top-most.
@@ -16,45 +27,43 @@ public final class Sub extends Instruction.Op {
   throws CrazonRuntimeException {
     final Value y = state.pop();
     final Value x = state.pop();
+    if (this.mayQuicken &&
+        x.type==Value.TYPE_NUM && y.type==Value.TYPE_NUM &&
+        state.canReplace(this)) {
+      state.replaceInstruction(this, new SubNumNum());
+    }
     switch (x.type + (y.type<<3)) {
       case Value.TYPE_NUM + (Value.TYPE_NUM<<3): {
         final double xNum = ((Value.Num)x).v;
         final double yNum = ((Value.Num)y).v;
         final double ans = xNum - yNum;
-        state.push(new Value.Num(ans));
+        state.push(Value.Num.valueOf(ans));
         return;
       }
       case Value.TYPE_NUM + (Value.TYPE_STR<<3): {
         final int xNum = ((Value.Num)x).intValue();
-        final String yStr = ((Value.Str)y).v;
+        final Value.Str yStr = (Value.Str)y;
         if (xNum<0 || xNum>yStr.length()) throw new CrazonRuntimeException(
           "Cannot remove "+x+" characters from "+y+": index out of range",
           state
         );
-        final String ans = yStr.substring(xNum);
-        state.push(new Value.Str(ans));
+        state.push(yStr.substring(xNum, yStr.length()));
         return;
       }
       case Value.TYPE_STR + (Value.TYPE_NUM<<3): {
-        final String xStr = ((Value.Str)x).v;
+        final Value.Str xStr = (Value.Str)x;
         final int yNum = ((Value.Num)y).intValue();
         if (yNum<0 || yNum>xStr.length()) throw new CrazonRuntimeException(
           "Cannot remove "+y+" characters from "+x+": index out of range",
           state
         );
-        final String ans = xStr.substring(0, xStr.length()-yNum);
-        state.push(new Value.Str(ans));
+        state.push(xStr.substring(0, xStr.length()-yNum));
         return;
       }
       case Value.TYPE_TAB + (Value.TYPE_TAB<<3): {
         final Table xTab = ((Value.Tab)x).v;
         final Table yTab = ((Value.Tab)y).v;
-        Table ans = null;
-        for (Table.Iterator it = Table.iterator(xTab); it!=null; it=it.next()) {
-          if (Table.get(yTab, it.key)==null)
-            ans = Table.put(ans, it.key, it.value);
-        }
-        state.push(new Value.Tab(ans));
+        state.push(new Value.Tab(Table.difference(xTab, yTab)));
         return;
       }
       default: throw new CrazonRuntimeException(
@@ -0,0 +1,34 @@
+package org.sc3d.apt.crazon.vm.op;
+
+import org.sc3d.apt.crazon.vm.util.*;
+import org.sc3d.apt.crazon.vm.state.*;
+
+/** Subtracts two numbers without boxing them. Sub installs this in place of
+ * itself when it first sees two numbers. If it later sees anything else,
+ * e.g. a string to shorten, it reinstates a Sub whose 'mayQuicken' is
+ * 'false', so that the Instruction does not flip back and forth between the
+ * two forms. */
+public final class SubNumNum extends Instruction.Op {
+  public SubNumNum() { super("-", 2, 1); }
+
+  /** Pops two numbers, which may be unboxed, and pushes the bottom-most
+   * minus the top-most. */
+  public final void execute(InterpreterState state)
+  throws CrazonRuntimeException {
+    if (!state.isNum(0) || !state.isNum(1)) {
+      if (state.canReplace(this)) {
+        state.replaceInstruction(this, new Sub(false));
+      }
+      GENERIC.execute(state);
+      return;
+    }
+    final double y = state.popNum();
+    final double x = state.popNum();
+    state.pushNum(x - y);
+  }
+
+  /* Private. */
+
+  /** Performs the subtraction when the operands are not both numbers. */
+  private static final Sub GENERIC = new Sub(false);
+}
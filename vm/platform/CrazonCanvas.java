@@ -6,7 +6,13 @@ import java.awt.image.*;
 
 /** Provides a CrazonCanvas of a fixed size, backed by an image. Provides
  * methods to clear the backing image to a constant colour, to plot scaled
- * images on it, and to copy it onto the screen. */
+ * images on it, and to copy it onto the screen.
+ * <p>
+ * The backing image can be divided into horizontal bands, which are drawn in
+ * parallel by one thread each. In that case 'clear()' and 'plot()' merely
+ * record what is to be drawn, and the drawing happens in 'flush()'. Each
+ * pixel is computed by exactly the same arithmetic as when there is only one
+ * band, so the result is identical. See 'setBands()'. */
 public class CrazonCanvas extends java.awt.Canvas {
   /** Constructs a CrazonCanvas. The backing image is initially black.
    * @param width the width of the CrazonCanvas in pixels.
@@ -22,6 +28,16 @@ public class CrazonCanvas extends java.awt.Canvas {
     this.data =
       ((DataBufferInt)this.backingImage.getRaster().getDataBuffer()).getData();
     this.lastFrameTime = System.currentTimeMillis();
+    this.bands = 1;
+    this.workers = new Worker[0];
+    this.isCleared = false;
+    this.clearColour = 0;
+    this.pictures = new Picture[16];
+    this.params = new int[16*PARAMS];
+    this.numPlots = 0;
+    this.lock = new Object();
+    this.generation = 0;
+    this.pending = 0;
   }
   
   /* New API. */
@@ -45,12 +61,56 @@ public class CrazonCanvas extends java.awt.Canvas {
     return frame;
   }
   
+  /** Sets the number of horizontal bands into which the backing image is
+   * divided. If 'bands' is one, which is the default, everything is drawn
+   * immediately by the calling thread. Otherwise, 'bands-1' daemon threads are
+   * started to help the thread that calls 'flush()'. Anything recorded but not
+   * yet drawn is drawn first. */
+  public void setBands(int bands) {
+    if (bands<1) throw new IllegalArgumentException("bands must be positive");
+    bands = Math.min(bands, Math.max(1, this.height));
+    this.flush();
+    synchronized (this.lock) {
+      for (int i=0; i<this.workers.length; i++) this.workers[i].mustStop = true;
+      this.lock.notifyAll();
+    }
+    this.bands = bands;
+    this.workers = new Worker[bands-1];
+    for (int i=0; i<this.workers.length; i++) {
+      this.workers[i] = new Worker(this.bandTop(i+1), this.bandTop(i+2));
+      this.workers[i].start();
+    }
+  }
+
+  /** Returns the number of processors available to the Java virtual machine,
+   * or '1' if it cannot say. This is a sensible argument for 'setBands()'. The
+   * relevant method was added to the Java platform after version 1.3, and so
+   * is called by reflection. */
+  public static int availableProcessors() {
+    try {
+      final Object ans = Runtime.class.getMethod(
+        "availableProcessors", new Class[0]
+      ).invoke(Runtime.getRuntime(), new Object[0]);
+      return Math.max(1, ((Integer)ans).intValue());
+    } catch (Throwable e) {
+      return 1;
+    }
+  }
+
   /** Clears the backing image to the specified colour. */
   public void clear(double red, double green, double blue) {
     final int colour =
       (Math.min(0xFF, Math.max(0x00, (int)Math.round(255*red))) << 16) |
       (Math.min(0xFF, Math.max(0x00, (int)Math.round(255*green))) << 8) |
       (Math.min(0xFF, Math.max(0x00, (int)Math.round(255*blue))) << 0);
+    if (this.bands>1) {
+      // Everything recorded so far would be overwritten.
+      this.isCleared = true;
+      this.clearColour = colour;
+      for (int i=0; i<this.numPlots; i++) this.pictures[i] = null;
+      this.numPlots = 0;
+      return;
+    }
     for (int i=0; i<this.data.length; i++) this.data[i] = colour;
   }
   
@@ -100,31 +160,62 @@ public class CrazonCanvas extends java.awt.Canvas {
     );
 //    System.out.println("cxRight="+cxRight+", cyBottom="+cyBottom);
     if (cxLeft>=cxRight || cyTop>=cyBottom) return;
-    int py = pyTop;
-    // For each row of canvas pixels...
-    for (int cy=cyTop; cy<cyBottom; cy++) { // Canvas y-coordinate.
-      final int cRow = cy * this.width;
-      final int pRow = (py>>>16) * picture.width;
-//      System.out.println("cRow="+cRow+", pRow="+pRow);
-      int px = pxLeft;
-      // For each canvas pixel in the row...
-      for (int cx=cxLeft; cx<cxRight; cx++) { // Canvas x-coordinate.
-        final int colour = picture.data[pRow + (px>>>16)];
-        if (colour < 0) // Top bit set => more than half opaque.
-          this.data[cRow + cx] = colour;
-        px += pxStep;
+    if (this.bands>1) {
+      // Record the plot for 'flush()'.
+      if (this.numPlots==this.pictures.length) {
+        final Picture[] oldPictures = this.pictures;
+        this.pictures = new Picture[2*oldPictures.length];
+        System.arraycopy(oldPictures, 0, this.pictures, 0, this.numPlots);
+        final int[] oldParams = this.params;
+        this.params = new int[2*oldParams.length];
+        System.arraycopy(oldParams, 0, this.params, 0, oldParams.length);
       }
-      py += pyStep;
+      final int base = this.numPlots*PARAMS;
+      this.params[base+0] = cxLeft;
+      this.params[base+1] = cxRight;
+      this.params[base+2] = cyTop;
+      this.params[base+3] = cyBottom;
+      this.params[base+4] = pxLeft;
+      this.params[base+5] = pxStep;
+      this.params[base+6] = pyTop;
+      this.params[base+7] = pyStep;
+      this.pictures[this.numPlots++] = picture;
+      return;
+    }
+    this.drawRows(
+      picture, cxLeft, cxRight, cyTop, cyBottom, pxLeft, pxStep, pyTop, pyStep
+    );
+  }
+
+  /** Draws everything recorded by 'clear()' and 'plot()' since the last call,
+   * dividing the work between the bands. Does nothing if there is only one
+   * band, because then everything has already been drawn. */
+  public void flush() {
+    if (this.bands==1 || (!this.isCleared && this.numPlots==0)) return;
+    synchronized (this.lock) {
+      this.pending = this.workers.length;
+      this.generation++;
+      this.lock.notifyAll();
     }
+    this.drawBand(0, this.bandTop(1));
+    synchronized (this.lock) {
+      while (this.pending>0) {
+        try { this.lock.wait(); } catch (InterruptedException e) {}
+      }
+    }
+    this.isCleared = false;
+    for (int i=0; i<this.numPlots; i++) this.pictures[i] = null;
+    this.numPlots = 0;
   }
   
-  /** Copies the backing image onto the screen, then waits until the next frame
-   * is due.
+  /** Calls 'flush()', copies the backing image onto the screen, then waits
+   * until the next frame is due.
    * @return Number of milliseconds by which this frame is late, or zero if the
    * frame is on time. This time is lost forever; future frames will not be
    * shortened to compensate.
    */
   public long doFrame() {
+    this.flush();
     // The next few lines are a replacement for the call:
     //   this.repaint(0, 0, this.width, this.height);
     // The main difference is that painting happens in this thread, not in the
@@ -178,7 +269,150 @@ public class CrazonCanvas extends java.awt.Canvas {
    * intended to be the beginning of the current frame. In practice we may
    * sometimes start the frame a little late. */
   private long lastFrameTime;
-  
+
+  /** The number of horizontal bands. See 'setBands()'. */
+  private int bands;
+
+  /** The threads that draw bands '1' to 'bands-1'. Band '0' is drawn by the
+   * thread that calls 'flush()'. */
+  private Worker[] workers;
+
+  /** 'true' if 'clear()' has been called since the last 'flush()'. */
+  private boolean isCleared;
+
+  /** The colour passed to the last call to 'clear()', if 'isCleared'. */
+  private int clearColour;
+
+  /** The Pictures passed to 'plot()' since the last 'flush()', followed by
+   * unused elements. */
+  private Picture[] pictures;
+
+  /** For each element of 'pictures', 'PARAMS' integers computed by 'plot()'.
+   * See 'drawRows()' for their meanings. */
+  private int[] params;
+
+  /** The number of plots recorded in 'pictures' and 'params'. */
+  private int numPlots;
+
+  /** The number of integers in 'params' per plot. */
+  private static final int PARAMS = 8;
+
+  /** The monitor used to coordinate the Workers. */
+  private final Object lock;
+
+  /** The number of calls to 'flush()' that have started the Workers. */
+  private int generation;
+
+  /** The number of Workers that have not yet finished the current generation.
+   */
+  private int pending;
+
+  /** Returns the y-coordinate of the top row of band 'band', or 'height' if
+   * 'band' is 'bands'. */
+  private int bandTop(int band) {
+    return (int)((long)band*this.height/this.bands);
+  }
+
+  /** Draws everything recorded since the last 'flush()' in the rows from
+   * 'top' (inclusive) to 'bottom' (exclusive). */
+  private void drawBand(int top, int bottom) {
+    if (this.isCleared) {
+      for (int i=top*this.width; i<bottom*this.width; i++) {
+        this.data[i] = this.clearColour;
+      }
+    }
+    for (int i=0; i<this.numPlots; i++) {
+      final int base = i*PARAMS;
+      final int cyTop = this.params[base+2], pyStep = this.params[base+7];
+      final int from = Math.max(top, cyTop);
+      final int to = Math.min(bottom, this.params[base+3]);
+      if (from>=to) continue;
+      this.drawRows(
+        this.pictures[i],
+        this.params[base+0], this.params[base+1], from, to,
+        this.params[base+4], this.params[base+5],
+        this.params[base+6] + (from-cyTop)*pyStep, pyStep
+      );
+    }
+  }
+
+  /** Plots part of a picture. The parameters are computed by 'plot()'.
+   * @param cxLeft the leftmost canvas column (inclusive).
+   * @param cxRight the rightmost canvas column (exclusive).
+   * @param cyTop the topmost canvas row (inclusive).
+   * @param cyBottom the bottommost canvas row (exclusive).
+   * @param pxLeft the fixed-point picture x-coordinate for 'cxLeft'.
+   * @param pxStep the change in 'px' from one canvas column to the next.
+   * @param pyTop the fixed-point picture y-coordinate for 'cyTop'.
+   * @param pyStep the change in 'py' from one canvas row to the next.
+   */
+  private void drawRows(
+    Picture picture,
+    int cxLeft, int cxRight, int cyTop, int cyBottom,
+    int pxLeft, int pxStep, int pyTop, int pyStep
+  ) {
+    int py = pyTop;
+    // For each row of canvas pixels...
+    for (int cy=cyTop; cy<cyBottom; cy++) { // Canvas y-coordinate.
+      final int cRow = cy * this.width;
+      final int pRow = (py>>>16) * picture.width;
+      int px = pxLeft;
+      // For each canvas pixel in the row...
+      for (int cx=cxLeft; cx<cxRight; cx++) { // Canvas x-coordinate.
+        final int colour = picture.data[pRow + (px>>>16)];
+        if (colour < 0) // Top bit set => more than half opaque.
+          this.data[cRow + cx] = colour;
+        px += pxStep;
+      }
+      py += pyStep;
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** A daemon thread which draws one band each time 'flush()' is called. */
+  private final class Worker extends Thread {
+    public Worker(int top, int bottom) {
+      super("CrazonCanvas band "+top+"-"+bottom);
+      this.top = top; this.bottom = bottom;
+      this.mustStop = false;
+      this.generation = CrazonCanvas.this.generation;
+      this.setDaemon(true);
+    }
+
+    /** The rows of the band, from 'top' (inclusive) to 'bottom' (exclusive).
+     */
+    public final int top, bottom;
+
+    /** Set to 'true' (while holding 'lock') to make this Worker exit. */
+    public boolean mustStop;
+
+    /** The value of 'CrazonCanvas.generation' when this Worker was
+     * constructed. This Worker starts work when it changes. */
+    private final int generation;
+
+    public void run() {
+      int seen = this.generation;
+      while (true) {
+        synchronized (CrazonCanvas.this.lock) {
+          while (CrazonCanvas.this.generation==seen && !this.mustStop) {
+            try {
+              CrazonCanvas.this.lock.wait();
+            } catch (InterruptedException e) {}
+          }
+          if (this.mustStop) return;
+          seen = CrazonCanvas.this.generation;
+        }
+        CrazonCanvas.this.drawBand(this.top, this.bottom);
+        synchronized (CrazonCanvas.this.lock) {
+          if (--CrazonCanvas.this.pending==0) {
+            CrazonCanvas.this.lock.notifyAll();
+          }
+        }
+      }
+    }
+  }
+
   /* Test code. */
   
   public static void main(String[] args) {
@@ -194,6 +428,7 @@ public class CrazonCanvas extends java.awt.Canvas {
     // Construct a CrazonCanvas.
     final int cw = 640, ch = 480;
     final CrazonCanvas cc = new CrazonCanvas(cw, ch, 30);
+    if (args.length>0) cc.setBands(Integer.parseInt(args[0]));
     cc.display("Testing CrazonCanvas");
     // Run a little animation.
     while (true) {
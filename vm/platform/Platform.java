@@ -14,6 +14,8 @@ public class Platform extends AbstractPlatform implements KeyListener {
   public Platform(int width, int height, int msPerFrame) {
     super(width, height);
     this.cc = new CrazonCanvas(width, height, msPerFrame);
+    this.cc.setBands(CrazonCanvas.availableProcessors());
+    this.renderThread = new RenderThread(this.cc);
     // Construct but don't show the debug window.
     this.debug = new TextArea(15, 80) {
       public boolean isFocusTraversable() { return false; }
@@ -88,41 +90,38 @@ public class Platform extends AbstractPlatform implements KeyListener {
     org.sc3d.apt.crazon.vm.state.Window window,
     Sprite[] sprites
   ) throws CrazonException {
-    this.cc.clear(
-      window.getDouble("R"),
-      window.getDouble("G"),
-      window.getDouble("B")
-    );
-    final double wx = window.getDouble("X");
-    final double wy = window.getDouble("Y");
-    final double ww = window.getDouble("W");
-    final double wh = window.getDouble("H");
+    final double wx = window.x;
+    final double wy = window.y;
+    final double ww = window.w;
+    final double wh = window.h;
     if (ww<=0 || wh<=0) throw new CrazonException(
       "WINDOW.W and WINDOW.H must be positive"
     ); // FIXME: allow negative (non-zero) values.
     final double xStretch = this.cc.width/ww, yStretch = this.cc.height/wh;
+    final RenderThread.Snapshot frame = this.renderThread.obtain();
+    frame.r = window.r; frame.g = window.g; frame.b = window.b;
     for (int i=0; i<sprites.length; i++) {
-      final double sx = sprites[i].getDouble("X");
-      final double sy = sprites[i].getDouble("Y");
-      final double sw = sprites[i].getDouble("W");
-      final double sh = sprites[i].getDouble("H");
+      final double sx = sprites[i].x;
+      final double sy = sprites[i].y;
+      final double sw = sprites[i].w;
+      final double sh = sprites[i].h;
       if (sw==0 || sh==0) continue;
-      if (sw<0 || sh<0) throw new CrazonException(
-        "Attributes W and H of a sprite must be positive"
-      ); // FIXME: allow negative (non-zero) values.
-      final Picture picture = (Picture)sprites[i].get("Picture");
-      this.cc.plot(
+      if (sw<0 || sh<0) {
+        this.renderThread.cancel(frame);
+        throw new CrazonException(
+          "Attributes W and H of a sprite must be positive"
+        ); // FIXME: allow negative (non-zero) values.
+      }
+      final Picture picture = (Picture)sprites[i].picture;
+      frame.add(
         picture,
         (sx-wx)*xStretch, (sy-wy)*yStretch,
         sw*xStretch, sh*yStretch
       );
     }
-    final long loss = this.cc.doFrame();
-    if (loss > 0L) {
-      // Commented out because it makes lots of output and the debug window is
-      // never cleaned up. Put it back when we have a better debug window.
-      // this.println("Lost "+loss+"ms.");
-    }
+    // Drawing, displaying and waiting for the next frame happen on the
+    // RenderThread, while the interpreter gets on with the next frame.
+    this.renderThread.submit(frame);
   }
 
   public void print(String text) {
@@ -163,6 +162,9 @@ public class Platform extends AbstractPlatform implements KeyListener {
   
   /* Private. */
 
+  /** The thread which draws on 'cc'. */
+  private final RenderThread renderThread;
+
   /** The text area in 'debugWindow'. */
   private final TextArea debug;
   
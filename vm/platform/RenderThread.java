@@ -0,0 +1,160 @@
+package org.sc3d.apt.crazon.vm.platform;
+
+/** A daemon thread which draws frames on a CrazonCanvas, so that the
+ * interpreter can compute the next frame while the current one is drawn and
+ * displayed. The interpreter describes each frame by filling in a Snapshot
+ * obtained from 'obtain()', and passes it to 'submit()'. This RenderThread
+ * then clears the canvas, plots the pictures, and calls
+ * 'CrazonCanvas.doFrame()', which displays the frame and waits until the next
+ * one is due.
+ * <p>
+ * There are two Snapshots. While one is being drawn and displayed, the
+ * interpreter can fill in and submit the other, but 'obtain()' then blocks
+ * until the first frame is over, and 'submit()' blocks until the submitted
+ * frame has been picked up. The interpreter can therefore be at most one
+ * frame ahead of the screen, and its speed is still governed by the frame
+ * rate.
+ */
+public class RenderThread extends Thread {
+  /** Constructs a RenderThread which draws on 'cc', and starts it. */
+  public RenderThread(CrazonCanvas cc) {
+    super("Crazon renderer");
+    this.cc = cc;
+    this.free = new Snapshot[] {new Snapshot(), new Snapshot()};
+    this.numFree = 2;
+    this.pending = null;
+    this.setDaemon(true);
+    this.start();
+  }
+
+  /* New API. */
+
+  /** The CrazonCanvas on which this RenderThread draws. */
+  public final CrazonCanvas cc;
+
+  /** Returns an empty Snapshot for the caller to fill in and pass to
+   * 'submit()', blocking until one is available. */
+  public Snapshot obtain() {
+    synchronized (this) {
+      while (this.numFree==0) {
+        try { this.wait(); } catch (InterruptedException e) {}
+      }
+      final Snapshot ans = this.free[--this.numFree];
+      this.free[this.numFree] = null;
+      ans.size = 0;
+      return ans;
+    }
+  }
+
+  /** Queues 's', which must have been returned by 'obtain()', to be drawn.
+   * The caller must not modify 's' afterwards. Blocks while an earlier
+   * Snapshot is still waiting to be drawn, which can happen if this
+   * RenderThread has finished one frame but has not yet picked up the next.
+   */
+  public void submit(Snapshot s) {
+    synchronized (this) {
+      while (this.pending!=null) {
+        try { this.wait(); } catch (InterruptedException e) {}
+      }
+      this.pending = s;
+      this.notifyAll();
+    }
+  }
+
+  /** Returns 's', which must have been returned by 'obtain()', without
+   * drawing it. */
+  public void cancel(Snapshot s) {
+    synchronized (this) {
+      for (int i=0; i<s.size; i++) s.pictures[i] = null;
+      this.free[this.numFree++] = s;
+      this.notifyAll();
+    }
+  }
+
+  /* Override things in Thread. */
+
+  /** Draws each Snapshot passed to 'submit()'. */
+  public void run() {
+    while (true) {
+      final Snapshot s;
+      synchronized (this) {
+        while (this.pending==null) {
+          try { this.wait(); } catch (InterruptedException e) {}
+        }
+        s = this.pending;
+        this.pending = null;
+        this.notifyAll();
+      }
+      this.cc.clear(s.r, s.g, s.b);
+      for (int i=0; i<s.size; i++) {
+        this.cc.plot(
+          s.pictures[i],
+          s.rects[4*i+0], s.rects[4*i+1], s.rects[4*i+2], s.rects[4*i+3]
+        );
+        s.pictures[i] = null;
+      }
+      this.cc.doFrame();
+      synchronized (this) {
+        this.free[this.numFree++] = s;
+        this.notifyAll();
+      }
+    }
+  }
+
+  /* Private. */
+
+  /** The Snapshots that are neither being filled in, nor pending, nor being
+   * drawn, followed by unused elements. */
+  private final Snapshot[] free;
+
+  /** The number of Snapshots in 'free'. */
+  private int numFree;
+
+  /** The Snapshot that has been submitted but not yet drawn, or 'null'. */
+  private Snapshot pending;
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** A description of a frame, in canvas coordinates. */
+  public static final class Snapshot {
+    private Snapshot() {
+      this.pictures = new Picture[16];
+      this.rects = new double[4*16];
+      this.size = 0;
+    }
+
+    /** The background colour. */
+    public double r, g, b;
+
+    /** Appends a Picture to plot, and the rectangle in which to plot it, in
+     * the form of the arguments to 'CrazonCanvas.plot()'. Pictures are
+     * plotted in the order in which they are added. */
+    public void add(Picture picture, double x, double y, double w, double h) {
+      if (this.size==this.pictures.length) {
+        final Picture[] oldPictures = this.pictures;
+        this.pictures = new Picture[2*oldPictures.length];
+        System.arraycopy(oldPictures, 0, this.pictures, 0, this.size);
+        final double[] oldRects = this.rects;
+        this.rects = new double[2*oldRects.length];
+        System.arraycopy(oldRects, 0, this.rects, 0, oldRects.length);
+      }
+      this.pictures[this.size] = picture;
+      this.rects[4*this.size+0] = x;
+      this.rects[4*this.size+1] = y;
+      this.rects[4*this.size+2] = w;
+      this.rects[4*this.size+3] = h;
+      this.size++;
+    }
+
+    /* Private. */
+
+    /** The Pictures, followed by unused elements. */
+    private Picture[] pictures;
+
+    /** Four elements of 'rects' for each element of 'pictures'. */
+    private double[] rects;
+
+    /** The number of Pictures. */
+    private int size;
+  }
+}
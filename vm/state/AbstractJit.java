@@ -0,0 +1,17 @@
+package org.sc3d.apt.crazon.vm.state;
+
+/** The interface assumed by the "CALL" instruction and implemented by the
+ * just-in-time compiler. The just-in-time compiler watches which functions are
+ * called often, and translates their bodies into CompiledCode. The interpreter
+ * then runs the CompiledCode in place of the Instructions. */
+public abstract class AbstractJit {
+  /** Called each time 'f' is called, after the new stack frame has been
+   * constructed.
+   * @param f the function being called.
+   * @param state the InterpreterState, which must be executing the same
+   * 'instructions' for every call.
+   * @return CompiledCode that can execute the body of 'f', or 'null' if the
+   * body of 'f' must be interpreted.
+   */
+  public abstract CompiledCode lookup(Value.Func f, InterpreterState state);
+}
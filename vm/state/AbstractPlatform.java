@@ -43,7 +43,10 @@ public abstract class AbstractPlatform implements DeepCopyable {
   public abstract Value.Pic newPicture(String varName, InputStream in)
   throws IOException;
   
-  /** Renders a frame and blocks until the next frame is due.
+  /** Renders a frame and blocks until the next frame is due. An implementation
+   * may instead draw the frame on another thread, returning as soon as it is
+   * ready to accept the following frame, but it must copy everything it needs
+   * from 'window' and 'sprites' before returning.
    * @param window the "WINDOW" object, from which this method extracts the
    * background colour and the window coordinates.
    * @param sprites the sprites which are visible (in the sense of the
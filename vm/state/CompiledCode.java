@@ -0,0 +1,34 @@
+package org.sc3d.apt.crazon.vm.state;
+
+/** The superclass of the classes generated at run time by the second
+ * execution tier (see AbstractJit). An instance of CompiledCode executes the
+ * Instructions of one function body on behalf of the interpreter, without the
+ * interpreter's per-Instruction dispatch. Instructions that it does not
+ * translate are executed by calling the same 'execute()' methods as the
+ * interpreter, found in 'InterpreterState.instructions', and those that it
+ * does translate behave identically, so it has exactly the same semantics,
+ * including the CrazonRuntimeExceptions it throws. */
+public abstract class CompiledCode {
+  /** Constructs a CompiledCode for the body of 'function'. */
+  protected CompiledCode(Value.Func function) {
+    this.function = function;
+  }
+
+  /* New API. */
+
+  /** The function whose body this CompiledCode executes. */
+  public final Value.Func function;
+
+  /** Executes Instructions of the function body in 'state.frame', starting
+   * from 'state.frame.pc', until the stack frame changes (i.e. a "CALL" or
+   * "RETURN" is executed), until the platform asks the game to quit, or until
+   * the program counter reaches an Instruction that could not be compiled.
+   * @return 'true' if control should pass back to the interpreter's main loop,
+   * or 'false' if the interpreter must execute the Instruction at
+   * 'state.frame.pc' itself before calling this method again.
+   * @throws EndException when the end of program is reached.
+   * @throws CrazonRuntimeException if an Instruction cannot be executed.
+   */
+  public abstract boolean run(InterpreterState state)
+  throws Instruction.EndException, CrazonRuntimeException;
+}
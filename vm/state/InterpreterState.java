@@ -2,8 +2,6 @@ package org.sc3d.apt.crazon.vm.state;
 
 import org.sc3d.apt.crazon.vm.util.*;
 
-import java.util.*;
-
 /** Represents the state of the Crazon interpreter. Instances are mutable, and
  * indeed are modified by the 'execute()' methods of Instructions.
  * <p>
@@ -13,13 +11,26 @@ import java.util.*;
  * counter, the values of the local variables, a short arithmetic stack, and the
  * value of the stack pointer.
  * <p>
+ * The local variables and arithmetic stacks of all the stack frames are
+ * windows into one array, which grows when necessary. A called function's
+ * window starts where its caller's stack ends. 'pushFrame()' and 'popFrame()'
+ * recycle the Call objects that describe the stack frames, so that calling a
+ * function allocates nothing.
+ * <p>
+ * Numbers on the stack and in local variables may be stored unboxed, so that
+ * numerical code need not allocate a Value.Num for each intermediate result.
+ * See 'Call' for the representation. 'pop()' and 'getLocal()' box the number
+ * if necessary, so only Instructions that care about the difference need to
+ * know about it.
+ * <p>
  * For efficiency, all fields of this method are public and can be accessed
  * directly. Accessor methods are also provided as a safer alternative.
  */
 // FIXME: debugging information (names of globals and locals) too.
 public final class InterpreterState implements DeepCopyable {
   /** Constructs an InterpreterState.
-   * @param instructions the program to execute.
+   * @param instructions the program to execute. It is copied, so that
+   * 'replaceInstruction()' does not affect any other InterpreterState.
    * @param globals the initial values of the global variables.
    * @param globalNames the source-code names of the global variables (used in
    * diagnostics only).
@@ -32,17 +43,20 @@ public final class InterpreterState implements DeepCopyable {
     String[] globalNames,
     AbstractPlatform platform
   ) {
-    this.instructions = instructions;
+    this.instructions =
+      instructions==null ? null : (Instruction[])instructions.clone();
     this.globals = globals;
     this.globalNames = globalNames;
     this.platform = platform;
     this.frame = null;
+    this.jit = null;
+    this.freeFrames = null;
     if (platform==null) {
-      this.visibleSprites = null;
+      this.renderList = null;
       this.window = null;
       this.keys = null;
     } else {
-      this.visibleSprites = new HashSet();
+      this.renderList = new RenderList();
       this.window = new Window(platform.width, platform.height);
       this.keys = platform.getKeys();
     }
@@ -56,10 +70,12 @@ public final class InterpreterState implements DeepCopyable {
   /** Used by 'deepCopy()'. */
   private InterpreterState(InterpreterState that) {
     // Immutable state is shared.
-    this.instructions = that.instructions;
     this.globalNames = that.globalNames;
     this.keys = that.keys;
+    this.jit = that.jit;
     // Mutable state is deep-copied.
+    this.instructions = that.instructions==null ?
+      null : (Instruction[])that.instructions.clone();
     if (that.globals==null) {
       this.globals = null;
     } else {
@@ -71,15 +87,9 @@ public final class InterpreterState implements DeepCopyable {
     this.platform =
       that.platform==null ? null : (AbstractPlatform)that.platform.deepCopy();
     this.frame = that.frame==null ? null : (Call)that.frame.deepCopy();
-    if (that.visibleSprites==null) {
-      this.visibleSprites = null;
-    } else {
-      this.visibleSprites = new HashSet();
-      for (Iterator it=that.visibleSprites.iterator(); it.hasNext(); ) {
-        final Sprite sp = (Sprite)it.next();
-        this.visibleSprites.add((Sprite)sp.deepCopyValue());
-      }
-    }
+    this.freeFrames = null;
+    this.renderList =
+      that.renderList==null ? null : that.renderList.deepCopy();
     this.window =
       that.window==null ? null : (Window)that.window.deepCopyValue();
   }
@@ -87,7 +97,9 @@ public final class InterpreterState implements DeepCopyable {
   /* New API. */
 
   /** The Instructions that make up the program that this interpreter is
-   * executing. Can be 'null' for the benefit of test code. */
+   * executing. Can be 'null' for the benefit of test code. The array belongs to
+   * this InterpreterState, and Instructions may be replaced by equivalent ones
+   * using 'replaceInstruction()'. */
   public final Instruction[] instructions;
 
   /** The Values of the global variables. Global variables are indexed by
@@ -104,12 +116,11 @@ public final class InterpreterState implements DeepCopyable {
    * for the benefit of test code. */
   public final AbstractPlatform platform;
   
-  /** A Set containing at least the currently visible Sprites. Sprites
-   * whose 'IsVisible' flag is 'FALSE' will be removed from this Set during the
-   * next animation frame, so as to give the garbage collector a chance. When
-   * the 'IsVisible' attribute of a Sprite is set to 'TRUE' it must be put back
-   * into this Set. Can be 'null' for the benefit of test code. */
-  public final HashSet visibleSprites;
+  /** The currently visible Sprites, in plotting order. Whenever the
+   * 'IsVisible', 'Depth', 'X', 'Y', 'W' or 'H' attribute of a Sprite is set,
+   * the Sprite must be passed to 'RenderList.update()'. Can be 'null' for the
+   * benefit of test code. */
+  public final RenderList renderList;
 
   /** The Window which represents the viewing window. Moving this object
    * scrolls the screen, and resizing it zooms in and out. Can be 'null' for the
@@ -123,6 +134,14 @@ public final class InterpreterState implements DeepCopyable {
   /** The current stack frame, or 'null' if none has yet been constructed. */
   public Call frame;
 
+  /** The just-in-time compiler to consult on each "CALL", or 'null' to
+   * interpret everything. It is shared by copies made by 'deepCopy()'. */
+  public AbstractJit jit;
+
+  /** The initial length of the array that holds the local variables and
+   * arithmetic stacks of all the stack frames. */
+  public static final int INITIAL_STACK = 256;
+
   // FIXME: comments.
 
   public final Value getGlobal(int i) throws CrazonRuntimeException {
@@ -139,41 +158,242 @@ public final class InterpreterState implements DeepCopyable {
   }
 
   public final Value getLocal(int i) throws CrazonRuntimeException {
-    final Value ans = this.frame.locals[i];
-    if (ans==null) throw new CrazonRuntimeException(
+    final Call frame = this.frame;
+    final Value ans = frame.stack[frame.lp+i];
+    if (ans!=null) return ans;
+    final double num = frame.nums[frame.lp+i];
+    if (num!=num) throw new CrazonRuntimeException( // NaN means undefined.
       "Local variable "+i+" not defined", this
     );
-    return ans;
+    return Value.Num.valueOf(num);
   }
 
   public final void putLocal(int i, Value v) {
     if (v==null) throw new NullPointerException();
-    this.frame.locals[i] = v;
+    this.frame.stack[this.frame.lp+i] = v;
+  }
+
+  /** Equivalent to 'push(getLocal(i))' but does not box a number. */
+  public final void pushLocal(int i) throws CrazonRuntimeException {
+    final Call frame = this.frame;
+    final Value v = frame.stack[frame.lp+i];
+    if (v==null) {
+      final double num = frame.nums[frame.lp+i];
+      if (num!=num) throw new CrazonRuntimeException( // NaN means undefined.
+        "Local variable "+i+" not defined", this
+      );
+      frame.nums[frame.sp] = num;
+    }
+    frame.stack[frame.sp++] = v;
+  }
+
+  /** Equivalent to 'putLocal(i, pop())' but does not box a number. */
+  public final void popLocal(int i) {
+    final Call frame = this.frame;
+    final Value v = frame.stack[--frame.sp];
+    if (v==null) frame.nums[frame.lp+i] = frame.nums[frame.sp];
+    frame.stack[frame.lp+i] = v;
+  }
+
+  /** Makes a new stack frame the current one. Its caller is the current stack
+   * frame, if any, and its window starts at the caller's stack pointer. The
+   * local variables are all initially undefined and the stack is initially
+   * empty. The array holding the windows is enlarged if necessary, and the
+   * Call is recycled if possible.
+   * @param startPC the index into 'instructions' of the start of the function
+   * body to execute.
+   * @param numLocals the number of local variables needed.
+   * @param stackLen the stack space needed.
+   * @return the new value of 'frame'.
+   */
+  public final Call pushFrame(int startPC, int numLocals, int stackLen) {
+    final Call caller = this.frame;
+    final Call ans =
+      this.newFrame(caller==null ? 0 : caller.sp, 0, numLocals+stackLen);
+    for (int i=ans.lp; i<ans.lp+numLocals; i++) {
+      ans.stack[i] = null;
+      ans.nums[i] = Double.NaN;
+    }
+    ans.pc = startPC;
+    ans.sp = ans.lp+numLocals;
+    return ans;
+  }
+
+  /** Like 'pushFrame(startPC, numLocals, stackLen)', but pops the top
+   * 'numArgs+1' Values from the current stack frame's arithmetic stack, and
+   * uses them in place as the new stack frame's local variables '0' to
+   * 'numArgs'. Local variable '0' is then made undefined, so the Value that was
+   * lowest (usually the function being called) is discarded. The remaining
+   * local variables are all initially undefined. Nothing is copied unless the
+   * array holding the windows has to be enlarged.
+   * @param numArgs the number of Values to keep, which must be less than
+   * 'numLocals'.
+   */
+  public final Call pushFrame(
+    int startPC,
+    int numLocals,
+    int stackLen,
+    int numArgs
+  ) {
+    final Call caller = this.frame;
+    caller.sp -= numArgs+1;
+    final Call ans = this.newFrame(caller.sp, numArgs+1, numLocals+stackLen);
+    ans.stack[ans.lp] = null;
+    ans.nums[ans.lp] = Double.NaN;
+    for (int i=ans.lp+numArgs+1; i<ans.lp+numLocals; i++) {
+      ans.stack[i] = null;
+      ans.nums[i] = Double.NaN;
+    }
+    ans.pc = startPC;
+    ans.sp = ans.lp+numLocals;
+    return ans;
+  }
+
+  /** Discards the current stack frame and makes its caller the current one.
+   * The Call is kept for reuse by 'pushFrame()', so the caller of this method
+   * must not use it afterwards. */
+  public final void popFrame() {
+    final Call callee = this.frame;
+    this.frame = callee.caller;
+    // Forget the Values, so that they can be garbage-collected.
+    for (int i=callee.lp; i<callee.sp; i++) callee.stack[i] = null;
+    callee.stack = null; callee.nums = null;
+    callee.loop = null; callee.code = null;
+    callee.caller = this.freeFrames;
+    this.freeFrames = callee;
+  }
+
+  /** Returns 'true' if 'instruction' is the currently executing Instruction,
+   * at index 'frame.pc-1', so that 'replaceInstruction()' would replace it.
+   * Instructions call this before constructing their replacement, so that
+   * they allocate nothing when the replacement would be discarded. */
+  public final boolean canReplace(Instruction instruction) {
+    final int pc = this.frame.pc - 1;
+    return
+      this.instructions!=null &&
+      pc>=0 && pc<this.instructions.length &&
+      this.instructions[pc]==instruction;
   }
 
-  public final Value pop() { return this.frame.stack[--this.frame.sp]; }
+  /** Replaces the currently executing Instruction, which is at index
+   * 'frame.pc-1', with 'replacement', which must have the same semantics.
+   * Instructions use this to specialise themselves for the Values they see
+   * ("quickening") and to undo the specialisation. Does nothing if the
+   * Instruction at that index is not 'old', e.g. because it has already been
+   * replaced or because 'old' was called from test code (see
+   * 'canReplace()').
+   */
+  public final void replaceInstruction(
+    Instruction old,
+    Instruction replacement
+  ) {
+    if (this.canReplace(old)) this.instructions[this.frame.pc-1] = replacement;
+  }
+
+  /** Pops a Value, boxing it if it is an unboxed number. */
+  public final Value pop() {
+    final Call frame = this.frame;
+    final Value ans = frame.stack[--frame.sp];
+    return ans!=null ? ans : Value.Num.valueOf(frame.nums[frame.sp]);
+  }
 
   public final void push(Value v) {
     if (v==null) throw new NullPointerException();
     this.frame.stack[this.frame.sp++] = v;
   }
 
+  /** Returns 'true' if the Value 'depth' places below the top of the stack is
+   * a number, boxed or unboxed. The top of the stack has 'depth' '0'. */
+  public final boolean isNum(int depth) {
+    final Call frame = this.frame;
+    final Value v = frame.stack[frame.sp-1-depth];
+    return v==null || v.type==Value.TYPE_NUM;
+  }
+
+  /** Pops a number, which must be on the top of the stack (see 'isNum()'),
+   * without boxing it. */
+  public final double popNum() {
+    final Call frame = this.frame;
+    final Value v = frame.stack[--frame.sp];
+    return v==null ? frame.nums[frame.sp] : ((Value.Num)v).v;
+  }
+
+  /** Pushes a number without boxing it.
+   * @throws IllegalArgumentException if 'v' is infinite or a NaN, like the
+   * constructor of Value.Num.
+   */
+  public final void pushNum(double v) {
+    if (Double.isNaN(v) || Double.isInfinite(v))
+      throw new IllegalArgumentException(""+v);
+    final Call frame = this.frame;
+    frame.nums[frame.sp] = v;
+    frame.stack[frame.sp++] = null;
+  }
+
   /* Implement things in DeepCopyable. */
   
   /** Copies everything necessary to fork the virtual machine. */
   public DeepCopyable deepCopy() { return new InterpreterState(this); }
+
+  /* Private. */
+
+  /** The Calls discarded by 'popFrame()', linked by their 'caller' fields,
+   * for reuse by 'pushFrame()'. */
+  private Call freeFrames;
+
+  /** Implements 'pushFrame()'. Makes a recycled or new Call the current stack
+   * frame, with its window starting at index 'lp', and enlarges the array
+   * holding the windows if necessary. Sets all fields except 'pc' and 'sp',
+   * and does not initialise the window.
+   * @param lp the index in 'stack' of the new frame's local variable '0'.
+   * @param keep the number of elements at and above 'lp' that must survive if
+   * the array is enlarged.
+   * @param len the size of the new frame's window.
+   */
+  private Call newFrame(int lp, int keep, int len) {
+    final Call caller = this.frame;
+    Call ans = this.freeFrames;
+    if (ans!=null) this.freeFrames = ans.caller; else ans = new Call();
+    if (caller==null || lp+len>caller.stack.length) {
+      ans.stack = new Value[Math.max(
+        lp+len,
+        caller==null ? INITIAL_STACK : 2*caller.stack.length
+      )];
+      ans.nums = new double[ans.stack.length];
+      if (caller!=null) {
+        // Move the callers' windows to the new array.
+        final Value[] oldStack = caller.stack;
+        System.arraycopy(oldStack, 0, ans.stack, 0, lp+keep);
+        System.arraycopy(caller.nums, 0, ans.nums, 0, lp+keep);
+        for (Call c = caller; c!=null && c.stack==oldStack; c = c.caller) {
+          c.stack = ans.stack; c.nums = ans.nums;
+        }
+      }
+    } else {
+      ans.stack = caller.stack; ans.nums = caller.nums;
+    }
+    ans.caller = caller;
+    ans.lp = lp;
+    ans.loop = null;
+    ans.code = null;
+    this.frame = ans;
+    return ans;
+  }
   
   ////////////////////////////////////////////////////////////////////////////
 
-  /** Represents a subroutine call stack frame. */
+  /** Represents a subroutine call stack frame. The local variables and the
+   * arithmetic stack are a window into 'stack' and 'nums', which are usually
+   * shared with the other stack frames (see 'pushFrame()'). */
   public static final class Call implements DeepCopyable {
-    /** Constructs a CallStack.
+    /** Constructs a Call with its own arrays. 'pushFrame()' is cheaper, and
+     * this constructor is intended for test code.
      * @param caller the caller's stack frame, or 'null' if this is to be the
      * stack frame of the main program.
      * @param startPC the index into 'instructions' of the start of the function
      * body to execute.
      * @param numLocals the number of local variables needed. They are all
-     * initialised to 'null'.
+     * initially undefined.
      * @param stackLen the stack space needed. The stack is initially empty.
      */
     public Call(
@@ -184,57 +404,94 @@ public final class InterpreterState implements DeepCopyable {
     ) {
       this.caller = caller;
       this.pc = startPC;
-      this.locals = new Value[numLocals];
-      this.stack = new Value[stackLen];
-      this.sp = 0;
+      this.stack = new Value[numLocals+stackLen];
+      this.nums = new double[numLocals+stackLen];
+      for (int i=0; i<numLocals; i++) this.nums[i] = Double.NaN;
+      this.lp = 0;
+      this.sp = numLocals;
       this.loop = null;
+      this.code = null;
     }
 
     /* New API. */
 
     /** The caller's stack frame, or 'null' if this is the stack frame of the
      * main program. */
-    public final Call caller;
+    public Call caller;
 
     /** The program counter, expressed as an index into 'instructions'. During
      * execution of an Instruction, this is the index of the next instruction.
      * */
     public int pc;
 
-    /** The Values of the local variables. Local variables are indexed by
-     * number. It is the parser's job to assign unique numbers to the local
-     * variables in each function. */
-    public final Value[] locals;
+    /** The local variables and the arithmetic stack. Local variables are
+     * indexed by number. It is the parser's job to assign unique numbers to
+     * the local variables in each function. Local variable 'i' is at index
+     * 'lp+i'. The bottom of the arithmetic stack follows the local variables,
+     * and the top of the stack (i.e. the Value that will be popped first) is
+     * at index 'sp-1'. A 'null' element means that the item is the unboxed
+     * number in the corresponding element of 'nums'. A local variable is
+     * undefined if that number is a NaN. Elements outside the window belong to
+     * other stack frames or are unused. */
+    public Value[] stack;
+
+    /** The unboxed numbers in the local variables and on the arithmetic
+     * stack. See 'stack'. */
+    public double[] nums;
 
-    /** The arithmetic stack. The bottom of the stack is at index '0' and the
-     * top of the stack (i.e. the Value that will be popped first) is at index
-     * 'sp-1'. */
-    public final Value[] stack;
+    /** The index in 'stack' of local variable '0'. */
+    public int lp;
 
-    /** The stack pointer, expressed as the number of items on the stack. */
+    /** The stack pointer, expressed as the index in 'stack' just above the
+     * top of the arithmetic stack. */
     public int sp;
 
     /** The state of the most tightly enclosing loop, or 'null' if we're not in
      * a loop. */
     public Loop loop;
+
+    /** CompiledCode that can execute this stack frame's function body in place
+     * of the interpreter, or 'null' if the body must be interpreted. */
+    public CompiledCode code;
     
     /* Implement things in DeepCopyable. */
     
-    public DeepCopyable deepCopy() {
-      final Call ans = new Call(
-        this.caller==null ? null : (Call)this.caller.deepCopy(),
-        this.pc,
-        this.locals.length,
-        this.stack.length
-      );
-      ans.sp = this.sp;
-      ans.loop = this.loop==null ? null : (Loop)this.loop.deepCopy();
-      for (int i=0; i<this.locals.length; i++) {
-        ans.locals[i] = this.locals[i].deepCopyValue();
-      }
-      for (int i=0; i<this.sp; i++) {
-        ans.stack[i] = this.stack[i].deepCopyValue();
+    /** Copies this stack frame and its callers, so that they share copies of
+     * the arrays that they share now. */
+    public DeepCopyable deepCopy() { return this.deepCopy(null, null, null); }
+
+    /* Private. */
+
+    /** Used by 'InterpreterState.pushFrame()', which initialises the fields.
+     */
+    private Call() {}
+
+    /** Implements 'deepCopy()'.
+     * @param from the 'stack' of the stack frame called by this one, or
+     * 'null' if none.
+     * @param stack the copy of 'from'.
+     * @param nums the copy of the 'nums' of the stack frame called by this
+     * one.
+     */
+    private Call deepCopy(Value[] from, Value[] stack, double[] nums) {
+      if (this.stack!=from) {
+        // This is the top-most stack frame with this array, so its stack
+        // pointer marks the end of the Values that are in use.
+        from = this.stack;
+        stack = new Value[from.length];
+        for (int i=0; i<this.sp; i++) {
+          if (from[i]!=null) stack[i] = from[i].deepCopyValue();
+        }
+        nums = (double[])this.nums.clone();
       }
+      final Call ans = new Call();
+      ans.caller =
+        this.caller==null ? null : this.caller.deepCopy(from, stack, nums);
+      ans.pc = this.pc;
+      ans.stack = stack; ans.nums = nums;
+      ans.lp = this.lp; ans.sp = this.sp;
+      ans.loop = this.loop==null ? null : (Loop)this.loop.deepCopy();
+      ans.code = this.code;
       return ans;
     }
   }
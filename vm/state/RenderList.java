@@ -0,0 +1,258 @@
+package org.sc3d.apt.crazon.vm.state;
+
+import java.util.*;
+
+/** The visible Sprites of an InterpreterState, kept in plotting order. A Sprite
+ * with a larger 'depth' is plotted first, so that a Sprite with a smaller
+ * 'depth' can obscure it. Sprites with equal depths are plotted in order of
+ * 'objNum'.
+ * <p>
+ * The list is maintained incrementally: 'update()' must be called whenever the
+ * 'isVisible' or 'depth' attribute of a Sprite changes. Each update costs
+ * O(log n) comparisons and O(n) copying in the worst case, and a frame in which
+ * nothing has changed costs nothing.
+ * <p>
+ * The visible Sprites are also recorded in a SpriteGrid, so that those which
+ * overlap the window can be found without examining the others. 'update()'
+ * must therefore also be called whenever the 'X', 'Y', 'W' or 'H' attribute of
+ * a Sprite changes.
+ */
+public final class RenderList {
+  /** Constructs an empty RenderList. */
+  public RenderList() {
+    this.sprites = new Sprite[16];
+    this.size = 0;
+    this.array = null;
+    this.grid = new SpriteGrid();
+    this.windowArray = null;
+  }
+
+  /* New API. */
+
+  /** Returns the number of visible Sprites. */
+  public int size() { return this.size; }
+
+  /** Returns the visible Sprite with index 'i' in plotting order. */
+  public Sprite get(int i) {
+    if (i<0 || i>=this.size) throw new IndexOutOfBoundsException(""+i);
+    return this.sprites[i];
+  }
+
+  /** Inserts, moves or removes 's' so as to reflect the current values of its
+   * 'isVisible', 'depth', 'x', 'y', 'w' and 'h' fields. */
+  public void update(Sprite s) {
+    if (!s.listed && !s.isVisible) return;
+    this.windowArray = null;
+    if (s.listed) {
+      if (s.isVisible && s.depth==s.listedDepth) {
+        this.grid.put(s);
+        return;
+      }
+      this.remove(this.indexOf(s.listedDepth, s.objNum));
+      s.listed = false;
+    }
+    if (s.isVisible) {
+      this.insert(this.indexOf(s.depth, s.objNum), s);
+      s.listed = true;
+      s.listedDepth = s.depth;
+      this.grid.put(s);
+    } else {
+      this.grid.remove(s);
+    }
+  }
+
+  /** Sets the 'IsVisible' attribute of every Sprite in this RenderList to
+   * 'FALSE', leaving it empty. */
+  public void clear() {
+    for (int i=0; i<this.size; i++) {
+      this.sprites[i].isVisible = false;
+      this.sprites[i].listed = false;
+      this.sprites[i].gridded = false;
+      this.sprites[i] = null;
+    }
+    this.size = 0;
+    this.array = null;
+    this.grid.clear();
+    this.windowArray = null;
+  }
+
+  /** Returns the visible Sprites in plotting order. The array is shared
+   * between calls until this RenderList changes, and must not be modified. */
+  public Sprite[] toArray() {
+    if (this.array==null) {
+      this.array = new Sprite[this.size];
+      System.arraycopy(this.sprites, 0, this.array, 0, this.size);
+    }
+    return this.array;
+  }
+
+  /** Returns the visible Sprites that overlap the specified rectangle, in
+   * plotting order. Sprites with a negative width or height are included
+   * wherever they are, and Sprites with a zero width or height are omitted.
+   * If the rectangle has a width or height that is not positive, all the
+   * visible Sprites are returned. The array is shared between calls with the
+   * same rectangle until this RenderList changes, and must not be modified. */
+  public Sprite[] visibleIn(double x, double y, double w, double h) {
+    if (
+      this.windowArray!=null &&
+      x==this.windowX && y==this.windowY &&
+      w==this.windowW && h==this.windowH
+    ) return this.windowArray;
+    final Sprite[] ans =
+      w>0 && h>0 ? this.find(x, y, w, h, true, null) : this.toArray();
+    this.windowX = x; this.windowY = y; this.windowW = w; this.windowH = h;
+    this.windowArray = ans;
+    return ans;
+  }
+
+  /** Returns the visible Sprites, other than 'exclude', that overlap the
+   * specified rectangle, in plotting order. Only Sprites with a positive width
+   * and height can overlap anything, and only a rectangle with a positive
+   * width and height can be overlapped. The array is freshly allocated.
+   * @param exclude a Sprite to omit from the result, or 'null'.
+   */
+  public Sprite[] overlapping(
+    double x, double y, double w, double h,
+    Sprite exclude
+  ) {
+    if (!(w>0 && h>0)) return new Sprite[0];
+    return this.find(x, y, w, h, false, exclude);
+  }
+
+  /** Returns a RenderList containing deep copies of the Sprites in this one. */
+  public RenderList deepCopy() {
+    final RenderList ans = new RenderList();
+    for (int i=0; i<this.size; i++) {
+      ans.update((Sprite)this.sprites[i].deepCopyValue());
+    }
+    return ans;
+  }
+
+  /* Private. */
+
+  /** The visible Sprites in plotting order, followed by unused elements. */
+  private Sprite[] sprites;
+
+  /** The number of visible Sprites. */
+  private int size;
+
+  /** The value to be returned by 'toArray()', or 'null' if it must be
+   * recomputed. */
+  private Sprite[] array;
+
+  /** A SpriteGrid containing the visible Sprites. */
+  private final SpriteGrid grid;
+
+  /** The value to be returned by 'visibleIn()' if its arguments are
+   * 'windowX', 'windowY', 'windowW' and 'windowH', or 'null' if it must be
+   * recomputed. */
+  private Sprite[] windowArray;
+
+  /** The arguments of the call to 'visibleIn()' that computed 'windowArray'.
+   */
+  private double windowX, windowY, windowW, windowH;
+
+  /** Orders the Sprites in a RenderList in the same way as 'sprites'. */
+  private static final Comparator PLOTTING_ORDER = new Comparator() {
+    public int compare(Object o1, Object o2) {
+      final Sprite s1 = (Sprite)o1, s2 = (Sprite)o2;
+      if (s1.listedDepth!=s2.listedDepth) {
+        return s1.listedDepth>s2.listedDepth ? -1 : 1;
+      }
+      return s1.objNum<s2.objNum ? -1 : s1.objNum>s2.objNum ? 1 : 0;
+    }
+  };
+
+  /** Returns the visible Sprites other than 'exclude' for which 'overlaps()'
+   * returns 'true', in plotting order. The rectangle must have a positive
+   * width and height. The array is freshly allocated. */
+  private Sprite[] find(
+    double x, double y, double w, double h,
+    boolean includeMalformed,
+    Sprite exclude
+  ) {
+    if (SpriteGrid.countCells(x, y, w, h)>=this.size) {
+      // The rectangle is big compared to the number of Sprites. Filter them
+      // all.
+      int n = 0;
+      for (int i=0; i<this.size; i++) {
+        final Sprite s = this.sprites[i];
+        if (s!=exclude && overlaps(s, x, y, w, h, includeMalformed)) n++;
+      }
+      final Sprite[] ans = new Sprite[n];
+      n = 0;
+      for (int i=0; i<this.size; i++) {
+        final Sprite s = this.sprites[i];
+        if (s!=exclude && overlaps(s, x, y, w, h, includeMalformed)) {
+          ans[n++] = s;
+        }
+      }
+      return ans;
+    }
+    final int found = this.grid.query(x, y, w, h);
+    final Sprite[] candidates = this.grid.found();
+    int n = 0;
+    for (int i=0; i<found; i++) {
+      final Sprite s = candidates[i];
+      if (s!=exclude && overlaps(s, x, y, w, h, includeMalformed)) {
+        candidates[n++] = s;
+      }
+    }
+    final Sprite[] ans = new Sprite[n];
+    System.arraycopy(candidates, 0, ans, 0, n);
+    Arrays.sort(ans, PLOTTING_ORDER);
+    return ans;
+  }
+
+  /** Returns 'true' if 's' overlaps the specified rectangle.
+   * @param includeMalformed 'true' to return 'true' for a Sprite with a
+   * negative width or height, which the platform must see in order to report
+   * an error.
+   */
+  private static boolean overlaps(
+    Sprite s,
+    double x, double y, double w, double h,
+    boolean includeMalformed
+  ) {
+    if (s.w<0 || s.h<0) return includeMalformed;
+    if (s.w==0 || s.h==0) return false;
+    return s.x<x+w && s.x+s.w>x && s.y<y+h && s.y+s.h>y;
+  }
+
+  /** Returns the index of the first Sprite in 'sprites' which is not plotted
+   * before a Sprite with 'depth' and 'objNum'. */
+  private int indexOf(double depth, int objNum) {
+    int lo = 0, hi = this.size;
+    while (lo<hi) {
+      final int mid = (lo+hi)>>>1;
+      final Sprite m = this.sprites[mid];
+      if (m.listedDepth>depth || (m.listedDepth==depth && m.objNum<objNum)) {
+        lo = mid+1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /** Inserts 's' at index 'i' of 'sprites'. */
+  private void insert(int i, Sprite s) {
+    if (this.size==this.sprites.length) {
+      final Sprite[] old = this.sprites;
+      this.sprites = new Sprite[2*old.length];
+      System.arraycopy(old, 0, this.sprites, 0, old.length);
+    }
+    System.arraycopy(this.sprites, i, this.sprites, i+1, this.size-i);
+    this.sprites[i] = s;
+    this.size++;
+    this.array = null;
+  }
+
+  /** Removes the Sprite at index 'i' of 'sprites'. */
+  private void remove(int i) {
+    this.size--;
+    System.arraycopy(this.sprites, i+1, this.sprites, i, this.size-i);
+    this.sprites[this.size] = null;
+    this.array = null;
+  }
+}
@@ -0,0 +1,83 @@
+package org.sc3d.apt.crazon.vm.state;
+
+import java.util.*;
+
+/** Describes the fixed set of attributes of a kind of Value.Obj, and the slot
+ * in which each attribute is stored.
+ * <p>
+ * Attribute names are interned as small integers called attribute numbers,
+ * which are the same for all Shapes. The Assembler converts the names that
+ * appear in the program to attribute numbers, so that at run time an
+ * attribute is found by indexing two arrays instead of by hashing a String.
+ */
+public final class Shape {
+  /** Constructs a Shape.
+   * @param names the names of the attributes, in slot order.
+   * @param types the type of each attribute, as one of the 'Value.TYPE_XXX'
+   * values. The type of an attribute cannot change.
+   */
+  public Shape(String[] names, int[] types) {
+    if (names.length!=types.length) throw new IllegalArgumentException(
+      "Wrong number of types"
+    );
+    this.names = names;
+    this.types = types;
+    int max = -1;
+    final int[] attributes = new int[names.length];
+    for (int i=0; i<names.length; i++) {
+      attributes[i] = attribute(names[i]);
+      if (attributes[i]>max) max = attributes[i];
+    }
+    this.slots = new int[max+1];
+    for (int i=0; i<this.slots.length; i++) this.slots[i] = -1;
+    for (int i=0; i<names.length; i++) this.slots[attributes[i]] = i;
+  }
+
+  /* New API. */
+
+  /** The names of the attributes, indexed by slot. Do not modify. */
+  public final String[] names;
+
+  /** The types of the attributes, indexed by slot. Do not modify. */
+  public final int[] types;
+
+  /** Returns the slot that holds the attribute with number 'attribute', or
+   * '-1' if this Shape does not have that attribute. */
+  public final int slotOf(int attribute) {
+    return attribute>=0 && attribute<this.slots.length ?
+      this.slots[attribute] : -1;
+  }
+
+  /** Returns the attribute number of 'name', allocating one if necessary. */
+  public static synchronized int attribute(String name) {
+    final Integer ans = (Integer)ATTRIBUTES.get(name);
+    if (ans!=null) return ans.intValue();
+    ATTRIBUTES.put(name, new Integer(NAMES.size()));
+    NAMES.add(name);
+    return NAMES.size()-1;
+  }
+
+  /** Returns the attribute number of 'name', or '-1' if none has been
+   * allocated, in which case no Shape has an attribute called 'name'. */
+  public static synchronized int lookup(String name) {
+    final Integer ans = (Integer)ATTRIBUTES.get(name);
+    return ans==null ? -1 : ans.intValue();
+  }
+
+  /** Returns the name of the attribute with number 'attribute'. */
+  public static synchronized String attributeName(int attribute) {
+    return (String)NAMES.get(attribute);
+  }
+
+  /* Private. */
+
+  /** The slot of each attribute, indexed by attribute number, or '-1' for
+   * attributes that this Shape does not have. */
+  private final int[] slots;
+
+  /** A Map from attribute names (Strings) to attribute numbers (Integers). */
+  private static final HashMap ATTRIBUTES = new HashMap();
+
+  /** The attribute names, indexed by attribute number. */
+  private static final ArrayList NAMES = new ArrayList();
+}
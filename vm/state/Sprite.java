@@ -18,25 +18,113 @@ import java.util.*;
  * </ul> */
 public final class Sprite extends Value.Obj {
   public Sprite(Value.Pic picture) {
-    super(makeMap(picture));
+    super(SHAPE);
+    this.x = 0.0;
+    this.y = 0.0;
+    this.w = picture.width;
+    this.h = picture.height;
+    this.depth = 0.0;
+    this.isVisible = false;
+    this.picture = picture;
+    this.listed = false;
+    this.listedDepth = 0.0;
+    this.gridded = false;
+    this.mark = 0;
   }
   
-  private Sprite(Sprite that) { super(that); }
-  
-  /* Private. */
+  private Sprite(Sprite that) {
+    super(that);
+    this.x = that.x;
+    this.y = that.y;
+    this.w = that.w;
+    this.h = that.h;
+    this.depth = that.depth;
+    this.isVisible = that.isVisible;
+    this.picture = that.picture;
+    this.listed = false;
+    this.listedDepth = 0.0;
+    this.gridded = false;
+    this.mark = 0;
+  }
   
-  /** Constructs a HashMap suitable for passing to the superclass constructor.
-   */
-  private static HashMap makeMap(Value.Pic picture) {
-    final HashMap ans = new HashMap();
-    ans.put("X", new Value.Num(0.0));
-    ans.put("Y", new Value.Num(0.0));
-    ans.put("W", new Value.Num(picture.width));
-    ans.put("H", new Value.Num(picture.height));
-    ans.put("Depth", new Value.Num(0.0));
-    ans.put("IsVisible", Value.Bool.FALSE);
-    ans.put("Picture", picture);
-    return ans;
+  /* New API. */
+
+  /** The Shape of all Sprites. */
+  public static final Shape SHAPE = new Shape(
+    new String[] {"X", "Y", "W", "H", "Depth", "IsVisible", "Picture"},
+    new int[] {
+      Value.TYPE_NUM, Value.TYPE_NUM, Value.TYPE_NUM, Value.TYPE_NUM,
+      Value.TYPE_NUM, Value.TYPE_BOOL, Value.TYPE_PIC
+    }
+  );
+
+  /** The attributes. These fields may be read directly, but must only be
+   * written using 'set()'. */
+  public double x, y, w, h, depth;
+
+  /** The 'IsVisible' attribute. See 'x'. */
+  public boolean isVisible;
+
+  /** The 'Picture' attribute. See 'x'. */
+  public Value.Pic picture;
+
+  /* Package-private. */
+
+  /** 'true' if this Sprite is in a RenderList. */
+  boolean listed;
+
+  /** The value of 'depth' when this Sprite was put in a RenderList, which
+   * determines its position in the list. */
+  double listedDepth;
+
+  /** 'true' if this Sprite is in a SpriteGrid. */
+  boolean gridded;
+
+  /** The range of cells in which this Sprite is recorded by a SpriteGrid, or
+   * 'Integer.MIN_VALUE' in 'cellX0' if it is recorded as a large Sprite. */
+  int cellX0, cellY0, cellX1, cellY1;
+
+  /** The number of the last SpriteGrid query which found this Sprite. */
+  int mark;
+
+  /* Implement things in Value.Obj. */
+
+  public Value getSlot(int slot) {
+    switch (slot) {
+      case 5: return this.isVisible ? Value.Bool.TRUE : Value.Bool.FALSE;
+      case 6: return this.picture;
+      default: return Value.Num.valueOf(this.getNumSlot(slot));
+    }
+  }
+
+  public double getNumSlot(int slot) {
+    switch (slot) {
+      case 0: return this.x;
+      case 1: return this.y;
+      case 2: return this.w;
+      case 3: return this.h;
+      case 4: return this.depth;
+      default: throw new IllegalArgumentException("Slot "+slot);
+    }
+  }
+
+  protected void setSlot(int slot, Value v) {
+    switch (slot) {
+      case 5: this.isVisible = v==Value.Bool.TRUE; return;
+      case 6: this.picture = (Value.Pic)v; return;
+      default: this.setNumSlot(slot, ((Value.Num)v).v);
+    }
+  }
+
+  protected void setNumSlot(int slot, double v) {
+    switch (slot) {
+      case 0: this.x = v; return;
+      case 1: this.y = v; return;
+      case 2: this.w = v; return;
+      case 3: this.h = v; return;
+      case 4: this.depth = v; return;
+      default: throw new IllegalArgumentException("Slot "+slot);
+    }
   }
 
   public String getObjType() { return "SPRITE"; }
@@ -0,0 +1,313 @@
+package org.sc3d.apt.crazon.vm.state;
+
+/** A spatial index of the bounding rectangles of some Sprites. The plane is
+ * divided into square cells of side 'CELL_SIZE', and each Sprite is recorded
+ * in every cell that its rectangle touches. A query visits only the cells
+ * under the query rectangle, so its cost depends on the number of Sprites
+ * near the rectangle, not on the total number of Sprites.
+ * <p>
+ * Sprites that would occupy more than 'MAX_CELLS' cells, and Sprites whose
+ * rectangle is not well-formed (for example, because it has a negative width)
+ * are kept in a separate list which every query returns.
+ * <p>
+ * 'put()' must be called whenever the 'X', 'Y', 'W' or 'H' attribute of an
+ * indexed Sprite changes. A Sprite that moves within the cells it already
+ * occupies costs almost nothing.
+ */
+public final class SpriteGrid {
+  /** Constructs an empty SpriteGrid. */
+  public SpriteGrid() {
+    this.keys = new long[INITIAL_CELLS];
+    this.buckets = new Bucket[INITIAL_CELLS];
+    this.numCells = 0;
+    this.spare = null;
+    this.large = new Bucket();
+    this.found = new Sprite[16];
+    this.mark = 0;
+  }
+
+  /* New API. */
+
+  /** The side of a cell, in the coordinates of the 'X' and 'Y' attributes. */
+  public static final double CELL_SIZE = 64.0;
+
+  /** The largest number of cells in which a Sprite will be recorded. */
+  public static final int MAX_CELLS = 16;
+
+  /** Adds 's' to this SpriteGrid, or moves it to reflect the current values of
+   * its 'x', 'y', 'w' and 'h' fields. */
+  public void put(Sprite s) {
+    final int x0 = cell(s.x), y0 = cell(s.y);
+    final int x1 = cell(s.x+s.w), y1 = cell(s.y+s.h);
+    final boolean isLarge =
+      !(s.w>=0 && s.h>=0) ||
+      x0==OUTSIDE || y0==OUTSIDE || x1==OUTSIDE || y1==OUTSIDE ||
+      (long)(x1-x0+1)*(y1-y0+1)>MAX_CELLS;
+    if (s.gridded) {
+      if (isLarge && s.cellX0==OUTSIDE) return;
+      if (
+        !isLarge &&
+        s.cellX0==x0 && s.cellY0==y0 && s.cellX1==x1 && s.cellY1==y1
+      ) return;
+      this.remove(s);
+    }
+    if (isLarge) {
+      s.cellX0 = OUTSIDE;
+      this.large.add(s);
+    } else {
+      s.cellX0 = x0; s.cellY0 = y0; s.cellX1 = x1; s.cellY1 = y1;
+      for (int y=y0; y<=y1; y++) for (int x=x0; x<=x1; x++) {
+        this.addBucket(key(x, y)).add(s);
+      }
+    }
+    s.gridded = true;
+  }
+
+  /** Removes 's' from this SpriteGrid, if it is present. */
+  public void remove(Sprite s) {
+    if (!s.gridded) return;
+    if (s.cellX0==OUTSIDE) {
+      this.large.remove(s);
+    } else {
+      for (int y=s.cellY0; y<=s.cellY1; y++) {
+        for (int x=s.cellX0; x<=s.cellX1; x++) {
+          final long key = key(x, y);
+          final Bucket b = this.bucket(key);
+          b.remove(s);
+          if (b.size==0) this.removeBucket(key);
+        }
+      }
+    }
+    s.gridded = false;
+  }
+
+  /** Removes all Sprites from this SpriteGrid without visiting them. The
+   * caller must then set 'Sprite.gridded' to 'false' for each of them. */
+  public void clear() {
+    this.keys = new long[INITIAL_CELLS];
+    this.buckets = new Bucket[INITIAL_CELLS];
+    this.numCells = 0;
+    this.large = new Bucket();
+  }
+
+  /** Returns the number of cells that a query of the specified rectangle
+   * would visit, which may be huge. */
+  public static double countCells(double x, double y, double w, double h) {
+    return
+      (Math.floor((x+w)/CELL_SIZE) - Math.floor(x/CELL_SIZE) + 1) *
+      (Math.floor((y+h)/CELL_SIZE) - Math.floor(y/CELL_SIZE) + 1);
+  }
+
+  /** Finds the Sprites that might overlap the specified rectangle. The result
+   * includes every Sprite that does, each exactly once, in no particular
+   * order. It is best to call 'countCells()' first, in case the rectangle is
+   * too big for this method to be efficient.
+   * @return the number of Sprites found, which are stored in the array
+   * returned by 'found()'.
+   */
+  public int query(double x, double y, double w, double h) {
+    final int m = ++this.mark;
+    int n = 0;
+    n = this.collect(this.large, n, m);
+    final int x0 = cell(x), y0 = cell(y);
+    final int x1 = cell(x+w), y1 = cell(y+h);
+    if (x0==OUTSIDE || y0==OUTSIDE || x1==OUTSIDE || y1==OUTSIDE) {
+      // Beyond the range of any cell. Only large Sprites can be found.
+      return n;
+    }
+    for (int cy=y0; cy<=y1; cy++) for (int cx=x0; cx<=x1; cx++) {
+      final Bucket b = this.bucket(key(cx, cy));
+      if (b!=null) n = this.collect(b, n, m);
+    }
+    return n;
+  }
+
+  /** Returns the array in which 'query()' stores its result. The array is
+   * overwritten by the next query. */
+  public Sprite[] found() { return this.found; }
+
+  /* Private. */
+
+  /* The non-empty cells are stored in an open-addressing hash table, so that
+   * looking up a cell does not allocate. Element 'i' of 'buckets' is 'null'
+   * or is the Bucket of the cell whose key (see 'key()') is element 'i' of
+   * 'keys'. A cell is stored at the first free index at or after the index
+   * given by 'hash()', wrapping round. */
+
+  /** The keys of the cells in the hash table. */
+  private long[] keys;
+
+  /** The Buckets of the cells in the hash table, or 'null' for unused
+   * elements. The length is a power of two, and at most half the elements are
+   * used. */
+  private Bucket[] buckets;
+
+  /** The number of elements of 'buckets' that are not 'null'. */
+  private int numCells;
+
+  /** A list of empty Buckets (linked through 'Bucket.next') that have been
+   * removed from the hash table and can be reused. */
+  private Bucket spare;
+
+  /** The initial length of 'keys' and 'buckets'. */
+  private static final int INITIAL_CELLS = 64;
+
+  /** The Sprites that are not recorded in 'cells'. */
+  private Bucket large;
+
+  /** The result of the last query, followed by unused elements. */
+  private Sprite[] found;
+
+  /** The number of queries so far, used to avoid finding a Sprite twice. */
+  private int mark;
+
+  /** The value of 'Sprite.cellX0' for a Sprite in 'large', and the value
+   * returned by 'cell()' for coordinates that are not in any cell. */
+  private static final int OUTSIDE = Integer.MIN_VALUE;
+
+  /** The largest cell coordinate. Sprites further away are treated as large.
+   */
+  private static final int MAX_CELL = 1<<20;
+
+  /** Returns the cell coordinate of 'x', or 'OUTSIDE'. */
+  private static int cell(double x) {
+    final double c = Math.floor(x/CELL_SIZE);
+    return c>=-MAX_CELL && c<=MAX_CELL ? (int)c : OUTSIDE;
+  }
+
+  /** Returns the key in 'cells' of the cell with coordinates 'x' and 'y'. */
+  private static long key(int x, int y) {
+    return ((long)x<<32) | (y & 0xFFFFFFFFL);
+  }
+
+  /** Returns the index in 'buckets' at which the search for 'key' starts. */
+  private static int hash(long key, int mask) {
+    final long h = key * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h>>>32)) & mask;
+  }
+
+  /** Returns the Bucket of the cell with key 'key', or 'null' if the cell is
+   * empty. */
+  private Bucket bucket(long key) {
+    final int mask = this.buckets.length-1;
+    for (int i=hash(key, mask); this.buckets[i]!=null; i = (i+1)&mask) {
+      if (this.keys[i]==key) return this.buckets[i];
+    }
+    return null;
+  }
+
+  /** Returns the Bucket of the cell with key 'key', adding an empty one if
+   * the cell is empty. */
+  private Bucket addBucket(long key) {
+    if (2*(this.numCells+1)>this.buckets.length) this.grow();
+    final int mask = this.buckets.length-1;
+    int i = hash(key, mask);
+    for (; this.buckets[i]!=null; i = (i+1)&mask) {
+      if (this.keys[i]==key) return this.buckets[i];
+    }
+    Bucket b = this.spare;
+    if (b==null) b = new Bucket(); else this.spare = b.next;
+    b.next = null;
+    this.keys[i] = key;
+    this.buckets[i] = b;
+    this.numCells++;
+    return b;
+  }
+
+  /** Removes the Bucket of the cell with key 'key', which must be present and
+   * empty, and keeps it for reuse. */
+  private void removeBucket(long key) {
+    final int mask = this.buckets.length-1;
+    int gap = hash(key, mask);
+    while (this.keys[gap]!=key || this.buckets[gap]==null) {
+      gap = (gap+1)&mask;
+    }
+    this.buckets[gap].next = this.spare;
+    this.spare = this.buckets[gap];
+    this.buckets[gap] = null;
+    this.numCells--;
+    // Move back any later cell whose search would now stop at the gap.
+    for (int i=(gap+1)&mask; this.buckets[i]!=null; i = (i+1)&mask) {
+      final int home = hash(this.keys[i], mask);
+      if (((i-home)&mask) >= ((i-gap)&mask)) {
+        this.keys[gap] = this.keys[i];
+        this.buckets[gap] = this.buckets[i];
+        this.buckets[i] = null;
+        gap = i;
+      }
+    }
+  }
+
+  /** Doubles the length of 'keys' and 'buckets'. */
+  private void grow() {
+    final long[] oldKeys = this.keys;
+    final Bucket[] oldBuckets = this.buckets;
+    this.keys = new long[2*oldKeys.length];
+    this.buckets = new Bucket[2*oldBuckets.length];
+    final int mask = this.buckets.length-1;
+    for (int j=0; j<oldBuckets.length; j++) {
+      if (oldBuckets[j]==null) continue;
+      int i = hash(oldKeys[j], mask);
+      while (this.buckets[i]!=null) i = (i+1)&mask;
+      this.keys[i] = oldKeys[j];
+      this.buckets[i] = oldBuckets[j];
+    }
+  }
+
+  /** Appends to 'found', starting at index 'n', those Sprites in 'b' that
+   * have not yet been found by the query numbered 'm'. Returns the new number
+   * of Sprites found. */
+  private int collect(Bucket b, int n, int m) {
+    for (int i=0; i<b.size; i++) {
+      final Sprite s = b.sprites[i];
+      if (s.mark==m) continue;
+      s.mark = m;
+      if (n==this.found.length) {
+        final Sprite[] old = this.found;
+        this.found = new Sprite[2*old.length];
+        System.arraycopy(old, 0, this.found, 0, n);
+      }
+      this.found[n++] = s;
+    }
+    return n;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** An unordered set of Sprites. */
+  private static final class Bucket {
+    public Bucket() {
+      this.sprites = new Sprite[4]; this.size = 0; this.next = null;
+    }
+
+    /** The Sprites, followed by unused elements. */
+    public Sprite[] sprites;
+
+    /** The number of Sprites. */
+    public int size;
+
+    /** The next Bucket in 'SpriteGrid.spare', or 'null'. */
+    public Bucket next;
+
+    /** Adds 's', which must not already be present. */
+    public void add(Sprite s) {
+      if (this.size==this.sprites.length) {
+        final Sprite[] old = this.sprites;
+        this.sprites = new Sprite[2*old.length];
+        System.arraycopy(old, 0, this.sprites, 0, old.length);
+      }
+      this.sprites[this.size++] = s;
+    }
+
+    /** Removes 's', if present, replacing it with the last Sprite. */
+    public void remove(Sprite s) {
+      for (int i=0; i<this.size; i++) {
+        if (this.sprites[i]==s) {
+          this.sprites[i] = this.sprites[--this.size];
+          this.sprites[this.size] = null;
+          return;
+        }
+      }
+    }
+  }
+}
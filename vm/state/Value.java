@@ -5,7 +5,7 @@ import org.sc3d.apt.crazon.vm.util.*;
 import java.util.*;
 
 /** Represents a Crazon value. */
-public abstract class Value implements Comparable, DeepCopyable {
+public abstract class Value implements Comparable, Table.MaybeMutable {
   /** This is a private constructor. The public must use one of the subclasses.
    * <p> Constructs a Value, given its type.
    * @param type one of the 'TYPE_XXX' values.
@@ -62,6 +62,13 @@ public abstract class Value implements Comparable, DeepCopyable {
   
   /** Just like 'DeepCopyable.deepCopy()' but declared to return a Value. */
   public Value deepCopyValue() { return this; }
+
+  /* Implement things in Table.MaybeMutable. */
+
+  /** Returns 'true' if 'deepCopyValue()' might return a new Value. The default
+   * implementation returns 'false', which is correct for all types except
+   * objects and tables that contain them. */
+  public boolean isMutable() { return false; }
   
   /* Implement things in Comparable. */
 
@@ -78,6 +85,11 @@ public abstract class Value implements Comparable, DeepCopyable {
    * (including the page name and underscore).
    * </ul> */
   public final int compareTo(Object thatObject) {
+    if (this instanceof Num && thatObject instanceof Num) {
+      // Fast path for the commonest case.
+      final double v1 = ((Num)this).v, v2 = ((Num)thatObject).v;
+      return v1==v2 ? 0 : v1<v2 ? -1 : 1;
+    }
     final Value that = (Value)thatObject;
     if (this.type>5) throw new ClassCastException(
       describeType(this.type)+" is not a comparable type"
@@ -93,18 +105,21 @@ public abstract class Value implements Comparable, DeepCopyable {
         final double v1 = ((Num)this).v, v2 = ((Num)that).v;
         return v1==v2 ? 0 : v1<v2 ? -1 : 1;
       case TYPE_STR:
-        return ((Str)this).v.compareTo(((Str)that).v);
+        return ((Str)this).compareTo((Str)that);
       case TYPE_TAB:
-        Table.Iterator it1 = Table.iterator(((Tab)this).v);
-        Table.Iterator it2 = Table.iterator(((Tab)that).v);
+        // Tables with the same contents usually share structure, because
+        // their shape depends only on their keys.
+        if (((Tab)this).v==((Tab)that).v) return 0;
+        final Table.Cursor c1 = new Table.Cursor(((Tab)this).v);
+        final Table.Cursor c2 = new Table.Cursor(((Tab)that).v);
         while (true) {
-          if (it1==null) return it2==null ? 0 : -1;
-          if (it2==null) return 1;
-          int ans = -it1.key.compareTo(it2.key);
+          final boolean more1 = c1.next(), more2 = c2.next();
+          if (!more1) return more2 ? -1 : 0;
+          if (!more2) return 1;
+          int ans = -c1.key.compareTo(c2.key);
           if (ans!=0) return ans;
-          ans = ((Value)it1.value).compareTo((Value)it2.value);
+          ans = ((Value)c1.value).compareTo((Value)c2.value);
           if (ans!=0) return ans;
-          it1 = it1.next(); it2 = it2.next();
         }
       case TYPE_PIC:
         return ((Pic)this).originalName.compareTo(((Pic)that).originalName);
@@ -133,6 +148,10 @@ public abstract class Value implements Comparable, DeepCopyable {
   public final boolean equals(Object that) {
     if (that==null) return false;
     if (this==that) return true;
+    if (
+      this.type==TYPE_TAB && that instanceof Tab &&
+      Table.hash(((Tab)this).v)!=Table.hash(((Tab)that).v)
+    ) return false; // Fast path for unequal tables.
     try { return this.compareTo(that)==0; }
     catch (ClassCastException e) { return false; }
   }
@@ -156,12 +175,19 @@ public abstract class Value implements Comparable, DeepCopyable {
     /* Implement things in Value. */
 
     public String toString() { return this==TRUE ? "TRUE" : "FALSE"; }
+
+    /** Returns the same value as 'Boolean.hashCode()'. */
+    public int hashCode() { return this==TRUE ? 1231 : 1237; }
   }
 
   ////////////////////////////////////////////////////////////////////////////
 
-  /** The subclass of Value that represents a number. */
-  public static final class Num extends Value {
+  /** The subclass of Value that represents a number. Code that makes
+   * many numbers should use 'valueOf()', which returns a shared Num for
+   * integers in a range from 'CACHE_MIN' to 'CACHE_MAX'. The range is set by
+   * the system properties "crazon.numcache.min" and "crazon.numcache.max",
+   * if they are readable. */
+  public static final class Num extends Value implements Table.Numeric {
     /** Constructs a Num given its value as a double. */
     public Num(double v) {
       super(TYPE_NUM); this.v = v;
@@ -171,6 +197,31 @@ public abstract class Value implements Comparable, DeepCopyable {
 
     /* NEW API. */
 
+    /** The smallest and largest integers for which 'valueOf()' returns a
+     * shared Num. */
+    public static final int CACHE_MIN =
+      property("crazon.numcache.min", -128);
+    public static final int CACHE_MAX =
+      Math.max(property("crazon.numcache.max", 1023), CACHE_MIN-1);
+
+    /** Returns a Num whose value is 'v'. If 'v' is an integer from
+     * 'CACHE_MIN' to 'CACHE_MAX', other than '-0.0', the Num is shared.
+     * @throws IllegalArgumentException if 'v' is infinite or a NaN.
+     */
+    public static Num valueOf(double v) {
+      final int i = (int)v;
+      if (i==v && i>=CACHE_MIN && i<=CACHE_MAX && (i!=0 || 1/v>0)) {
+        return CACHE[i-CACHE_MIN];
+      }
+      return new Num(v);
+    }
+
+    /** Returns a Num whose value is 'i', as for 'valueOf(double)'. */
+    public static Num valueOf(int i) {
+      if (i>=CACHE_MIN && i<=CACHE_MAX) return CACHE[i-CACHE_MIN];
+      return new Num(i);
+    }
+
     /** The value of this Num as a double, which is finite and not a NaN. */
     public final double v;
 
@@ -183,42 +234,251 @@ public abstract class Value implements Comparable, DeepCopyable {
       return ans;
     }
 
+    /* Implement things in Table.Numeric. */
+
+    /** Returns 'v'. */
+    public double doubleValue() { return this.v; }
+
+    /** Returns this Num as an integer if it is a non-negative integer,
+     * otherwise '-1'. '-0.0' is not an index, so that a Table keeps it as a
+     * key instead of storing its value in an array indexed from '0'. */
+    public int index() {
+      final int ans = (int)this.v;
+      if (ans==0 && 1/this.v<0) return -1;
+      return ans==this.v && ans>=0 ? ans : -1;
+    }
+
+    /** Returns a Num whose value is 'i'. */
+    public Table.Index forIndex(int i) { return valueOf(i); }
+
     /* Implement things in Value. */
 
     public String toString() { return ""+this.v; }
 
-    /** Returns the same value as 'Double.hashCode()'. */
+    /** Returns the same value as 'Double.hashCode()', except that '-0.0'
+     * has the same hashcode as '0.0', to which it compares equal. */
     public int hashCode() {
-      final long v = Double.doubleToLongBits(this.v);
+      final long v = Double.doubleToLongBits(this.v+0.0);
       return (int)(v^(v>>>32));
     }
+
+    /* Private. */
+
+    /** The shared Nums returned by 'valueOf()'. Element 'i' has value
+     * 'CACHE_MIN+i'. */
+    private static final Num[] CACHE = new Num[CACHE_MAX-CACHE_MIN+1];
+    static {
+      for (int i=0; i<CACHE.length; i++) CACHE[i] = new Num(CACHE_MIN+i);
+    }
+
+    /** Returns the value of the system property 'name' as an integer, or
+     * 'otherwise' if it is not set, is not an integer, or may not be read
+     * (e.g. in an applet). */
+    private static int property(String name, int otherwise) {
+      try {
+        return Integer.getInteger(name, otherwise).intValue();
+      } catch (SecurityException e) {
+        return otherwise;
+      }
+    }
   }
 
   ////////////////////////////////////////////////////////////////////////////
 
-  /** The subclass of Value that represents a string. */
+  /** The subclass of Value that represents a string. A Str is a range of an
+   * array of characters, which it may share with other Strs. This makes it
+   * possible to take a substring in constant time, and to append to a Str in
+   * time proportional to the length of the appended string, which makes it
+   * cheap to build a long string piece by piece. A Java String is only
+   * constructed if 'toJavaString()' is called. */
   public static final class Str extends Value {
-    /** Constructs a Num given its value as a String. */
+    /** Constructs a Str given its value as a String. */
     public Str(String v) {
-      super(TYPE_STR); this.v = v;
-      if (v==null) throw new IllegalArgumentException();
+      this(new Buffer(v.toCharArray()), 0, v.length());
+      this.string = v;
     }
 
+    /** Constructs a Str given its characters. The caller must not modify
+     * 'chars' afterwards. */
+    public Str(char[] chars) { this(new Buffer(chars), 0, chars.length); }
+
     /* NEW API. */
 
-    /** The value of this Num as a String, which is non-null. */
-    public final String v;
+    /** Returns a Str of length 1 whose character is 'c'. For characters in
+     * the Latin-1 range, the Str is shared. */
+    public static Str valueOf(char c) {
+      if (c<CHARS.length) return CHARS[c];
+      return new Str(new char[] {c});
+    }
+
+    /** Returns the number of characters in this Str. */
+    public int length() { return this.length; }
+
+    /** Returns the character at index 'i' of this Str.
+     * @throws IndexOutOfBoundsException unless '0 &lt;= i &lt; length()'.
+     */
+    public char charAt(int i) {
+      if (i<0 || i>=this.length) throw new IndexOutOfBoundsException(""+i);
+      return this.buffer.chars[this.offset+i];
+    }
+
+    /** Copies the characters of this Str into 'dest' starting at index
+     * 'destIndex'. */
+    public void getChars(char[] dest, int destIndex) {
+      System.arraycopy(
+        this.buffer.chars, this.offset,
+        dest, destIndex,
+        this.length
+      );
+    }
+
+    /** Returns the value of this Str as a String, constructing it the first
+     * time. */
+    public String toJavaString() {
+      if (this.string==null) {
+        this.string = new String(this.buffer.chars, this.offset, this.length);
+      }
+      return this.string;
+    }
+
+    /** Returns the Str consisting of the characters of this Str from index
+     * 'lo' up to but not including index 'hi'. The result shares this Str's
+     * characters, or is a shared Str if it has length 1 (see 'valueOf()'), so
+     * this takes constant time.
+     * @throws IndexOutOfBoundsException unless
+     * '0 &lt;= lo &lt;= hi &lt;= length()'.
+     */
+    public Str substring(int lo, int hi) {
+      if (lo<0 || lo>hi || hi>this.length) {
+        throw new IndexOutOfBoundsException(lo+", "+hi);
+      }
+      if (lo==0 && hi==this.length) return this;
+      if (hi-lo==1) return valueOf(this.buffer.chars[this.offset+lo]);
+      return new Str(this.buffer, this.offset+lo, hi-lo);
+    }
+
+    /** Returns the concatenation of this Str and 'that'. If this Str is the
+     * most recent string to be extended at the end of its array, and there is
+     * room, 'that' is copied into the array after it. Similarly, if 'that' is
+     * the most recent string to be extended at the start of its array, this
+     * Str is copied into the array before it. Otherwise, both are copied into
+     * a new array, with as much room again for future concatenations. This
+     * takes time proportional to the length of the copied string, so building
+     * a long string one piece at a time, at either end, takes linear time. */
+    public Str concat(Str that) {
+      if (that.length==0) return this;
+      if (this.length==0) return that;
+      final int length = this.length + that.length;
+      final Buffer b1 = this.buffer;
+      synchronized (b1) {
+        if (
+          this.offset+this.length==b1.end &&
+          b1.end+that.length<=b1.chars.length
+        ) {
+          that.getChars(b1.chars, b1.end);
+          b1.end += that.length;
+          return new Str(b1, this.offset, length);
+        }
+      }
+      final Buffer b2 = that.buffer;
+      synchronized (b2) {
+        if (that.offset==b2.start && this.length<=b2.start) {
+          b2.start -= this.length;
+          this.getChars(b2.chars, b2.start);
+          return new Str(b2, b2.start, length);
+        }
+      }
+      // Leave room at the end that is growing, guessing that it is the end
+      // of the longer string.
+      final char[] chars = new char[2*length];
+      final int offset = this.length>=that.length ? 0 : length;
+      this.getChars(chars, offset);
+      that.getChars(chars, offset+this.length);
+      return new Str(new Buffer(chars, offset, offset+length), offset, length);
+    }
+
+    /** Compares this Str with 'that' in the same way as
+     * 'String.compareTo()'. */
+    public int compareTo(Str that) {
+      final char[] c1 = this.buffer.chars, c2 = that.buffer.chars;
+      final int o1 = this.offset, o2 = that.offset;
+      final int n = Math.min(this.length, that.length);
+      for (int i=0; i<n; i++) {
+        final char ch1 = c1[o1+i], ch2 = c2[o2+i];
+        if (ch1!=ch2) return ch1-ch2;
+      }
+      return this.length-that.length;
+    }
 
     /* Implement things in Value. */
 
-    /** Returns 'v' suitably escaped and wrapped in quotes. */
+    /** Returns the value of this Str suitably escaped and wrapped in quotes. */
     public String toString() {
-      return SSSString.encode(this.v);
+      return SSSString.encode(this.toJavaString());
     }
 
     /** Returns the same value as 'String.hashCode()'. */
     public int hashCode() {
-      return this.v.hashCode();
+      int ans = this.hash;
+      if (ans==0) {
+        final char[] chars = this.buffer.chars;
+        for (int i=0; i<this.length; i++) {
+          ans = 31*ans + chars[this.offset+i];
+        }
+        this.hash = ans;
+      }
+      return ans;
+    }
+
+    /* Private. */
+
+    /** Constructs a Str given values for its fields. */
+    private Str(Buffer buffer, int offset, int length) {
+      super(TYPE_STR);
+      this.buffer = buffer; this.offset = offset; this.length = length;
+    }
+
+    /** The array that contains the characters of this Str. */
+    private final Buffer buffer;
+
+    /** The index in 'buffer.chars' of the first character of this Str. */
+    private final int offset;
+
+    /** The number of characters in this Str. */
+    private final int length;
+
+    /** The value of 'toJavaString()', or 'null' if not yet computed. */
+    private String string;
+
+    /** The value of 'hashCode()', or '0' if not yet computed. */
+    private int hash;
+
+    /** The shared Strs returned by 'valueOf()'. Element 'c' is the Str whose
+     * character is 'c'. */
+    private static final Str[] CHARS = new Str[256];
+    static {
+      for (int c=0; c<CHARS.length; c++) {
+        CHARS[c] = new Str(new String(new char[] {(char)c}));
+      }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    /** An array of characters shared by some Strs. Elements from 'start' up to
+     * but not including 'end' belong to Strs, and are never modified. The
+     * other elements are free, and 'concat()' can claim them by moving
+     * 'start' or 'end', while synchronized on this Buffer. */
+    private static final class Buffer {
+      /** Constructs a Buffer in which all of 'chars' is in use. */
+      Buffer(char[] chars) { this(chars, 0, chars.length); }
+
+      /** Constructs a Buffer given values for its fields. */
+      Buffer(char[] chars, int start, int end) {
+        this.chars = chars; this.start = start; this.end = end;
+      }
+
+      final char[] chars;
+      int start, end;
     }
   }
 
@@ -245,8 +505,8 @@ public abstract class Value implements Comparable, DeepCopyable {
     public String toLongString() {
       final StringBuffer ans = new StringBuffer("[");
       String sep = "";
-      for (Table.Iterator it = Table.iterator(this.v); it!=null; it=it.next()) {
-        ans.append(sep).append(it.key).append("=").append(it.value);
+      for (Table.Cursor c = new Table.Cursor(this.v); c.next(); ) {
+        ans.append(sep).append(c.key).append("=").append(c.value);
         sep = ", ";
       }
       return ans.append("]").toString();
@@ -255,20 +515,18 @@ public abstract class Value implements Comparable, DeepCopyable {
     /** Deep copies all the values in this Tab. If none of them return a new
      * object, returns 'this', otherwise returns a fresh 'Tab'. */
     public Value deepCopyValue() {
+      if (!Table.isMutable(this.v)) return this;
       final Table ans = this.v.deepCopyTable();
       return ans==this.v ? this : new Tab(ans);
     }
 
-    /** Returns the same value as the following code:<pre>
-     * ans = 0;
-     * for (Table.Iterator it = Table.iterator(v); it!=null; it=it.next()) {
-     *   ans = 568742265*ans + it.key.hashCode();
-     *   ans = 568742265*ans + it.value.hashCode();
-     * }
-     * return ans;
-     * </pre> */
+    /** Returns 'Table.isMutable(v)'. */
+    public boolean isMutable() { return Table.isMutable(this.v); }
+
+    /** Returns 'Table.hash(v)', which depends only on the keys and values,
+     * and takes constant time. */
     public int hashCode() {
-      return this.v.hashCode();
+      return Table.hash(this.v);
     }
   }
 
@@ -319,13 +577,31 @@ public abstract class Value implements Comparable, DeepCopyable {
    * "RETURN" Instruction is encountered. At this point, the stack must contain
    * a single Value, which is returned to the caller. */
   public static final class Func extends Value {
+    /** Constructs a Func given its fields, with no fast entry point. */
+    public Func(
+      int startPC, int endPC,
+      int numLocals, int stackLen,
+      String originalName
+    ) {
+      this(startPC, endPC, numLocals, stackLen, originalName, -1, -1, true);
+    }
+
     /** Constructs a Func given its fields. */
-    public Func(int startPC, int numLocals, int stackLen, String originalName) {
+    public Func(
+      int startPC, int endPC,
+      int numLocals, int stackLen,
+      String originalName,
+      int arity, int fastPC, boolean readsArgs
+    ) {
       super(TYPE_FUNC);
       this.startPC = startPC;
+      this.endPC = endPC;
       this.numLocals = numLocals;
       this.stackLen = stackLen;
       this.originalName = originalName;
+      this.arity = arity;
+      this.fastPC = fastPC;
+      this.readsArgs = readsArgs;
     }
 
     /* New API. */
@@ -333,6 +609,11 @@ public abstract class Value implements Comparable, DeepCopyable {
     /** The value of the program counter at the start of the function body. */
     public final int startPC;
 
+    /** The value of the program counter just after the end of the function
+     * body. All Instructions of the body lie between 'startPC' (inclusive) and
+     * 'endPC' (exclusive). */
+    public final int endPC;
+
     /** The number of local variables needed to execute 'instructions'. */
     public final int numLocals;
 
@@ -343,6 +624,23 @@ public abstract class Value implements Comparable, DeepCopyable {
      * reporting errors. */
     public final String originalName;
 
+    /** The number of arguments accepted at 'fastPC', or '-1' if there is no
+     * fast entry point. A function has one if its body begins by storing the
+     * table of arguments in local variable '0' and then copying its elements
+     * '0' to 'arity-1' into local variables '1' to 'arity'. "CALL(n)" can then
+     * put the arguments straight into those local variables, without
+     * constructing a table. */
+    public final int arity;
+
+    /** The value of the program counter just after the code that unpacks the
+     * arguments, or '-1' if 'arity' is '-1'. */
+    public final int fastPC;
+
+    /** 'false' if the function body does not read local variable '0' after
+     * 'fastPC', so that a call to 'fastPC' need not construct the table of
+     * arguments. */
+    public final boolean readsArgs;
+
     /* Implement things in Value. */
 
     /** Returns 'this.originalName'. */
@@ -355,58 +653,77 @@ public abstract class Value implements Comparable, DeepCopyable {
    * reference and which has a fixed set of attributes. The values of the
    * attributes can be changed but not their types. */
   public static abstract class Obj extends Value {
-    /** Constructs an Obj given its attributes.
-     * @param attributes a Map from attribute names (Strings) to attribute
-     * values (Values). The attribute values must be immutable. The caller must
-     * not modify the Map hereafter.
-     */
-    public Obj(Map attributes) {
+    /** Constructs an Obj with the specified Shape. The subclass must
+     * initialise all the attributes. */
+    protected Obj(Shape shape) {
       super(TYPE_OBJ);
-      this.attributes = attributes;
+      this.shape = shape;
       this.objNum = objCount++;
-      // Assertion: none of the values are mutable.
-      for (Iterator it = this.attributes.values().iterator(); it.hasNext(); ) {
-        switch (((Value)it.next()).type) {
-          case TYPE_TAB:
-          case TYPE_OBJ:
-            throw new IllegalArgumentException("Obj attribute is mutable");
-          default:
-        }
-      }
     }
     
     /** Constructs a deep copy of 'that'. It will have the same 'objNum'.
      * Therefore, a copy of an object constructed in this way should not be put
      * into the same InterpreterState as the original object. This constructor
-     * is intended to be used to implement 'deepCopyValue()'. */
+     * is intended to be used to implement 'deepCopyValue()'. The subclass must
+     * copy the attributes. */
     protected Obj(Obj that) {
       super(TYPE_OBJ);
-      this.attributes = new HashMap(that.attributes);
+      this.shape = that.shape;
       this.objNum = that.objNum;
     }
 
     /* NEW API. */
     
+    /** The attributes of this Obj, and the slots in which they are stored.
+     * Attribute values always have immutable types. */
+    public final Shape shape;
+
     /** A unique identifier for this Obj. Objs constructed earlier have
      * smaller identifiers. */
     public final int objNum;
     
     /** Sets the value of an attribute.
-     * @param name the name of the attribute.
+     * @param attribute the attribute number (see 'Shape.attribute()').
      * @param v the new Value.
      * @throws CrazonException if the attribute does not exist, or if
      * its old Value does not have the same type as 'v'.
      */
+    public final void set(int attribute, Value v) throws CrazonException {
+      final int slot = this.shape.slotOf(attribute);
+      if (slot<0 || this.shape.types[slot]!=v.type) throw new CrazonException(
+        "SET "+this+"."+Shape.attributeName(attribute)+" = "+v
+      );
+      this.setSlot(slot, v);
+    }
+
+    /** Equivalent to 'set(attribute, new Value.Num(v))' but may avoid
+     * constructing the Value.Num. */
+    public final void setNum(int attribute, double v) throws CrazonException {
+      final int slot = this.shape.slotOf(attribute);
+      if (slot<0 || this.shape.types[slot]!=TYPE_NUM) throw new CrazonException(
+        "SET "+this+"."+Shape.attributeName(attribute)+" = "+new Value.Num(v)
+      );
+      this.setNumSlot(slot, v);
+    }
+
+    /** Sets the value of an attribute, given its name. Equivalent to
+     * 'set(Shape.attribute(name), v)'. */
     public final void set(String name, Value v) throws CrazonException {
-      final Value old = this.get(name);
-      if (old==null || old.type!=v.type)
-        throw new CrazonException("SET "+this+"."+name+" = "+v);
-      this.attributes.put(name, v);
+      this.set(Shape.attribute(name), v);
     }
     
-    /** Returns the Value of an attribute, or 'null' if it does not exist. */
+    /** Returns the Value of an attribute, or 'null' if it does not exist.
+     * @param attribute the attribute number (see 'Shape.attribute()').
+     */
+    public final Value get(int attribute) {
+      final int slot = this.shape.slotOf(attribute);
+      return slot<0 ? null : this.getSlot(slot);
+    }
+
+    /** Returns the Value of an attribute, given its name, or 'null' if it does
+     * not exist. */
     public final Value get(String name) {
-      return (Value)this.attributes.get(name);
+      return this.get(Shape.lookup(name));
     }
     
     /** Returns the Value of an attribute as a boolean. */
@@ -421,7 +738,26 @@ public abstract class Value implements Comparable, DeepCopyable {
 
     /** Returns the Value of an attribute as a String. */
     public final String getString(String name) {
-      return ((Value.Str)this.get(name)).v;
+      return ((Value.Str)this.get(name)).toJavaString();
+    }
+
+    /** Returns the Value stored in slot 'slot' of 'shape'. */
+    public abstract Value getSlot(int slot);
+
+    /** Returns the number stored in slot 'slot' of 'shape', which must have
+     * type 'TYPE_NUM'. The default implementation unboxes 'getSlot(slot)'. */
+    public double getNumSlot(int slot) {
+      return ((Value.Num)this.getSlot(slot)).v;
+    }
+    
+    /** Stores 'v' in slot 'slot' of 'shape'. The caller has checked that 'v'
+     * has the type of the slot. */
+    protected abstract void setSlot(int slot, Value v);
+
+    /** Stores 'v' in slot 'slot' of 'shape', which has type 'TYPE_NUM'. The
+     * default implementation boxes 'v' and calls 'setSlot()'. */
+    protected void setNumSlot(int slot, double v) {
+      this.setSlot(slot, Num.valueOf(v));
     }
     
     /** Returns a String describing the type of this Object. The String is used
@@ -434,12 +770,9 @@ public abstract class Value implements Comparable, DeepCopyable {
     public String toLongString() {
       final StringBuffer ans = new StringBuffer(this.toString());
       ans.append('(');
-      String sep = "";
-      for (Iterator it = this.attributes.keySet().iterator(); it.hasNext(); ) {
-        final String key = (String)it.next();
-        final Value value = (Value)this.attributes.get(key);
-        ans.append(sep).append(key).append('=').append(value);
-        sep = ", ";
+      for (int i=0; i<this.shape.names.length; i++) {
+        if (i>0) ans.append(", ");
+        ans.append(this.shape.names[i]).append('=').append(this.getSlot(i));
       }
       return ans.append(')').toString();
     }
@@ -449,6 +782,9 @@ public abstract class Value implements Comparable, DeepCopyable {
      * for 'DeepCopyable.deepCopy()'. */
     public abstract Value deepCopyValue();
 
+    /** Returns 'true'. */
+    public final boolean isMutable() { return true; }
+
     /* Override things in Object. */
     
     /** Returns a String of the form "CLASS:ID" where "CLASS" is the String
@@ -457,12 +793,9 @@ public abstract class Value implements Comparable, DeepCopyable {
     public String toString() {
       return this.getObjType()+':'+this.objNum;
     }
-    
+
     /* Private. */
 
-    /** The Map that stores the attributes. */
-    private final Map attributes;
-    
     /** The number of Objs constructed so far. */
     private static int objCount = 0;
   }
@@ -18,25 +18,83 @@ import java.util.*;
 public class Window extends Value.Obj {
   /** Constructs a Window given values for its 'W' and 'H' attributes. */
   public Window(int width, int height) {
-    super(makeMap(width, height));
+    super(SHAPE);
+    this.x = 0.0;
+    this.y = 0.0;
+    this.w = width;
+    this.h = height;
+    this.r = 0.0;
+    this.g = 0.0;
+    this.b = 0.0;
+    this.isVisible = true;
   }
   
-  private Window(Window that) { super(that); }
-  
-  /* Private. */
+  private Window(Window that) {
+    super(that);
+    this.x = that.x;
+    this.y = that.y;
+    this.w = that.w;
+    this.h = that.h;
+    this.r = that.r;
+    this.g = that.g;
+    this.b = that.b;
+    this.isVisible = that.isVisible;
+  }
   
-  /** Constructs a HashMap to represent the attributes of the WINDOW object. */
-  private static HashMap makeMap(int width, int height) {
-    final HashMap ans = new HashMap();
-    ans.put("X", new Value.Num(0.0));
-    ans.put("Y", new Value.Num(0.0));
-    ans.put("W", new Value.Num(width));
-    ans.put("H", new Value.Num(height));
-    ans.put("R", new Value.Num(0.0));
-    ans.put("G", new Value.Num(0.0));
-    ans.put("B", new Value.Num(0.0));
-    ans.put("IsVisible", Value.Bool.TRUE);
-    return ans;
+  /* New API. */
+
+  /** The Shape of the WINDOW object. */
+  public static final Shape SHAPE = new Shape(
+    new String[] {"X", "Y", "W", "H", "R", "G", "B", "IsVisible"},
+    new int[] {
+      Value.TYPE_NUM, Value.TYPE_NUM, Value.TYPE_NUM, Value.TYPE_NUM,
+      Value.TYPE_NUM, Value.TYPE_NUM, Value.TYPE_NUM, Value.TYPE_BOOL
+    }
+  );
+
+  /** The attributes. These fields may be read directly, but must only be
+   * written using 'set()'. */
+  public double x, y, w, h, r, g, b;
+
+  /** The 'IsVisible' attribute. See 'x'. */
+  public boolean isVisible;
+
+  /* Implement things in Value.Obj. */
+
+  public Value getSlot(int slot) {
+    if (slot==7) return this.isVisible ? Value.Bool.TRUE : Value.Bool.FALSE;
+    return Value.Num.valueOf(this.getNumSlot(slot));
+  }
+
+  public double getNumSlot(int slot) {
+    switch (slot) {
+      case 0: return this.x;
+      case 1: return this.y;
+      case 2: return this.w;
+      case 3: return this.h;
+      case 4: return this.r;
+      case 5: return this.g;
+      case 6: return this.b;
+      default: throw new IllegalArgumentException("Slot "+slot);
+    }
+  }
+
+  protected void setSlot(int slot, Value v) {
+    if (slot==7) this.isVisible = v==Value.Bool.TRUE;
+    else this.setNumSlot(slot, ((Value.Num)v).v);
+  }
+
+  protected void setNumSlot(int slot, double v) {
+    switch (slot) {
+      case 0: this.x = v; return;
+      case 1: this.y = v; return;
+      case 2: this.w = v; return;
+      case 3: this.h = v; return;
+      case 4: this.r = v; return;
+      case 5: this.g = v; return;
+      case 6: this.b = v; return;
+      default: throw new IllegalArgumentException("Slot "+slot);
+    }
   }
 
   public String getObjType() { return "WINDOW"; }
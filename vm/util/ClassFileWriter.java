@@ -0,0 +1,396 @@
+package org.sc3d.apt.crazon.vm.util;
+
+import java.io.*;
+import java.util.*;
+
+/** A minimal assembler for Java class files. It knows just enough about the
+ * class file format to construct a class with some fields and some methods
+ * whose bodies are given as bytecode. The class files are written with version
+ * number 46.0, which is old enough that the virtual machine infers the types
+ * of the stack and local variables for itself, so no stack map is required.
+ * <p>
+ * Class, field and method names are given in internal form, e.g.
+ * "java/lang/Object", and types are given as descriptors, e.g. "(I)V".
+ */
+public class ClassFileWriter {
+  /** Constructs a ClassFileWriter for a public class.
+   * @param className the internal name of the class to define.
+   * @param superName the internal name of its superclass.
+   */
+  public ClassFileWriter(String className, String superName) {
+    this.pool = new ByteArrayOutputStream();
+    this.poolOut = new DataOutputStream(this.pool);
+    this.poolIndices = new HashMap();
+    this.poolCount = 1;
+    this.fields = new ArrayList();
+    this.methods = new ArrayList();
+    this.thisClass = this.classRef(className);
+    this.superClass = this.classRef(superName);
+  }
+
+  /* New API. */
+
+  /** Access flags. */
+  public static final int
+    ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_FINAL = 0x0010,
+    ACC_SUPER = 0x0020;
+
+  /** Some opcodes. The names are those used in the Java Virtual Machine
+   * Specification. */
+  public static final int
+    ICONST_M1 = 0x02, BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13,
+    DLOAD = 0x18, ALOAD = 0x19, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b,
+    AALOAD = 0x32, DSTORE = 0x39, ASTORE = 0x3a, DUP = 0x59,
+    DADD = 0x63, ISUB = 0x64, DSUB = 0x67, DMUL = 0x6b,
+    DCMPL = 0x97, DCMPG = 0x98,
+    IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d,
+    IFLE = 0x9e, IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0,
+    IF_ACMPEQ = 0xa5, IF_ACMPNE = 0xa6, GOTO = 0xa7, TABLESWITCH = 0xaa,
+    IRETURN = 0xac, RETURN = 0xb1, GETSTATIC = 0xb2,
+    GETFIELD = 0xb4, PUTFIELD = 0xb5,
+    INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, CHECKCAST = 0xc0,
+    IFNULL = 0xc6, IFNONNULL = 0xc7;
+
+  /** Returns the index of a CONSTANT_Utf8 entry, adding it if necessary. */
+  public int utf8(String s) {
+    final String key = "U"+s;
+    final Integer old = (Integer)this.poolIndices.get(key);
+    if (old!=null) return old.intValue();
+    try {
+      this.poolOut.writeByte(1);
+      this.poolOut.writeUTF(s);
+    } catch (IOException e) { throw new RuntimeException("Impossible"); }
+    return this.newEntry(key, 1);
+  }
+
+  /** Returns the index of a CONSTANT_Class entry, adding it if necessary. */
+  public int classRef(String className) {
+    final int name = this.utf8(className);
+    final String key = "C"+className;
+    final Integer old = (Integer)this.poolIndices.get(key);
+    if (old!=null) return old.intValue();
+    this.writePool(7, name, -1);
+    return this.newEntry(key, 1);
+  }
+
+  /** Returns the index of a CONSTANT_Integer entry, adding it if necessary. */
+  public int integer(int value) {
+    final String key = "I"+value;
+    final Integer old = (Integer)this.poolIndices.get(key);
+    if (old!=null) return old.intValue();
+    try {
+      this.poolOut.writeByte(3);
+      this.poolOut.writeInt(value);
+    } catch (IOException e) { throw new RuntimeException("Impossible"); }
+    return this.newEntry(key, 1);
+  }
+
+  /** Returns the index of a CONSTANT_Fieldref entry, adding it if necessary.
+   */
+  public int fieldRef(String className, String name, String desc) {
+    return this.memberRef(9, className, name, desc);
+  }
+
+  /** Returns the index of a CONSTANT_Methodref entry, adding it if necessary.
+   */
+  public int methodRef(String className, String name, String desc) {
+    return this.memberRef(10, className, name, desc);
+  }
+
+  /** Declares a field of the class. */
+  public void addField(int access, String name, String desc) {
+    this.fields.add(new int[] {access, this.utf8(name), this.utf8(desc)});
+  }
+
+  /** Declares a method of the class, and returns a Code object through which
+   * its bytecode may be supplied. The bytecode is read when 'toByteArray()' is
+   * called, so the Code object may be filled in at any time before then. */
+  public Code addMethod(int access, String name, String desc) {
+    final Code ans = new Code(access, this.utf8(name), this.utf8(desc));
+    this.methods.add(ans);
+    return ans;
+  }
+
+  /** Returns the class file.
+   * @throws IllegalStateException if a Label has been used but not placed, if
+   * a branch is out of range or if a method is too long.
+   */
+  public byte[] toByteArray() {
+    final int codeName = this.utf8("Code");
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0); out.writeShort(46); // Version 46.0.
+      out.writeShort(this.poolCount);
+      this.pool.writeTo(out);
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(this.thisClass);
+      out.writeShort(this.superClass);
+      out.writeShort(0); // No interfaces.
+      out.writeShort(this.fields.size());
+      for (int i=0; i<this.fields.size(); i++) {
+        final int[] f = (int[])this.fields.get(i);
+        out.writeShort(f[0]); out.writeShort(f[1]); out.writeShort(f[2]);
+        out.writeShort(0); // No attributes.
+      }
+      out.writeShort(this.methods.size());
+      for (int i=0; i<this.methods.size(); i++) {
+        ((Code)this.methods.get(i)).write(out, codeName);
+      }
+      out.writeShort(0); // No class attributes.
+    } catch (IOException e) { throw new RuntimeException("Impossible"); }
+    return bytes.toByteArray();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Represents a position in the bytecode of a method. A Label is created by
+   * 'Code.newLabel()', may be used as a branch target any number of times, and
+   * must be placed exactly once using 'Code.mark()'. */
+  public static final class Label {
+    /** Private constructor: the public uses 'Code.newLabel()'. */
+    private Label() { this.pos = -1; }
+
+    /** The offset of this Label in the bytecode, or '-1' if not yet placed. */
+    private int pos;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** The return type of 'addMethod()', which accumulates the bytecode of one
+   * method. Branch offsets are filled in when the class file is written. */
+  public final class Code {
+    /** Private constructor: the public uses 'addMethod()'. */
+    private Code(int access, int name, int desc) {
+      this.access = access; this.name = name; this.desc = desc;
+      this.code = new byte[256];
+      this.length = 0;
+      this.fixups = new ArrayList();
+      this.maxStack = 0; this.maxLocals = 0;
+    }
+
+    /* New API. */
+
+    /** The maximum depth of the operand stack, which must be set by the
+     * caller. */
+    public int maxStack;
+
+    /** The number of local variable slots, including 'this' and the
+     * parameters, which must be set by the caller. */
+    public int maxLocals;
+
+    /** Returns the number of bytes of bytecode emitted so far. */
+    public int length() { return this.length; }
+
+    /** Emits an instruction with no operands. */
+    public void op(int opcode) { this.u1(opcode); }
+
+    /** Emits an instruction with a one-byte operand. */
+    public void op1(int opcode, int operand) {
+      this.u1(opcode); this.u1(operand);
+    }
+
+    /** Emits an instruction with a two-byte operand, e.g. a constant pool
+     * index. */
+    public void op2(int opcode, int operand) {
+      this.u1(opcode); this.u2(operand);
+    }
+
+    /** Emits the shortest instruction that pushes 'value'. */
+    public void pushInt(int value) {
+      if (value>=-1 && value<=5) {
+        this.op(ICONST_M1+1+value);
+      } else if (value>=Byte.MIN_VALUE && value<=Byte.MAX_VALUE) {
+        this.op1(BIPUSH, value);
+      } else if (value>=Short.MIN_VALUE && value<=Short.MAX_VALUE) {
+        this.op2(SIPUSH, value);
+      } else {
+        final int index = ClassFileWriter.this.integer(value);
+        if (index<256) this.op1(LDC, index); else this.op2(LDC_W, index);
+      }
+    }
+
+    /** Returns a fresh Label. */
+    public Label newLabel() { return new Label(); }
+
+    /** Places 'label' at the current position. */
+    public void mark(Label label) {
+      if (label.pos!=-1)
+        throw new IllegalStateException("Label has already been placed");
+      label.pos = this.length;
+    }
+
+    /** Emits a branch instruction (e.g. 'GOTO' or 'IFEQ') to 'target'. */
+    public void branch(int opcode, Label target) {
+      final int start = this.length;
+      this.u1(opcode);
+      this.fixups.add(new Fixup(start, this.length, 2, target));
+      this.u2(0);
+    }
+
+    /** Emits a 'TABLESWITCH' instruction.
+     * @param low the value that selects 'targets[0]'.
+     * @param dflt the target for values outside the range of 'targets'.
+     * @param targets the targets for the values 'low' to
+     * 'low+targets.length-1'.
+     */
+    public void tableSwitch(int low, Label dflt, Label[] targets) {
+      final int start = this.length;
+      this.u1(TABLESWITCH);
+      while ((this.length&3)!=0) this.u1(0);
+      this.fixups.add(new Fixup(start, this.length, 4, dflt));
+      this.u4(0);
+      this.u4(low);
+      this.u4(low+targets.length-1);
+      for (int i=0; i<targets.length; i++) {
+        this.fixups.add(new Fixup(start, this.length, 4, targets[i]));
+        this.u4(0);
+      }
+    }
+
+    /* Private. */
+
+    private final int access, name, desc;
+
+    /** The bytecode emitted so far, in the first 'length' bytes. */
+    private byte[] code;
+    private int length;
+
+    /** A List of Fixups to apply when writing the class file. */
+    private final ArrayList fixups;
+
+    private void u1(int b) {
+      if (this.length>=this.code.length) {
+        final byte[] old = this.code;
+        this.code = new byte[2*old.length];
+        System.arraycopy(old, 0, this.code, 0, old.length);
+      }
+      this.code[this.length++] = (byte)b;
+    }
+
+    private void u2(int s) { this.u1(s>>8); this.u1(s); }
+
+    private void u4(int i) { this.u2(i>>16); this.u2(i); }
+
+    /** Writes this method's 'method_info' structure to 'out'. */
+    private void write(DataOutputStream out, int codeName)
+    throws IOException {
+      if (this.length>=0x10000)
+        throw new IllegalStateException("Method is too long");
+      for (int i=0; i<this.fixups.size(); i++) {
+        ((Fixup)this.fixups.get(i)).apply(this.code);
+      }
+      out.writeShort(this.access);
+      out.writeShort(this.name);
+      out.writeShort(this.desc);
+      out.writeShort(1); // One attribute: "Code".
+      out.writeShort(codeName);
+      out.writeInt(12 + this.length);
+      out.writeShort(this.maxStack);
+      out.writeShort(this.maxLocals);
+      out.writeInt(this.length);
+      out.write(this.code, 0, this.length);
+      out.writeShort(0); // No exception handlers.
+      out.writeShort(0); // No attributes.
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Records a branch offset that must be filled in once its target Label has
+   * been placed. */
+  private static final class Fixup {
+    /** Constructs a Fixup.
+     * @param start the offset of the branch instruction's opcode.
+     * @param at the offset of the operand to fill in.
+     * @param size the size of the operand in bytes (2 or 4).
+     * @param target the Label to which the branch goes.
+     */
+    public Fixup(int start, int at, int size, Label target) {
+      this.start = start; this.at = at; this.size = size;
+      this.target = target;
+    }
+
+    private final int start, at, size;
+    private final Label target;
+
+    /** Writes the branch offset into 'code'. */
+    public void apply(byte[] code) {
+      if (this.target.pos==-1)
+        throw new IllegalStateException("Label has not been placed");
+      final int offset = this.target.pos - this.start;
+      if (this.size==2) {
+        if (offset<Short.MIN_VALUE || offset>Short.MAX_VALUE)
+          throw new IllegalStateException("Branch is out of range");
+        code[this.at] = (byte)(offset>>8);
+        code[this.at+1] = (byte)offset;
+      } else {
+        code[this.at] = (byte)(offset>>24);
+        code[this.at+1] = (byte)(offset>>16);
+        code[this.at+2] = (byte)(offset>>8);
+        code[this.at+3] = (byte)offset;
+      }
+    }
+  }
+
+  /* Private. */
+
+  /** The constant pool entries written so far (without the count). */
+  private final ByteArrayOutputStream pool;
+  private final DataOutputStream poolOut;
+
+  /** Maps a String describing each constant pool entry to its index (an
+   * Integer), so that entries are not duplicated. */
+  private final HashMap poolIndices;
+
+  /** One more than the index of the last constant pool entry. */
+  private int poolCount;
+
+  private final int thisClass, superClass;
+
+  /** The fields, each represented as an 'int[]' containing the access flags,
+   * the name index and the descriptor index. */
+  private final ArrayList fields;
+
+  /** The methods, as Code objects. */
+  private final ArrayList methods;
+
+  /** Records that the entry just written to 'pool' has description 'key' and
+   * occupies 'slots' slots, and returns its index. */
+  private int newEntry(String key, int slots) {
+    final int ans = this.poolCount;
+    this.poolIndices.put(key, new Integer(ans));
+    this.poolCount += slots;
+    if (this.poolCount>=0x10000)
+      throw new IllegalStateException("Constant pool is too big");
+    return ans;
+  }
+
+  /** Writes a constant pool entry consisting of a tag and one or two
+   * two-byte indices. Pass '-1' for 'b' to omit it. */
+  private void writePool(int tag, int a, int b) {
+    try {
+      this.poolOut.writeByte(tag);
+      this.poolOut.writeShort(a);
+      if (b!=-1) this.poolOut.writeShort(b);
+    } catch (IOException e) { throw new RuntimeException("Impossible"); }
+  }
+
+  /** Implements 'fieldRef()' and 'methodRef()'. */
+  private int memberRef(int tag, String className, String name, String desc) {
+    final int cls = this.classRef(className);
+    final int nameIndex = this.utf8(name), descIndex = this.utf8(desc);
+    final String ntKey = "N"+name+" "+desc;
+    Integer nt = (Integer)this.poolIndices.get(ntKey);
+    if (nt==null) {
+      this.writePool(12, nameIndex, descIndex);
+      nt = new Integer(this.newEntry(ntKey, 1));
+    }
+    final String key = tag+className+"."+name+" "+desc;
+    final Integer old = (Integer)this.poolIndices.get(key);
+    if (old!=null) return old.intValue();
+    this.writePool(tag, cls, nt.intValue());
+    return this.newEntry(key, 1);
+  }
+}
@@ -1,7 +1,17 @@
 package org.sc3d.apt.crazon.vm.util;
 
 /** Represents an immutable map from Comparable keys to Object values. All
- * modifications return a fresh map. 'null' represents the empty map. */
+ * modifications return a fresh map. 'null' represents the empty map.
+ * <p>
+ * A Table is usually a treap. However, a Table whose keys are the Indexes from
+ * '0' to 'n-1' is stored as a trie of arrays, in which a lookup does no key
+ * comparisons and the keys are not stored at all. Such a Table is made by
+ * 'put()' and by 'Builder.build()' when possible, and is turned into a treap
+ * when a key is added that does not continue the sequence. The difference
+ * is not visible through the public API.
+ * <p>
+ * Keys that compare equal must have equal hash codes, which are used to
+ * choose the shape of the treap. */
 public class Table implements DeepCopyable {
   /** Private constructor: the public construct maps from 'null' by using
    * 'put()' repeatedly. */
@@ -14,19 +24,65 @@ public class Table implements DeepCopyable {
     this.depth = depth;
     this.key = key; this.value = value;
     this.size = (left==null?0:left.size) + 1 + (right==null?0:right.size);
+    this.hash = hash(left) + hash(key, value) + hash(right);
+    this.mutable = isMutable(left) || isMutable(value) || isMutable(right);
     if (left!=null && depth<=left.depth)
       throw new IllegalArgumentException("Left is too deep");
     if (right!=null && depth<right.depth)
       throw new IllegalArgumentException("Right is too deep");
   }
+
+  /** Private constructor for the use of Dense. */
+  private Table(int size, int hash, boolean mutable) {
+    this.left = null; this.right = null;
+    this.depth = 0;
+    this.key = null; this.value = null;
+    this.size = size;
+    this.hash = hash;
+    this.mutable = mutable;
+  }
   
   /* New API. */
   
   /** Returns the number of key, value pairs in 't'. */
   public static int size(Table t) { return t==null ? 0 : t.size; }
+
+  /** Returns a hash of the key, value pairs in 't', in constant time. The
+   * hash is the sum of a hash of each pair, computed from the 'hashCode()'s
+   * of the key and value, so Tables whose keys and values are equal have
+   * equal hashes whatever their shape. If the hashes differ, the Tables are
+   * certainly not equal. The empty Table has hash '0'. */
+  public static int hash(Table t) { return t==null ? 0 : t.hash; }
+
+  /** Returns 'false' if no value in 't' can change when 't' is deep copied,
+   * in which case 'deepCopyTable()' returns 't' at once. Takes constant time.
+   * See 'MaybeMutable'. */
+  public static boolean isMutable(Table t) { return t!=null && t.mutable; }
   
   /** Returns the value to which 't' maps 'k', or 'null' if there is none. */
   public static DeepCopyable get(Table t, Comparable k) {
+    if (t instanceof Dense) {
+      int i = index(k);
+      // '-0.0' is not an Index, but compares equal to '0'.
+      if (i<0 && k instanceof Numeric && ((Numeric)k).doubleValue()==0) i = 0;
+      return i>=0 && i<t.size ? ((Dense)t).get(i) : null;
+    }
+    if (k instanceof Numeric) {
+      // Fast path: compare numbers without calling 'compareTo()'.
+      final double d = ((Numeric)k).doubleValue();
+      while (t!=null) {
+        if (t instanceof NumNode) {
+          final double n = ((NumNode)t).num;
+          if (d==n) return t.value;
+          t = d<n ? t.left : t.right;
+        } else {
+          final int c = k.compareTo(t.key);
+          if (c==0) return t.value;
+          t = c<0 ? t.left : t.right;
+        }
+      }
+      return null;
+    }
     while (t!=null) {
       final int c = k.compareTo(t.key);
       if (c==0) return t.value;
@@ -37,59 +93,536 @@ public class Table implements DeepCopyable {
   
   /** Returns a new Table that differs from 't' in that it maps 'k' to 'v'. */
   public static Table put(Table t, Comparable k, DeepCopyable v) {
-    if (t==null) return new Table(null, null, RAND.nextInt(), k, v);
-    final int c = k.compareTo(t.key);
-    if (c==0) return new Table(t.left, t.right, t.depth, k, v);
-    if (c<0) {
-      final Table u = put(t.left, k, v);
-      if (u.depth<t.depth) {
-        return new Table(u, t.right, t.depth, t.key, t.value);
-      } else {
-        t = new Table(u.right, t.right, t.depth, t.key, t.value);
-        return new Table(u.left, t, u.depth, u.key, u.value);
-      }
-    } else {
-      final Table u = put(t.right, k, v);
-      if (t.depth<u.depth) {
-        t = new Table(t.left, u.left, t.depth, t.key, t.value);
-        return new Table(t, u.right, u.depth, u.key, u.value);
-      } else {
-        return new Table(t.left, u, t.depth, t.key, t.value);
-      }
+    if (t instanceof Dense) {
+      final int i = index(k);
+      if (i>=0 && i<=t.size) return ((Dense)t).set(i, v);
+      t = ((Dense)t).treap();
+    }
+    if (t==null && index(k)==0) {
+      return Dense.make((Index)k, new DeepCopyable[] {v}, 1);
     }
+    return putTreap(t, k, v);
   }
   
+  /** Returns a Table containing the key, value pairs of 't' and 'u'. Where
+   * both contain a key, the value from 'u' is used. If 'm' is the size of the
+   * smaller Table and 'n' of the larger, this takes time proportional to
+   * 'm*log(n/m+1)'. Subtrees that are unaffected, or that are shared by 't'
+   * and 'u', are returned unchanged. */
+  public static Table union(Table t, Table u) {
+    if (t==null || t==u) return u;
+    if (u==null) return t;
+    if (t instanceof Dense && u instanceof Dense) {
+      // Overwrite the first 'u.size' values of 't'.
+      if (u.size>=t.size) return u;
+      Dense ans = (Dense)t;
+      for (int i=0; i<u.size; i++) ans = ans.set(i, ((Dense)u).get(i));
+      return ans;
+    }
+    return union(treap(t), treap(u), new Table[3]);
+  }
+
+  /** Returns a Table containing the key, value pairs of 't' whose keys are not
+   * in 'u'. The cost is as for 'union()'. If no key is removed, 't' is
+   * returned. */
+  public static Table difference(Table t, Table u) {
+    if (t==null || t==u) return null;
+    if (u==null) return t;
+    if (t instanceof Dense && u instanceof Dense && u.size>=t.size) return null;
+    return difference(treap(t), treap(u), new Table[3]);
+  }
+
   /** Returns a deep copy of this Table, by calling the 'deepCopy()' method of
    * all of the values. If none returns a new object, this method returns
-   * 'this', otherwise it returns a fresh Table. */
+   * 'this', otherwise it returns a fresh Table. Subtrees that contain no
+   * mutable values are not visited. */
   public Table deepCopyTable() {
+    if (!this.mutable) return this;
     final Table newLeft = this.left==null ? null : this.left.deepCopyTable();
     final Table newRight = this.right==null ? null : this.right.deepCopyTable();
     final DeepCopyable newValue =
       this.value==null ? null : this.value.deepCopy();
     if (this.left==newLeft && this.right==newRight && this.value==newValue)
       return this;
-    return new Table(newLeft, newRight, this.depth, this.key, newValue);
+    return node(newLeft, newRight, this.depth, this.key, newValue);
   }
   
   /** Returns an Iterator whose 'next()' method, called repeatedly, returns the
    * values in this Table sorted according to their keys. */
   public static Iterator iterator(Table t) {
+    if (t instanceof Dense) return ((Dense)t).iterator(0);
     Iterator ans = null;
     for (; t!=null; t = t.left)
       ans = new Iterator(t.key, t.value, t.right, ans);
     return ans;
   }
+
+  /** Returns an Iterator like 'iterator(t)' but which starts at the pair with
+   * index 'i' in sorted order, where the first pair has index '0'. Returns
+   * 'null' if 'i' is not less than 'size(t)'. Takes time proportional to
+   * 'log(size(t))'.
+   * @throws IllegalArgumentException if 'i' is negative.
+   */
+  public static Iterator iterator(Table t, int i) {
+    if (i<0) throw new IllegalArgumentException("Negative index "+i);
+    if (i>=size(t)) return null;
+    if (t instanceof Dense) return ((Dense)t).iterator(i);
+    Iterator ans = null;
+    while (true) {
+      final int leftSize = size(t.left);
+      if (i<=leftSize) ans = new Iterator(t.key, t.value, t.right, ans);
+      if (i==leftSize) return ans;
+      if (i<leftSize) {
+        t = t.left;
+      } else {
+        i -= leftSize+1;
+        t = t.right;
+      }
+    }
+  }
+
+  /** Returns a Table containing the pairs of 't' whose indices in sorted order
+   * are at least 'lo' and less than 'hi', where the first pair has index '0'.
+   * Only the nodes on the paths to the two ends are copied, so this takes
+   * time proportional to 'log(size(t))', except that the first call for a
+   * Table stored as an array converts it to a treap. */
+  public static Table slice(Table t, int lo, int hi) {
+    if (lo<=0 && hi>=size(t)) return t;
+    if (lo>=hi) return null;
+    t = treap(t);
+    return take(drop(t, lo), hi-Math.max(lo, 0));
+  }
+
+  /** Returns a Table containing the pairs of 't' whose keys are at least 'lo'
+   * and less than 'hi'. The cost is as for 'slice()'. */
+  public static Table range(Table t, Comparable lo, Comparable hi) {
+    if (t==null || lo.compareTo(hi)>=0) return null;
+    t = treap(t);
+    return below(from(t, lo), hi);
+  }
   
   /** Returns a String representation of this Table, including its keys and
    * values, mainly for debugging purposes. */
   public String toString() {
     StringBuffer sb = new StringBuffer("Table[size="+size(this));
-    for (Iterator it = iterator(this); it!=null; it = it.next())
-      sb.append("\n  ").append(it.key).append(" -> ").append(it.value);
+    for (Cursor c = new Cursor(this); c.next(); )
+      sb.append("\n  ").append(c.key).append(" -> ").append(c.value);
     return sb.append("\n]").toString();
   }
   
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Constructs a Table from key, value pairs supplied in ascending order of
+   * key, in time proportional to the number of pairs. Each node of the result
+   * is constructed exactly once, with a depth chosen in the same way as by
+   * 'put()', so the result is identical to one constructed by calling 'put()'
+   * repeatedly. A Builder can be reused after 'build()'. */
+  public static final class Builder {
+    /** Constructs an empty Builder with room for 16 pairs. */
+    public Builder() { this(16); }
+
+    /** Constructs an empty Builder with room for 'capacity' pairs. More room
+     * is made if necessary. */
+    public Builder(int capacity) {
+      capacity = Math.max(capacity, 1);
+      this.keys = new Comparable[capacity];
+      this.values = new DeepCopyable[capacity];
+      this.depths = new int[capacity];
+      this.lefts = null; this.rights = null;
+      this.size = 0;
+    }
+
+    /** Returns the number of pairs added since the last 'build()'. */
+    public int size() { return this.size; }
+
+    /** Returns the last key added since the last 'build()', or 'null' if
+     * none. */
+    public Comparable lastKey() {
+      return this.size==0 ? null : this.keys[this.size-1];
+    }
+
+    /** Adds a key, value pair. 'k' must be larger than all the keys added
+     * since the last 'build()'.
+     * @throws IllegalArgumentException if 'k' is not larger than 'lastKey()'.
+     */
+    public void add(Comparable k, DeepCopyable v) {
+      if (this.size>0 && k.compareTo(this.keys[this.size-1])<=0) {
+        throw new IllegalArgumentException("Keys must be in ascending order");
+      }
+      if (this.size==this.keys.length) {
+        final Comparable[] oldKeys = this.keys;
+        this.keys = new Comparable[2*this.size];
+        System.arraycopy(oldKeys, 0, this.keys, 0, this.size);
+        final DeepCopyable[] oldValues = this.values;
+        this.values = new DeepCopyable[2*this.size];
+        System.arraycopy(oldValues, 0, this.values, 0, this.size);
+        final int[] oldDepths = this.depths;
+        this.depths = new int[2*this.size];
+        System.arraycopy(oldDepths, 0, this.depths, 0, this.size);
+      }
+      this.keys[this.size] = k;
+      this.values[this.size] = v;
+      this.depths[this.size] = priority(k);
+      this.size++;
+    }
+
+    /** Returns a Table containing the pairs added since the last 'build()',
+     * and empties this Builder. */
+    public Table build() {
+      final int n = this.size;
+      int i = 0;
+      while (i<n && index(this.keys[i])==i) i++;
+      if (i<n || n==0) return this.buildTreap();
+      final Table ans = Dense.make((Index)this.keys[0], this.values, n);
+      this.clear();
+      return ans;
+    }
+
+    /* Private. */
+
+    /** Like 'build()' but always returns a treap. */
+    private Table buildTreap() {
+      final int n = this.size;
+      if (n==0) return null;
+      if (this.lefts==null || this.lefts.length<n) {
+        this.lefts = new int[this.keys.length];
+        this.rights = new int[this.keys.length];
+      }
+      // Construct the shape of the tree as a Cartesian tree, keeping the right
+      // spine on a stack. 'rights' doubles as the stack, linking each element
+      // of the spine to the one above it, until the shape is complete.
+      int top = -1;
+      for (int i=0; i<n; i++) {
+        // Pop the elements with smaller depths, which become the left child of
+        // 'i'.
+        int last = -1;
+        while (top>=0 && this.depths[top]<this.depths[i]) {
+          final int below = this.rights[top];
+          this.rights[top] = last;
+          last = top;
+          top = below;
+        }
+        this.lefts[i] = last;
+        this.rights[i] = top; // Link to the element below on the stack.
+        top = i;
+      }
+      // Unwind the stack, making each element the right child of the one
+      // below it.
+      int child = -1;
+      while (top>=0) {
+        final int below = this.rights[top];
+        this.rights[top] = child;
+        child = top;
+        top = below;
+      }
+      final Table ans = this.construct(child);
+      this.clear();
+      return ans;
+    }
+
+    /** Empties this Builder. */
+    private void clear() {
+      for (int i=0; i<this.size; i++) {
+        this.keys[i] = null;
+        this.values[i] = null;
+      }
+      this.size = 0;
+    }
+
+    /** The keys, values and depths of the pairs, followed by unused elements.
+     */
+    private Comparable[] keys;
+    private DeepCopyable[] values;
+    private int[] depths;
+
+    /** The indices of the left and right children of each pair in the shape
+     * computed by 'build()', or '-1'. */
+    private int[] lefts, rights;
+
+    /** The number of pairs. */
+    private int size;
+
+    /** Constructs the Table whose root is pair 'i', or returns 'null' if 'i' is
+     * '-1'. */
+    private Table construct(int i) {
+      if (i<0) return null;
+      return node(
+        this.construct(this.lefts[i]), this.construct(this.rights[i]),
+        this.depths[i],
+        this.keys[i], this.values[i]
+      );
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** A key which might be a non-negative integer. A Table whose keys are the
+   * Indexes from '0' to 'n-1' is stored compactly, and can be searched without
+   * comparing keys. For this to work, a key with index 'i' must compare equal
+   * to exactly those keys with index 'i', and must compare less than those
+   * with larger indices. */
+  public interface Index extends Comparable {
+    /** Returns the non-negative integer that this key represents, or '-1' if
+     * it does not represent one. */
+    public int index();
+
+    /** Returns a key of the same kind as this one, whose index is 'i'. */
+    public Index forIndex(int i);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Implemented by values that can say whether they are mutable, meaning that
+   * 'deepCopy()' might return a different object. A Table records whether it
+   * contains any mutable values, so that 'deepCopyTable()' can skip those
+   * parts that do not. Values that do not implement this interface are
+   * assumed to be mutable. */
+  public interface MaybeMutable extends DeepCopyable {
+    /** Returns 'false' if 'deepCopy()' always returns 'this'. The result must
+     * not change. */
+    public boolean isMutable();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** A key which is a number. Numerics compare in numerical order among
+   * themselves, and each compares equal to exactly those Numerics with the
+   * same value. Tables store the values of Numeric keys unboxed, and compare
+   * them without calling 'compareTo()'. */
+  public interface Numeric extends Index {
+    /** Returns the number that this key represents. */
+    public double doubleValue();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** A treap node whose key is Numeric, which keeps a copy of the number so
+   * that it can be compared without calling methods of the key. Constructed
+   * by 'node()'. */
+  private static final class NumNode extends Table {
+    private NumNode(
+      Table left, Table right,
+      int depth,
+      Numeric key, DeepCopyable value
+    ) {
+      super(left, right, depth, key, value);
+      this.num = key.doubleValue();
+    }
+
+    /** 'key.doubleValue()'. */
+    final double num;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** A Table whose keys are the Indexes from '0' to 'size-1'. The values are
+   * stored in a persistent trie in which each node is an array of at most
+   * 'WIDTH' elements: the leaves contain values, and the other nodes contain
+   * nodes. Only the last node at each level may have fewer than 'WIDTH'
+   * elements. The keys are not stored; they are made when needed by calling
+   * 'proto.forIndex()'. */
+  private static final class Dense extends Table {
+    private Dense(
+      Index proto,
+      Object[] root, int shift,
+      int size, int hash, boolean mutable
+    ) {
+      super(size, hash, mutable);
+      this.proto = proto; this.root = root; this.shift = shift;
+      this.treap = null;
+    }
+
+    /** The number of bits of an index consumed by each level of the trie. */
+    static final int BITS = 5;
+
+    /** The largest number of elements of a node. */
+    static final int WIDTH = 1<<BITS;
+
+    /** 'WIDTH-1'. */
+    static final int MASK = WIDTH-1;
+
+    /** A key from which all the others are made. */
+    final Index proto;
+
+    /** The root node of the trie. */
+    final Object[] root;
+
+    /** The position of the bits of an index that select an element of 'root'.
+     * '0' if 'root' is a leaf. */
+    final int shift;
+
+    /** Constructs a Dense containing the first 'n' elements of 'values', which
+     * must be positive, in time proportional to 'n'. */
+    static Dense make(Index proto, DeepCopyable[] values, int n) {
+      Object[] level = new Object[(n+MASK)>>BITS];
+      for (int i=0; i<level.length; i++) {
+        final Object[] leaf = new Object[Math.min(WIDTH, n-(i<<BITS))];
+        System.arraycopy(values, i<<BITS, leaf, 0, leaf.length);
+        level[i] = leaf;
+      }
+      int shift = 0;
+      while (level.length>1) {
+        final Object[] nodes = new Object[(level.length+MASK)>>BITS];
+        for (int i=0; i<nodes.length; i++) {
+          final Object[] node =
+            new Object[Math.min(WIDTH, level.length-(i<<BITS))];
+          System.arraycopy(level, i<<BITS, node, 0, node.length);
+          nodes[i] = node;
+        }
+        level = nodes;
+        shift += BITS;
+      }
+      final Object[] root = (Object[])level[0];
+      return new Dense(
+        proto,
+        root, shift,
+        n, hash(proto, root, shift, 0), isMutable(root, shift)
+      );
+    }
+
+    /** Returns the leaf containing the value for index 'i'. */
+    Object[] leaf(int i) {
+      Object[] node = this.root;
+      for (int s=this.shift; s>0; s-=BITS) {
+        node = (Object[])node[(i>>>s) & MASK];
+      }
+      return node;
+    }
+
+    /** Returns the value for index 'i', which must be less than 'size'. */
+    DeepCopyable get(int i) {
+      return (DeepCopyable)this.leaf(i)[i & MASK];
+    }
+
+    /** Returns a Dense that maps index 'i' to 'v', which differs from this
+     * one only at 'i'. 'i' must be at most 'size'. If it is equal, the
+     * result is one larger. */
+    Dense set(int i, DeepCopyable v) {
+      int newHash = hash(this) + Table.hash(this.proto.forIndex(i), v);
+      if (i==size(this) && i==1<<(this.shift+BITS)) {
+        // The trie is full. Add a level.
+        return new Dense(
+          this.proto,
+          new Object[] {this.root, path(this.shift, v)}, this.shift+BITS,
+          i+1, newHash, Table.isMutable(this) || Table.isMutable(v)
+        );
+      }
+      if (i<size(this)) {
+        final DeepCopyable old = this.get(i);
+        if (old==v) return this;
+        newHash -= Table.hash(this.proto.forIndex(i), old);
+      }
+      return new Dense(
+        this.proto,
+        set(this.root, this.shift, i, v), this.shift,
+        Math.max(size(this), i+1), newHash,
+        Table.isMutable(this) || Table.isMutable(v)
+      );
+    }
+
+    /** Returns the same Table as a treap, constructing it the first time. */
+    Table treap() {
+      if (this.treap==null) {
+        final Builder b = new Builder(size(this));
+        for (Cursor c = new Cursor(this); c.next(); ) b.add(c.key, c.value);
+        this.treap = b.buildTreap();
+      }
+      return this.treap;
+    }
+
+    /** Returns an Iterator for the pairs from index 'i' onwards, which must be
+     * less than 'size'. */
+    Iterator iterator(int i) { return new Iterator(this, this.leaf(i), i); }
+
+    /** Returns a deep copy of this Dense, or 'this' if no value changes. */
+    public Table deepCopyTable() {
+      if (!Table.isMutable(this)) return this;
+      final Object[] newRoot = deepCopy(this.root, this.shift);
+      if (newRoot==this.root) return this;
+      return new Dense(
+        this.proto,
+        newRoot, this.shift,
+        size(this),
+        hash(this.proto, newRoot, this.shift, 0),
+        isMutable(newRoot, this.shift)
+      );
+    }
+
+    /* Private. */
+
+    /** This Table as a treap, or 'null' if 'treap()' has not been called. */
+    private Table treap;
+
+    /** Returns a copy of 'node', the root of a subtrie at position 'shift',
+     * which maps 'i' to 'v'. 'i' may be one more than the largest index in the
+     * subtrie if there is room for it. */
+    private static Object[] set(Object[] node, int shift, int i, Object v) {
+      final int j = (i>>>shift) & MASK;
+      final Object[] ans = new Object[Math.max(node.length, j+1)];
+      System.arraycopy(node, 0, ans, 0, node.length);
+      if (shift==0) {
+        ans[j] = v;
+      } else if (j<node.length) {
+        ans[j] = set((Object[])node[j], shift-BITS, i, v);
+      } else {
+        ans[j] = path(shift-BITS, v);
+      }
+      return ans;
+    }
+
+    /** Returns the sum of the hashes of the pairs in the subtrie 'node' at
+     * position 'shift', whose first index is 'first'. */
+    private static int hash(Index proto, Object[] node, int shift, int first) {
+      int ans = 0;
+      for (int i=0; i<node.length; i++) {
+        final int index = first+(i<<shift);
+        ans += shift==0 ?
+          Table.hash(proto.forIndex(index), (DeepCopyable)node[i]) :
+          hash(proto, (Object[])node[i], shift-BITS, index);
+      }
+      return ans;
+    }
+
+    /** Returns 'true' if any value in the subtrie 'node' at position 'shift'
+     * is mutable. */
+    private static boolean isMutable(Object[] node, int shift) {
+      for (int i=0; i<node.length; i++) {
+        if (
+          shift==0 ?
+            Table.isMutable((DeepCopyable)node[i]) :
+            isMutable((Object[])node[i], shift-BITS)
+        ) return true;
+      }
+      return false;
+    }
+
+    /** Returns a subtrie at position 'shift' containing only 'v'. */
+    private static Object[] path(int shift, Object v) {
+      if (shift==0) return new Object[] {v};
+      return new Object[] {path(shift-BITS, v)};
+    }
+
+    /** Implements 'deepCopyTable()' for the subtrie 'node' at position
+     * 'shift'. Returns 'node' if nothing changes. */
+    private static Object[] deepCopy(Object[] node, int shift) {
+      Object[] ans = node;
+      for (int i=0; i<node.length; i++) {
+        final Object old = node[i];
+        final Object copy = old==null ? null : shift==0 ?
+          (Object)((DeepCopyable)old).deepCopy() :
+          (Object)deepCopy((Object[])old, shift-BITS);
+        if (copy!=old) {
+          if (ans==node) {
+            ans = new Object[node.length];
+            System.arraycopy(node, 0, ans, 0, node.length);
+          }
+          ans[i] = copy;
+        }
+      }
+      return ans;
+    }
+  }
+
   ////////////////////////////////////////////////////////////////////////////
   
   /** The return type of 'iterator()', which represents a sequence of key, value
@@ -104,6 +637,17 @@ public class Table implements DeepCopyable {
     ) {
       this.key = key; this.value = value;
       this.right = right; this.next = next;
+      this.dense = null; this.leaf = null; this.index = 0;
+    }
+
+    /** Private constructor: the public uses 'iterator()'. Constructs an
+     * Iterator for the pair of 'dense' whose key is 'index', which is in
+     * 'leaf'. */
+    private Iterator(Dense dense, Object[] leaf, int index) {
+      this.key = dense.proto.forIndex(index);
+      this.value = (DeepCopyable)leaf[index & Dense.MASK];
+      this.right = null; this.next = null;
+      this.dense = dense; this.leaf = leaf; this.index = index;
     }
     
     /** The first key in the sequence. */
@@ -115,6 +659,12 @@ public class Table implements DeepCopyable {
     /** Returns an Iterator representing the sequence that remains after
      * removing the first element from this Iterator. */
     public Iterator next() {
+      if (this.dense!=null) {
+        final int i = this.index+1;
+        if (i==size(this.dense)) return null;
+        if ((i & Dense.MASK)==0) return this.dense.iterator(i);
+        return new Iterator(this.dense, this.leaf, i);
+      }
       Iterator ans = this.next;
       for (Table t = this.right; t!=null; t = t.left)
         ans = new Iterator(t.key, t.value, t.right, ans);
@@ -133,6 +683,116 @@ public class Table implements DeepCopyable {
     
     /** An Iterator to return after 'right' is exhausted. */
     private final Iterator next;
+
+    /** If this Iterator belongs to a Dense Table, the Table, the leaf of its
+     * trie containing 'value', and the Index of 'key'. Otherwise 'null',
+     * 'null' and '0'. */
+    private final Dense dense;
+    private final Object[] leaf;
+    private final int index;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** A mutable alternative to Iterator, for callers that visit the pairs of a
+   * Table in order and do not need to keep the earlier positions. A Cursor
+   * remembers the Tables it has yet to visit in an array which it reuses from
+   * one step to the next, so 'next()' allocates nothing, except the key of a
+   * Table whose keys are Indexes. Typical use:<pre>
+   * for (Table.Cursor c = new Table.Cursor(t); c.next(); ) {
+   *   ... c.key ... c.value ...
+   * }
+   * </pre> */
+  public static final class Cursor {
+    /** Constructs a Cursor positioned before the first pair of 't'. */
+    public Cursor(Table t) {
+      this.stack = new Table[16];
+      this.reset(t);
+    }
+
+    /** Constructs a Cursor at the same position as 'that', which moves
+     * independently of it. */
+    public Cursor(Cursor that) {
+      this.stack = (Table[])that.stack.clone();
+      this.height = that.height;
+      this.dense = that.dense; this.leaf = that.leaf; this.index = that.index;
+      this.key = that.key; this.value = that.value;
+    }
+
+    /* New API. */
+
+    /** The key of the pair most recently visited by 'next()', or 'null' if
+     * none. */
+    public Comparable key;
+
+    /** The value of the pair most recently visited by 'next()', or 'null' if
+     * none. */
+    public DeepCopyable value;
+
+    /** Moves this Cursor to before the first pair of 't'. This allows a
+     * Cursor to be reused for another Table. */
+    public void reset(Table t) {
+      while (this.height>0) this.stack[--this.height] = null;
+      this.key = null; this.value = null;
+      this.dense = t instanceof Dense ? (Dense)t : null;
+      this.leaf = null; this.index = -1;
+      if (this.dense==null) this.pushLeft(t);
+    }
+
+    /** Moves to the next pair, stores it in 'key' and 'value', and returns
+     * 'true'. If there are no more pairs, sets 'key' and 'value' to 'null'
+     * and returns 'false'. */
+    public boolean next() {
+      if (this.dense!=null) {
+        final int i = this.index+1;
+        if (i<size(this.dense)) {
+          if ((i & Dense.MASK)==0 || this.leaf==null) {
+            this.leaf = this.dense.leaf(i);
+          }
+          this.index = i;
+          this.key = this.dense.proto.forIndex(i);
+          this.value = (DeepCopyable)this.leaf[i & Dense.MASK];
+          return true;
+        }
+      } else if (this.height>0) {
+        final Table t = this.stack[--this.height];
+        this.stack[this.height] = null;
+        this.key = t.key; this.value = t.value;
+        this.pushLeft(t.right);
+        return true;
+      }
+      this.key = null; this.value = null;
+      return false;
+    }
+
+    /* Private. */
+
+    /** Pushes 't' and its left descendants onto 'stack'. */
+    private void pushLeft(Table t) {
+      for (; t!=null; t = t.left) {
+        if (this.height==this.stack.length) {
+          final Table[] old = this.stack;
+          this.stack = new Table[2*old.length];
+          System.arraycopy(old, 0, this.stack, 0, this.height);
+        }
+        this.stack[this.height++] = t;
+      }
+    }
+
+    /** The treap nodes whose pairs and right subtrees have yet to be visited,
+     * with the next one at the top, followed by unused elements. */
+    private Table[] stack;
+
+    /** The number of Tables in 'stack'. */
+    private int height;
+
+    /** If this Cursor belongs to a Dense Table, the Table, the leaf of its
+     * trie containing the current pair (or 'null' before the first pair), and
+     * the Index of the current key (or '-1'). Otherwise 'null', 'null' and
+     * '-1'. */
+    private Dense dense;
+    private Object[] leaf;
+    private int index;
   }
   
   ////////////////////////////////////////////////////////////////////////////
@@ -146,7 +806,7 @@ public class Table implements DeepCopyable {
   
   private final Table left, right;
   
-  /** Depth of 'null' considered to be 'Integer.MIN_VALUE'.
+  /** Depth of 'null' considered to be 'Integer.MIN_VALUE'. Unused by a Dense.
    * Invariant: 'depth>left.depth && depth<=right.depth'. */
   private final int depth;
   
@@ -161,9 +821,217 @@ public class Table implements DeepCopyable {
    * Size of 'null' considered to be '0'.
    * Invariant: 'size == left.size + 1 + right.size'. */
   private final int size;
+
+  /** The sum of the hashes of the key, value pairs in this Table.
+   * Hash of 'null' considered to be '0'.
+   * Invariant: 'hash == left.hash + hash(key, value) + right.hash'. */
+  private final int hash;
+
+  /** 'true' if any value in this Table is mutable. For a Dense, this may be
+   * 'true' even if the mutable values have been replaced.
+   * Invariant: 'mutable == left.mutable || isMutable(value) ||
+   * right.mutable'. */
+  private final boolean mutable;
   
-  /** Used to choose the depths of new nodes. */
-  private static final java.util.Random RAND = new java.util.Random();
+  /** Implements 'put()' for treaps. */
+  private static Table putTreap(Table t, Comparable k, DeepCopyable v) {
+    if (t==null) return node(null, null, priority(k), k, v);
+    final int c = compare(k, t);
+    if (c==0) return node(t.left, t.right, t.depth, k, v);
+    if (c<0) {
+      final Table u = putTreap(t.left, k, v);
+      if (u.depth<t.depth) {
+        return node(u, t.right, t.depth, t.key, t.value);
+      } else {
+        t = node(u.right, t.right, t.depth, t.key, t.value);
+        return node(u.left, t, u.depth, u.key, u.value);
+      }
+    } else {
+      final Table u = putTreap(t.right, k, v);
+      if (t.depth<u.depth) {
+        t = node(t.left, u.left, t.depth, t.key, t.value);
+        return node(t, u.right, u.depth, u.key, u.value);
+      } else {
+        return node(t.left, u, t.depth, t.key, t.value);
+      }
+    }
+  }
+  
+  /** Constructs a treap node, which is a NumNode if 'key' is Numeric. The
+   * arguments are as for the constructor. */
+  private static Table node(
+    Table left, Table right,
+    int depth,
+    Comparable key, DeepCopyable value
+  ) {
+    if (key instanceof Numeric) {
+      return new NumNode(left, right, depth, (Numeric)key, value);
+    }
+    return new Table(left, right, depth, key, value);
+  }
+
+  /** Returns 'k.compareTo(t.key)', without calling it if both are numbers.
+   * 't' must be a treap node. */
+  private static int compare(Comparable k, Table t) {
+    if (t instanceof NumNode && k instanceof Numeric) {
+      final double d = ((Numeric)k).doubleValue(), n = ((NumNode)t).num;
+      return d==n ? 0 : d<n ? -1 : 1;
+    }
+    return k.compareTo(t.key);
+  }
+
+  /** Returns the index of 'k' if it is an Index, otherwise '-1'. */
+  private static int index(Comparable k) {
+    return k instanceof Index ? ((Index)k).index() : -1;
+  }
+
+  /** Returns 't' as a treap, by converting it if it is a Dense. */
+  private static Table treap(Table t) {
+    return t instanceof Dense ? ((Dense)t).treap() : t;
+  }
+
+  /** Returns the first 'n' pairs of the treap 't'. */
+  private static Table take(Table t, int n) {
+    if (n<=0) return null;
+    if (n>=size(t)) return t;
+    final int leftSize = size(t.left);
+    if (n<=leftSize) return take(t.left, n);
+    final Table right = take(t.right, n-leftSize-1);
+    return node(t.left, right, t.depth, t.key, t.value);
+  }
+
+  /** Returns the treap 't' without its first 'n' pairs. */
+  private static Table drop(Table t, int n) {
+    if (n<=0) return t;
+    if (n>=size(t)) return null;
+    final int leftSize = size(t.left);
+    if (n>leftSize) return drop(t.right, n-leftSize-1);
+    final Table left = drop(t.left, n);
+    return node(left, t.right, t.depth, t.key, t.value);
+  }
+
+  /** Returns the pairs of the treap 't' whose keys are at least 'lo'. */
+  private static Table from(Table t, Comparable lo) {
+    if (t==null) return null;
+    if (compare(lo, t)>0) return from(t.right, lo);
+    final Table left = from(t.left, lo);
+    if (left==t.left) return t;
+    return node(left, t.right, t.depth, t.key, t.value);
+  }
+
+  /** Returns the pairs of the treap 't' whose keys are less than 'hi'. */
+  private static Table below(Table t, Comparable hi) {
+    if (t==null) return null;
+    if (compare(hi, t)<=0) return below(t.left, hi);
+    final Table right = below(t.right, hi);
+    if (right==t.right) return t;
+    return node(t.left, right, t.depth, t.key, t.value);
+  }
+
+  /** Implements 'union()' for treaps.
+   * @param parts workspace for 'split()'.
+   */
+  private static Table union(Table t, Table u, Table[] parts) {
+    if (t==null || t==u) return u;
+    if (u==null) return t;
+    // The root of the result is the deeper root. Where the depths are equal,
+    // the root with the smaller key is chosen, so that the other, and any
+    // nodes of equal depth below it, end up in the right subtree.
+    if (t.depth>u.depth || (t.depth==u.depth && t.key.compareTo(u.key)<0)) {
+      split(u, t.key, parts);
+      final Table uLeft = parts[0], uMatch = parts[1], uRight = parts[2];
+      final Table left = union(t.left, uLeft, parts);
+      final Table right = union(t.right, uRight, parts);
+      final DeepCopyable value = uMatch==null ? t.value : uMatch.value;
+      if (left==t.left && right==t.right && value==t.value) return t;
+      return node(left, right, t.depth, t.key, value);
+    } else {
+      split(t, u.key, parts);
+      final Table tLeft = parts[0], tRight = parts[2];
+      final Table left = union(tLeft, u.left, parts);
+      final Table right = union(tRight, u.right, parts);
+      if (left==u.left && right==u.right) return u;
+      return node(left, right, u.depth, u.key, u.value);
+    }
+  }
+
+  /** Implements 'difference()' for treaps.
+   * @param parts workspace for 'split()'.
+   */
+  private static Table difference(Table t, Table u, Table[] parts) {
+    if (t==null || t==u) return null;
+    if (u==null) return t;
+    split(t, u.key, parts);
+    final Table tLeft = parts[0], tRight = parts[2];
+    final Table left = difference(tLeft, u.left, parts);
+    final Table right = difference(tRight, u.right, parts);
+    if (size(left)+size(right)==t.size) return t; // Nothing removed.
+    return join(left, right);
+  }
+
+  /** Divides 't' into the part whose keys are less than 'k', the node whose
+   * key is 'k', and the part whose keys are greater than 'k', storing them in
+   * 'parts[0]', 'parts[1]' and 'parts[2]' respectively. Any of them may be
+   * 'null'. Only the nodes on the path to 'k' are copied. */
+  private static void split(Table t, Comparable k, Table[] parts) {
+    if (t==null) {
+      parts[0] = null; parts[1] = null; parts[2] = null;
+      return;
+    }
+    final int c = compare(k, t);
+    if (c==0) {
+      parts[0] = t.left; parts[1] = t; parts[2] = t.right;
+    } else if (c<0) {
+      split(t.left, k, parts);
+      parts[2] = parts[2]==t.left ?
+        t : node(parts[2], t.right, t.depth, t.key, t.value);
+    } else {
+      split(t.right, k, parts);
+      parts[0] = parts[0]==t.right ?
+        t : node(t.left, parts[0], t.depth, t.key, t.value);
+    }
+  }
+
+  /** Returns a Table containing the pairs of 'l' and 'r', all of whose keys
+   * must be less than all of those of 'r'. */
+  private static Table join(Table l, Table r) {
+    if (l==null) return r;
+    if (r==null) return l;
+    if (l.depth>=r.depth) {
+      return node(l.left, join(l.right, r), l.depth, l.key, l.value);
+    } else {
+      return node(join(l, r.left), r.right, r.depth, r.key, r.value);
+    }
+  }
+
+  /** Returns the depth of a new node with key 'k'. The depth depends only on
+   * 'k.hashCode()', so a treap's shape depends only on its keys, and Tables
+   * with the same keys have the same shape however they were constructed.
+   * The hash is mixed so that consecutive integers and similar strings get
+   * unrelated depths. */
+  private static int priority(Comparable k) { return mix(k.hashCode()); }
+
+  /** Returns 'true' unless 'v' is 'null' or is a MaybeMutable which says it
+   * is immutable. */
+  private static boolean isMutable(DeepCopyable v) {
+    return
+      v!=null &&
+      (!(v instanceof MaybeMutable) || ((MaybeMutable)v).isMutable());
+  }
+
+  /** Returns the hash of a key, value pair, used to compute 'hash'. */
+  private static int hash(Comparable k, DeepCopyable v) {
+    return mix(568742265*k.hashCode() + (v==null ? 0 : v.hashCode()));
+  }
+
+  /** Returns a scrambled version of 'h', in which each bit depends on all of
+   * the bits of 'h'. */
+  private static int mix(int h) {
+    h ^= h>>>16; h *= 0x85EBCA6B;
+    h ^= h>>>13; h *= 0xC2B2AE35;
+    h ^= h>>>16;
+    return h;
+  }
   
   /* Test code. */
   
@@ -173,8 +1041,18 @@ public class Table implements DeepCopyable {
     public final DeepCopyable deepCopy() { return this; }
     public String toString() { return this.v; }
   }
+
+  private static class IndexKey implements Index {
+    public IndexKey(int i) { this.i = i; }
+    public final int i;
+    public int index() { return this.i>=0 ? this.i : -1; }
+    public Index forIndex(int i) { return new IndexKey(i); }
+    public int compareTo(Object that) { return this.i-((IndexKey)that).i; }
+    public String toString() { return "#"+this.i; }
+  }
   
   public static void main(String[] args) {
+    final java.util.Random RAND = new java.util.Random();
     Table t = null;
     for (int i=0; i<100; i++) t = put(
       t,
@@ -190,5 +1068,17 @@ public class Table implements DeepCopyable {
     );
     System.out.println(u);
     System.out.println(t);
+    final Builder b = new Builder();
+    for (int i=0; i<20; i++) {
+      b.add(new Integer(5*i), new DeepCopyableString("b"+i));
+    }
+    System.out.println(b.build());
+    Table d = null;
+    for (int i=0; i<40; i++) {
+      d = put(d, new IndexKey(i), new DeepCopyableString("d"+i));
+    }
+    System.out.println(d.getClass().getName()+" "+get(d, new IndexKey(33)));
+    d = put(d, new IndexKey(-1), new DeepCopyableString("first"));
+    System.out.println(d.getClass().getName()+" "+d);
   }
 }